@@ -0,0 +1,349 @@
+package com.esp.iot.blufi.communiation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Scheduler;
+import rx.Single;
+import rx.SingleSubscriber;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Track the frames posted with require ack.
+ * <p>
+ * At most the window size of frames are outstanding. The ACKs are matched by the sequence, a frame is
+ * retransmitted if its ACK is not received in time, the other outstanding frames are not posted again.
+ * A window of size 1 is stop-and-wait. With max retransmit 0 a frame fails once its ACK times out.
+ * <p>
+ * The async waits hold no thread, they complete in the ACK callback, and retransmit on a scheduler timer.
+ */
+public class BlufiAckWindow {
+    /**
+     * Write a frame again
+     */
+    public interface FrameWriter {
+        boolean write(byte[] frame);
+    }
+
+    /**
+     * Write a frame again without blocking
+     */
+    public interface AsyncFrameWriter {
+        Single<Boolean> write(byte[] frame);
+    }
+
+    /**
+     * A pending async wait
+     */
+    private static class Waiter {
+        final int maxOutstanding;
+        final AsyncFrameWriter writer;
+        final SingleSubscriber<? super Boolean> subscriber;
+        final Scheduler.Worker worker;
+
+        Waiter(int maxOutstanding, AsyncFrameWriter writer, SingleSubscriber<? super Boolean> subscriber,
+               Scheduler.Worker worker) {
+            this.maxOutstanding = maxOutstanding;
+            this.writer = writer;
+            this.subscriber = subscriber;
+            this.worker = worker;
+        }
+    }
+
+    private static class Frame {
+        final byte[] data;
+        long sentTime;
+        int retransmitCount = 0;
+
+        Frame(byte[] data, long sentTime) {
+            this.data = data;
+            this.sentTime = sentTime;
+        }
+    }
+
+    private static final long FAILED = -1L;
+
+    private final int mSize;
+    private final long mTimeoutNanos;
+    private final int mMaxRetransmit;
+
+    // Key is the 8-bit sequence, iteration order is the post order
+    private final Map<Integer, Frame> mFrames = new LinkedHashMap<>();
+    private final List<Waiter> mWaiters = new ArrayList<>();
+
+    private long mRetransmitCount = 0;
+    private long mUnmatchedAckCount = 0;
+
+    /**
+     * @param size          max count of the outstanding frames, at most 128 because the sequence is 8-bit
+     * @param timeout       retransmit a frame if its ACK is not received in the milliseconds
+     * @param maxRetransmit fail if a frame is retransmitted more times
+     */
+    public BlufiAckWindow(int size, long timeout, int maxRetransmit) {
+        mSize = Math.max(1, Math.min(size, 128));
+        mTimeoutNanos = timeout * 1000000L;
+        mMaxRetransmit = maxRetransmit;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Add a frame before it is written, so its ACK can always be matched
+     *
+     * @param sequence frame sequence
+     * @param frame    frame bytes
+     */
+    public synchronized void add(int sequence, byte[] frame) {
+        mFrames.put(sequence & 0xff, new Frame(frame, System.nanoTime()));
+    }
+
+    /**
+     * Called when an ACK is received
+     *
+     * @param sequence the acknowledged sequence
+     * @return false if no outstanding frame has the sequence
+     */
+    public boolean onAck(int sequence) {
+        synchronized (this) {
+            if (mFrames.remove(sequence & 0xff) == null) {
+                mUnmatchedAckCount++;
+                return false;
+            }
+
+            notifyAll();
+        }
+        completeWaiters();
+        return true;
+    }
+
+    public synchronized int getOutstandingCount() {
+        return mFrames.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return mFrames.isEmpty();
+    }
+
+    public void clear() {
+        synchronized (this) {
+            mFrames.clear();
+            notifyAll();
+        }
+        completeWaiters();
+    }
+
+    public synchronized long getRetransmitCount() {
+        return mRetransmitCount;
+    }
+
+    public synchronized long getUnmatchedAckCount() {
+        return mUnmatchedAckCount;
+    }
+
+    /**
+     * Block until another frame can be posted, retransmit the frames timeout
+     *
+     * @param writer write the retransmitted frames
+     * @return false if a frame is not acknowledged after the max retransmission
+     */
+    public boolean awaitRoom(FrameWriter writer) {
+        return await(mSize - 1, writer);
+    }
+
+    /**
+     * Block until all the outstanding frames are acknowledged, retransmit the frames timeout
+     *
+     * @param writer write the retransmitted frames
+     * @return false if a frame is not acknowledged after the max retransmission
+     */
+    public boolean awaitAll(FrameWriter writer) {
+        return await(0, writer);
+    }
+
+    private boolean await(int maxOutstanding, FrameWriter writer) {
+        while (true) {
+            List<byte[]> expired = new ArrayList<>();
+            synchronized (this) {
+                if (mFrames.size() <= maxOutstanding) {
+                    return true;
+                }
+
+                long wait = collectExpired(expired);
+                if (wait == FAILED) {
+                    return false;
+                }
+                if (wait > 0) {
+                    try {
+                        wait(Math.max(1L, wait / 1000000L));
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                        Thread.currentThread().interrupt();
+                        mFrames.clear();
+                        return false;
+                    }
+                    continue;
+                }
+            }
+
+            // Write out of the lock, the ACK callbacks must not be blocked by the write
+            for (byte[] frame : expired) {
+                if (!writer.write(frame)) {
+                    clear();
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until another frame can be posted without blocking, retransmit the frames timeout
+     *
+     * @param writer    write the retransmitted frames
+     * @param scheduler the scheduler of the retransmission timer
+     * @return Single of false if a frame is not acknowledged after the max retransmission
+     */
+    public Single<Boolean> awaitRoomAsync(AsyncFrameWriter writer, Scheduler scheduler) {
+        return awaitAsync(mSize - 1, writer, scheduler);
+    }
+
+    /**
+     * Wait until all the outstanding frames are acknowledged without blocking, retransmit the frames timeout
+     *
+     * @param writer    write the retransmitted frames
+     * @param scheduler the scheduler of the retransmission timer
+     * @return Single of false if a frame is not acknowledged after the max retransmission
+     */
+    public Single<Boolean> awaitAllAsync(AsyncFrameWriter writer, Scheduler scheduler) {
+        return awaitAsync(0, writer, scheduler);
+    }
+
+    private Single<Boolean> awaitAsync(int maxOutstanding, AsyncFrameWriter writer, Scheduler scheduler) {
+        return Single.create(subscriber -> {
+            Scheduler.Worker worker = scheduler.createWorker();
+            subscriber.add(worker);
+            Waiter waiter = new Waiter(maxOutstanding, writer, subscriber, worker);
+            synchronized (BlufiAckWindow.this) {
+                mWaiters.add(waiter);
+            }
+            subscriber.add(Subscriptions.create(() -> removeWaiter(waiter)));
+            checkAsync(waiter);
+        });
+    }
+
+    private synchronized boolean removeWaiter(Waiter waiter) {
+        return mWaiters.remove(waiter);
+    }
+
+    /**
+     * Complete the waiter if there is room, otherwise retransmit the frames timeout or schedule the next check
+     */
+    private void checkAsync(Waiter waiter) {
+        List<byte[]> expired = new ArrayList<>();
+        boolean failed = false;
+        synchronized (this) {
+            if (!mWaiters.contains(waiter)) {
+                return;
+            }
+
+            if (mFrames.size() > waiter.maxOutstanding) {
+                long wait = collectExpired(expired);
+                if (wait > 0) {
+                    // An ACK completes the waiter before the timer if it makes room
+                    waiter.worker.schedule(() -> checkAsync(waiter), wait, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                if (wait == FAILED) {
+                    mWaiters.remove(waiter);
+                    failed = true;
+                }
+            }
+        }
+
+        if (failed) {
+            waiter.subscriber.onSuccess(false);
+        }
+        if (expired.isEmpty()) {
+            completeWaiters();
+            return;
+        }
+
+        waiter.subscriber.add(writeAll(waiter.writer, expired, 0).subscribe(written -> {
+            if (written) {
+                checkAsync(waiter);
+            } else if (removeWaiter(waiter)) {
+                waiter.subscriber.onSuccess(false);
+                clear();
+            }
+        }));
+    }
+
+    private static Single<Boolean> writeAll(AsyncFrameWriter writer, List<byte[]> frames, int index) {
+        if (index == frames.size()) {
+            return Single.just(true);
+        }
+
+        return writer.write(frames.get(index))
+                .flatMap(written -> written ? writeAll(writer, frames, index + 1) : Single.just(false));
+    }
+
+    /**
+     * Complete the async waits which have room now, out of the lock
+     */
+    private void completeWaiters() {
+        List<Waiter> completed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Waiter> iterator = mWaiters.iterator();
+            while (iterator.hasNext()) {
+                Waiter waiter = iterator.next();
+                if (mFrames.size() <= waiter.maxOutstanding) {
+                    iterator.remove();
+                    completed.add(waiter);
+                }
+            }
+        }
+
+        for (Waiter waiter : completed) {
+            waiter.subscriber.onSuccess(true);
+        }
+    }
+
+    /**
+     * Collect the frames timeout and count their retransmission, called with the lock held
+     *
+     * @param expired the frames to retransmit are added in
+     * @return nanoseconds until the next frame times out if no frame times out now, 0 if the frames are
+     * collected, {@link #FAILED} if a frame reached the max retransmission, the window is cleared then
+     */
+    private long collectExpired(List<byte[]> expired) {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (Frame frame : mFrames.values()) {
+            wait = Math.min(wait, frame.sentTime + mTimeoutNanos - now);
+        }
+        if (wait > 0) {
+            return wait;
+        }
+
+        for (Frame frame : mFrames.values()) {
+            if (frame.sentTime + mTimeoutNanos - now > 0) {
+                continue;
+            }
+            if (frame.retransmitCount >= mMaxRetransmit) {
+                mFrames.clear();
+                expired.clear();
+                return FAILED;
+            }
+            frame.retransmitCount++;
+            frame.sentTime = now;
+            expired.add(frame.data);
+        }
+        mRetransmitCount += expired.size();
+        return 0;
+    }
+}
@@ -0,0 +1,108 @@
+package com.esp.iot.blufi.communiation;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothProfile;
+
+import com.espressif.libs.ble.EspBleHelper;
+
+import rx.Single;
+
+/**
+ * Write the frames to the write characteristic and receive the notifications of the notify characteristic
+ */
+public class BlufiBleTransport implements BlufiTransport {
+    private final EspBleHelper mBleHelper;
+    private final BluetoothGattCharacteristic mWriteChara;
+    private final BluetoothGattCharacteristic mNotifyChara;
+
+    private volatile NotificationListener mListener;
+    private volatile boolean mLastWriteTooLong = false;
+
+    private final EspBleHelper.GattCallback mNotificationCallback = new EspBleHelper.GattCallback() {
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            NotificationListener listener = mListener;
+            if (characteristic == mNotifyChara && listener != null) {
+                listener.onNotification(characteristic.getValue());
+            }
+        }
+    };
+
+    public BlufiBleTransport(EspBleHelper gatt, BluetoothGattCharacteristic write,
+                             BluetoothGattCharacteristic notify) {
+        mBleHelper = gatt;
+        mWriteChara = write;
+        mNotifyChara = notify;
+    }
+
+    public EspBleHelper getBleHelper() {
+        return mBleHelper;
+    }
+
+    @Override
+    public synchronized boolean setNotificationListener(NotificationListener listener) {
+        mListener = listener;
+        if (listener != null) {
+            mBleHelper.registerGattCallback(mNotificationCallback);
+            return mBleHelper.setCharacteristicNotification(mNotifyChara, true);
+        } else {
+            mBleHelper.unregisterGattCallback(mNotificationCallback);
+            return mBleHelper.setCharacteristicNotification(mNotifyChara, false);
+        }
+    }
+
+    /**
+     * Refuse a frame longer than the MTU carries before it is handed to the stack
+     */
+    private boolean isTooLong(byte[] data) {
+        mLastWriteTooLong = data.length > getMtu() - 3;
+        return mLastWriteTooLong;
+    }
+
+    @Override
+    public boolean write(byte[] data) {
+        return !isTooLong(data) && mBleHelper.write(mWriteChara, data);
+    }
+
+    @Override
+    public Single<Boolean> writeAsync(byte[] data) {
+        return Single.defer(() -> isTooLong(data) ? Single.just(false) : mBleHelper.writeAsync(mWriteChara, data));
+    }
+
+    @Override
+    public boolean isPipelinedWriteAvailable() {
+        return mBleHelper.getWriteWindow().isEnabled();
+    }
+
+    @Override
+    public boolean writeNoResponse(byte[] data) {
+        return mBleHelper.writeNoResponse(mWriteChara, data);
+    }
+
+    @Override
+    public boolean flushWrite(long timeout) {
+        return mBleHelper.flushWrite(timeout);
+    }
+
+    @Override
+    public Single<Boolean> flushWriteAsync(long timeout) {
+        return mBleHelper.flushWriteAsync(timeout);
+    }
+
+    @Override
+    public boolean isLastWriteTooLong() {
+        return mLastWriteTooLong
+                || mBleHelper.getLastWriteStatus() == BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+    }
+
+    @Override
+    public int getMtu() {
+        return mBleHelper.getMtu();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mBleHelper.getConnectState() == BluetoothProfile.STATE_CONNECTED;
+    }
+}
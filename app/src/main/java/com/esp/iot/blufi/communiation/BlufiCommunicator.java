@@ -1,8 +1,6 @@
 package com.esp.iot.blufi.communiation;
 
-import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.text.TextUtils;
 
 import com.esp.iot.blufi.communiation.response.BlufiSecurityResult;
 import com.esp.iot.blufi.communiation.response.BlufiStatusResponse;
@@ -10,97 +8,150 @@ import com.esp.iot.blufi.communiation.response.BlufiVersionResponse;
 import com.espressif.libs.ble.EspBleHelper;
 import com.espressif.libs.log.EspLog;
 import com.espressif.libs.security.EspAES;
-import com.espressif.libs.security.EspCRC;
 import com.espressif.libs.security.EspDH;
+import com.espressif.libs.security.EspDHPool;
+import com.espressif.libs.security.EspECDH;
 import com.espressif.libs.security.EspMD5;
 import com.espressif.libs.utils.DataUtil;
+import com.espressif.libs.utils.HexUtil;
 import com.espressif.libs.utils.RandomUtil;
 
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
-import javax.crypto.interfaces.DHPublicKey;
+import rx.Single;
+import rx.functions.Func0;
+import rx.schedulers.Schedulers;
 
 public class BlufiCommunicator implements IBlufiCommunicator {
+    /**
+     * Default bit length of the DH private key
+     */
+    public static final int DH_LENGTH = 1024;
+
     private static final long TIMEOUT_READ = 5000L;
+    private static final long TIMEOUT_WRITE = 3000L;
+    private static final long TIMEOUT_ACK = 2000L;
+    private static final int MAX_RETRANSMIT = 2;
 
-    private static final int DEFAULT_PACKAGE_LENGTH = 80;
-    private static final int PACKAGE_HEADER_LENGTH = 4;
-    private static final int MIN_PACKAGE_LENGTH = 6;
+    /**
+     * The device has reported no error
+     */
+    public static final int DEVICE_ERROR_NONE = -2;
 
     private static final int DIRECTION_OUTPUT = 0;
     private static final int DIRECTION_INPUT = 1;
 
-    private static final byte[] AES_BASE_IV = {
-            0x00, 0x00, 0x00, 0x00,
-            0x00, 0x00, 0x00, 0x00,
-            0x00, 0x00, 0x00, 0x00,
-            0x00, 0x00, 0x00, 0x00,
-    };
+    private final BlufiTransport mTransport;
 
-    private final EspBleHelper mBleHelper;
-    private final BluetoothGattCharacteristic mWriteChara;
-    private final BluetoothGattCharacteristic mNotifyChara;
+    private final BlufiFrameEncoder mFrameEncoder;
+    private final BlufiFrameDecoder mFrameDecoder;
+    private final BlufiPacer mPacer;
+    private final BlufiFrameSizer mFrameSizer;
+    private final BlufiSessionStats mStats = new BlufiSessionStats();
 
     private int mSendSequence = 0;
     private int mReadSequence = -1;
 
     private byte[] mSecretKeyMD5;
+    private EspAES mAES;
 
     private boolean mEncrypted = false;
     private boolean mChecksum = false;
 
     private boolean mRequireAck = false;
+    private BlufiAckWindow mAckWindow;
+    private int mAckWindowSize = 1;
+    private boolean mRetransmitEnabled = false;
+    private final BlufiAckWindow.AsyncFrameWriter mRetransmitWriter = frame -> {
+        mStats.onAckTimeout();
+        return writeFrameAsync(frame).flatMap(suc -> suc ? flushFramesAsync() : Single.just(false));
+    };
+    private boolean mPipelinedWrite = false;
 
     private BlufiNotiData mNotiData;
-    private LinkedBlockingQueue<BlufiNotiData> mNotiQueue = new LinkedBlockingQueue<>();
+    private int mNotiFrameCount = 0;
+    private boolean mSkipMessage = false;
+    private final BlufiReorderBuffer mReorderBuffer;
+    private final BlufiNotiDispatcher mNotiDispatcher = new BlufiNotiDispatcher();
 
     private int mPackageLengthLimit;
 
+    private EspDHPool mDHPool;
+    private int mDHLength = DH_LENGTH;
+
+    private boolean mECDHEnabled = false;
+
+    private volatile BlufiPhaseRecorder mPhaseRecorder;
+    private volatile long mNegotiateStartTime;
+
+    private final Object mSessionLock = new Object();
+    private boolean mSubscribed = false;
+    private boolean mClosed = false;
+    private volatile int mDeviceError = DEVICE_ERROR_NONE;
+
     public BlufiCommunicator(EspBleHelper gatt, BluetoothGattCharacteristic write, BluetoothGattCharacteristic notify) {
-        mBleHelper = gatt;
-        mWriteChara = write;
-        mNotifyChara = notify;
-        mPackageLengthLimit = DEFAULT_PACKAGE_LENGTH;
+        this(new BlufiBleTransport(gatt, write, notify));
     }
 
-    private static int getTypeValue(int type, int subtype) {
-        return (subtype << 2) | type;
+    /**
+     * @param transport the link the frames are written to and notified from
+     */
+    public BlufiCommunicator(BlufiTransport transport) {
+        mTransport = transport;
+        mFrameEncoder = new BlufiFrameEncoder();
+        mFrameDecoder = new BlufiFrameDecoder();
+        mFrameEncoder.setStats(mStats);
+        mFrameDecoder.setStats(mStats);
+        mAckWindow = createAckWindow(1, false);
+        mPacer = new BlufiPacer();
+        mFrameSizer = new BlufiFrameSizer(getMaxFrameLength());
+        mNotiDispatcher.setAckHandler(sequence -> {
+            boolean matched = mAckWindow.onAck(sequence);
+            if (matched) {
+                mPacer.onAck();
+            }
+            return matched;
+        });
+        mNotiDispatcher.setErrorHandler(this::onDeviceError);
+        mReorderBuffer = new BlufiReorderBuffer(new BlufiReorderBuffer.Receiver() {
+            @Override
+            public void onFrame(byte[] frame) {
+                onNotificationFrame(frame);
+            }
+
+            @Override
+            public void onGap(int lostCount) {
+                EspLog.w("notifyNotification lost frames %d", lostCount);
+                mStats.onFramesLost(lostCount);
+                // The message being built misses frames, so does the message the lost frames began
+                mNotiData = null;
+                mNotiFrameCount = 0;
+                mSkipMessage = true;
+            }
+
+            @Override
+            public void onDiscard(byte[] frame) {
+                mStats.onFrameDiscarded();
+            }
+        });
     }
 
-    private static int getPackageType(int typeValue) {
-        return typeValue & 0x3;
+    private static boolean isEmpty(String str) {
+        return str == null || str.length() == 0;
     }
 
-    private static int getSubType(int typeValue) {
-        return ((typeValue & 0xfc) >> 2);
+    private static int getTypeValue(int type, int subtype) {
+        return (subtype << 2) | type;
     }
 
     private static int getFrameCTRLValue(boolean encrypted, boolean checksum, int direction, boolean requireAck, boolean frag) {
-        int frame = 0;
-        if (encrypted) {
-            frame = frame | (1 << FRAME_CTRL_POSITION_ENCRYPTED);
-        }
-        if (checksum) {
-            frame = frame | (1 << FRAME_CTRL_POSITION_CHECKSUM);
-        }
-        if (direction == DIRECTION_INPUT) {
-            frame = frame | (1 << FRAME_CTRL_POSITION_DATA_DIRECTION);
-        }
-        if (requireAck) {
-            frame = frame | (1 << FRAME_CTRL_POSITION_REQUIRE_ACK);
-        }
-        if (frag) {
-            frame = frame | (1 << FRAME_CTRL_POSITION_FRAG);
-        }
-
-        return frame;
+        return BlufiFrameEncoder.getFrameCtrlValue(encrypted, checksum, direction == DIRECTION_INPUT, requireAck, frag);
     }
 
     private int toInt(byte b) {
@@ -123,6 +174,10 @@ public class BlufiCommunicator implements IBlufiCommunicator {
         return mSendSequence++;
     }
 
+    public BlufiTransport getTransport() {
+        return mTransport;
+    }
+
     public int getSendSequence() {
         return mSendSequence;
     }
@@ -131,59 +186,279 @@ public class BlufiCommunicator implements IBlufiCommunicator {
         return mReadSequence;
     }
 
+    /**
+     * Limit the length of the frames below the MTU of the transport
+     *
+     * @param lengthLimit max length of a frame, 0 to follow the MTU
+     */
     public void setPostPackageLengthLimit(int lengthLimit) {
         mPackageLengthLimit = lengthLimit;
-        if (mPackageLengthLimit < MIN_PACKAGE_LENGTH) {
-            mPackageLengthLimit = MIN_PACKAGE_LENGTH;
+        mFrameSizer.setMaxFrameLength(getMaxFrameLength());
+    }
+
+    private int getMaxFrameLength() {
+        int length = BlufiFrameSizer.getFrameLength(mTransport.getMtu());
+        if (mPackageLengthLimit > 0) {
+            length = Math.min(length, mPackageLengthLimit);
         }
+        return length;
+    }
+
+    /**
+     * Get the sizer chooses the frame length of this connection
+     *
+     * @return frame sizer
+     */
+    public BlufiFrameSizer getFrameSizer() {
+        return mFrameSizer;
+    }
+
+    /**
+     * Get the pacer keeps the gap between the frames of this connection
+     *
+     * @return pacer
+     */
+    public BlufiPacer getPacer() {
+        return mPacer;
     }
 
     public void setRequireAck(boolean requireAck) {
         mRequireAck = requireAck;
     }
 
-    private byte[] generateAESIV(int sequence) {
-        byte[] result = new byte[16];
-        for (int i = 0; i < result.length; i++) {
-            if (i == 0) {
-                result[0] = (byte) sequence;
-            } else {
-                result[i] = AES_BASE_IV[i];
-            }
+    /**
+     * Set the count of the frames can be posted before their ACKs are received, used if require ack.
+     * The default 1 is stop-and-wait. A frame whose ACK is not received in the read timeout fails the post,
+     * unless {@link #setRetransmitEnabled(boolean)} allows to retransmit it.
+     *
+     * @param size window size, at most 128
+     */
+    public void setAckWindowSize(int size) {
+        mAckWindowSize = size;
+        mAckWindow = createAckWindow(size, mRetransmitEnabled);
+    }
+
+    /**
+     * Retransmit a frame in the ack window whose ACK times out, with the same sequence. The firmware treats
+     * a repeated sequence as a sequence error, enable it only for a device accepts it, such as a simulated
+     * device with a sequence window.
+     *
+     * @param enabled retransmit or not
+     */
+    public void setRetransmitEnabled(boolean enabled) {
+        mRetransmitEnabled = enabled;
+        mAckWindow = createAckWindow(mAckWindowSize, enabled);
+    }
+
+    private static BlufiAckWindow createAckWindow(int size, boolean retransmit) {
+        size = Math.max(1, size);
+        if (size == 1 || !retransmit) {
+            return new BlufiAckWindow(size, TIMEOUT_READ, 0);
         }
+        return new BlufiAckWindow(size, TIMEOUT_ACK, MAX_RETRANSMIT);
+    }
 
-        return result;
+    public BlufiAckWindow getAckWindow() {
+        return mAckWindow;
+    }
+
+    /**
+     * Get the dispatcher routes the notifications, it counts the unmatched notifications
+     *
+     * @return dispatcher
+     */
+    public BlufiNotiDispatcher getNotiDispatcher() {
+        return mNotiDispatcher;
+    }
+
+    /**
+     * Write the frames with WRITE_TYPE_NO_RESPONSE and keep several frames in flight. The write characteristic
+     * must support write without response. It falls back to acknowledged writes when the writes fail.
+     *
+     * @param pipelined enable pipelined write or not
+     */
+    public void setPipelinedWrite(boolean pipelined) {
+        mPipelinedWrite = pipelined;
+    }
+
+    /**
+     * Set the bit length of the DH private key generated in place, a shorter key is faster to compute
+     *
+     * @param length bit length
+     */
+    public void setDHPrivateKeyLength(int length) {
+        mDHLength = length;
+    }
+
+    /**
+     * Take the DH key pairs from the pool when negotiate security
+     *
+     * @param pool the pool of the DH key pairs, null to generate key pairs in place
+     */
+    public void setDHPool(EspDHPool pool) {
+        mDHPool = pool;
+    }
+
+    /**
+     * Negotiate security with ECDH instead of DH. The protocol version does not tell whether the device
+     * supports it, enable it only for the firmware implements the ECDH negotiation, the released firmware does not.
+     *
+     * @param enabled use ECDH or not
+     */
+    public void setECDHEnabled(boolean enabled) {
+        mECDHEnabled = enabled;
+    }
+
+    /**
+     * Set the recorder of the negotiation and configure phase latencies, it can be shared by the
+     * communicators of a batch
+     *
+     * @param recorder phase recorder, null to record nothing
+     */
+    public void setPhaseRecorder(BlufiPhaseRecorder recorder) {
+        mPhaseRecorder = recorder;
+    }
+
+    public BlufiPhaseRecorder getPhaseRecorder() {
+        return mPhaseRecorder;
+    }
+
+    /**
+     * Get the frame, byte, error and crypto time counters of this session, updated as the session goes
+     *
+     * @return session stats
+     */
+    public BlufiSessionStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Get the buffer orders the notified frames, it counts the reordered and lost frames
+     *
+     * @return reorder buffer
+     */
+    public BlufiReorderBuffer getReorderBuffer() {
+        return mReorderBuffer;
     }
 
     private void notifyNotification(byte[] data) {
+        if (data != null) {
+            mStats.onFrameReceived(data);
+        }
+        mReorderBuffer.offer(data);
+    }
+
+    /**
+     * Parse the notified frame of the next sequence and add the data in the message being built
+     *
+     * @param frame notified frame
+     */
+    private void onNotificationFrame(byte[] frame) {
+        mReadSequence = toInt(frame[2]);
+        boolean errorReport = toInt(frame[0]) == getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_ERROR);
+        if (mSkipMessage && !errorReport) {
+            // The rest of a message after a gap would be decoded as a whole message, drop it up to its last frame
+            if (!new FrameCtrlData(toInt(frame[1])).hasFrag()) {
+                mSkipMessage = false;
+            }
+            mStats.onFrameDiscarded();
+            return;
+        }
+
         if (mNotiData == null) {
             mNotiData = new BlufiNotiData();
         }
-        boolean complete = parseNotification(data, mNotiData);
-        if (complete) {
-            mNotiQueue.add(mNotiData);
-            mNotiData = null;
+
+        mNotiFrameCount++;
+        int result = mFrameDecoder.decode(frame, mNotiData);
+        switch (result) {
+            case BlufiFrameDecoder.RESULT_COMPLETE:
+                mStats.onMessageReceived(mNotiFrameCount);
+                mNotiDispatcher.dispatch(mNotiData);
+                mNotiData = null;
+                mNotiFrameCount = 0;
+                break;
+            case BlufiFrameDecoder.RESULT_INVALID:
+                EspLog.w("notifyNotification invalid frame %d", mReadSequence);
+                mNotiData = null;
+                mNotiFrameCount = 0;
+                if (errorReport) {
+                    // The type is not encrypted, the device reports an error with a key it doesn't share
+                    onDeviceError(-1);
+                }
+                break;
         }
     }
 
-    private EspBleHelper.GattCallback mNotificationCallback = new EspBleHelper.GattCallback() {
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            if (characteristic == mNotifyChara) {
-                notifyNotification(characteristic.getValue());
+    /**
+     * Subscribe the notifications at the first operation, the subscription is kept until {@link #close()}
+     */
+    private void registerNotification() {
+        synchronized (mSessionLock) {
+            if (mSubscribed || mClosed) {
+                return;
             }
+
+            mTransport.setNotificationListener(this::notifyNotification);
+            mSubscribed = true;
         }
-    };
+    }
 
-    private void registerNotification() {
-        mBleHelper.registerGattCallback(mNotificationCallback);
-        mBleHelper.setCharacteristicNotification(mNotifyChara, true);
+    /**
+     * Close the session, unsubscribe the notifications. The waiting and later operations fail immediately.
+     */
+    public void close() {
+        synchronized (mSessionLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+
+            if (mSubscribed) {
+                mTransport.setNotificationListener(null);
+                mSubscribed = false;
+            }
+        }
+
+        mNotiDispatcher.close();
+        mReorderBuffer.clear();
+        mAckWindow.clear();
     }
 
-    private void unregisterNotification() {
-        mBleHelper.unregisterGattCallback(mNotificationCallback);
-        mBleHelper.setCharacteristicNotification(mNotifyChara, false);
-        mNotiQueue.clear();
+    public boolean isClosed() {
+        synchronized (mSessionLock) {
+            return mClosed;
+        }
+    }
+
+    /**
+     * The device reported an error, such as a frame out of its expected sequence. The device has dropped the
+     * frame and keeps its sequence, so the session can't recover, close it to fail the waiting operations now
+     * instead of at their timeout.
+     *
+     * @param errorCode the reported error code
+     */
+    private void onDeviceError(int errorCode) {
+        EspLog.w("onDeviceError %d", errorCode);
+        mDeviceError = errorCode;
+        close();
+    }
+
+    /**
+     * Get the error the device reported
+     *
+     * @return the error code, -1 if the report has no code, {@link #DEVICE_ERROR_NONE} if no error is reported
+     */
+    public int getDeviceError() {
+        return mDeviceError;
+    }
+
+    /**
+     * Whether the later operations can run in this session, false once it is closed or the device reported
+     * an error. An unusable session must be started over from a new connection.
+     */
+    public boolean isSessionUsable() {
+        return mDeviceError == DEVICE_ERROR_NONE && !isClosed();
     }
 
     public boolean cancelSecurity() {
@@ -196,186 +471,240 @@ public class BlufiCommunicator implements IBlufiCommunicator {
      * @return Set security successfully or failed
      */
     public BlufiSecurityResult negotiateSecurity() {
-        BlufiSecurityResult result = BlufiSecurityResult.SUCCESS;
+        return negotiateSecurityAsync().toBlocking().value();
+    }
 
-        registerNotification();
+    /**
+     * Negotiate and set communication security without blocking
+     *
+     * @return Single of the security result
+     */
+    public Single<BlufiSecurityResult> negotiateSecurityAsync() {
+        return Single.defer(() -> {
+            registerNotification();
+            clearReplies(Type.Data.SUBTYPE_NEG);
+
+            // Post public key, receive device public key
+            Single<BlufiSecurityResult> exchange = mECDHEnabled ? exchangeECDHAsync() : exchangeDHAsync();
+            return exchange
+                    .flatMap(result -> {
+                        EspLog.d("negotiateSecurity exchange result %b", result);
+                        mEncrypted = result == BlufiSecurityResult.SUCCESS;
+                        mChecksum = result == BlufiSecurityResult.SUCCESS;
+                        if (result != BlufiSecurityResult.SUCCESS) {
+                            return Single.just(result);
+                        }
+
+                        // Receive device PV success, post security mode
+                        return postSetSecurityAsync(false, false, mEncrypted, mChecksum)
+                                .flatMap(suc -> {
+                                    if (!suc) {
+                                        EspLog.w("negotiateSecurity postSetSecurity failed");
+                                        return Single.just(BlufiSecurityResult.POST_SET_MODE_FAILED);
+                                    }
+
+                                    // Post security mode success, check security result
+                                    // TODO Blufi don't support check yet
+                                    boolean devSupportCheck = false;
+                                    if (!devSupportCheck) {
+                                        return Single.just(BlufiSecurityResult.SUCCESS);
+                                    }
+                                    return checkNegSecAsync().map(check -> {
+                                        if (!check) {
+                                            EspLog.w("negotiateSecurity check failed");
+                                            return BlufiSecurityResult.CHECK_FAILED;
+                                        }
+                                        return BlufiSecurityResult.SUCCESS;
+                                    });
+                                });
+                    });
+        });
+    }
 
-        // Post P, G, Public Value
-        EspDH dhm = postNegotiateSecurity();
-        if (dhm == null) {
-            EspLog.w("negotiateSecurity postNegotiateSecurity failed");
-            result =  BlufiSecurityResult.POST_PGK_FAILED;
-        }
+    private Single<BlufiSecurityResult> exchangeDHAsync() {
+        // Generating a key pair in place takes the computation thread, not the caller
+        return Single.fromCallable(() -> {
+            long startTime = System.nanoTime();
+            EspDH dhm = mDHPool != null ? mDHPool.take() : new EspDH(mDHLength);
+            mStats.addDHTime(System.nanoTime() - startTime);
+            recordPhase(BlufiPhaseRecorder.PHASE_KEYGEN, startTime, true);
+            return dhm;
+        })
+                .subscribeOn(Schedulers.computation())
+                .flatMap(dhm -> recordNegotiateRtt(postNegotiateSecurityAsync(dhm)).flatMap(posted -> {
+                    if (!posted) {
+                        EspLog.w("negotiateSecurity postNegotiateSecurity failed");
+                        return Single.just(BlufiSecurityResult.POST_PGK_FAILED);
+                    }
 
-        // Post P, G, PV success, receive device public value
-        if (result == BlufiSecurityResult.SUCCESS) {
-            boolean readNeg = receiveNegotiateSecurity(dhm);
-            EspLog.d("negotiateSecurity readNeg " + readNeg);
-            if (readNeg) {
-                mEncrypted = true;
-                mChecksum = true;
-            } else {
-                mEncrypted = false;
-                mChecksum = false;
-                result =  BlufiSecurityResult.RECV_PV_FAILED;
-            }
-        }
+                    return receiveAsync(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG)
+                            .doOnSuccess(this::onNegotiateReceived)
+                            .observeOn(Schedulers.computation())
+                            .map(receiveData -> receiveNegotiateSecurity(dhm, receiveData) ?
+                                    BlufiSecurityResult.SUCCESS : BlufiSecurityResult.RECV_PV_FAILED);
+                }));
+    }
 
-        // Receive device PV success, post security mode
-        if (result == BlufiSecurityResult.SUCCESS) {
-            if (!postSetSecurity(false, false, mEncrypted, mChecksum)) {
-                EspLog.w("negotiateSecurity postSetSecurity failed");
-                result = BlufiSecurityResult.POST_SET_MODE_FAILED;
-            }
-        }
+    private Single<BlufiSecurityResult> exchangeECDHAsync() {
+        return Single.fromCallable(() -> {
+            long startTime = System.nanoTime();
+            EspECDH ecdh = new EspECDH();
+            mStats.addDHTime(System.nanoTime() - startTime);
+            recordPhase(BlufiPhaseRecorder.PHASE_KEYGEN, startTime, ecdh.getPublicKeyBytes() != null);
+            return ecdh;
+        })
+                .subscribeOn(Schedulers.computation())
+                .flatMap(ecdh -> recordNegotiateRtt(postNegotiateSecurityECDHAsync(ecdh)).flatMap(posted -> {
+                    if (!posted) {
+                        EspLog.w("negotiateSecurity postNegotiateSecurityECDH failed");
+                        return Single.just(BlufiSecurityResult.POST_PGK_FAILED);
+                    }
 
-        // Post security mode success, check security result
-        // TODO Blufi don't support check yet
-        boolean devSupportCheck = false;
-        if (result == BlufiSecurityResult.SUCCESS && devSupportCheck) {
-            BlufiUtils.sleep(10L);
-            if (!checkNegSec()) {
-                EspLog.w("negotiateSecurity check failed");
-                result = BlufiSecurityResult.CHECK_FAILED;
-            }
-        }
+                    return receiveAsync(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG)
+                            .doOnSuccess(this::onNegotiateReceived)
+                            .observeOn(Schedulers.computation())
+                            .map(receiveData -> receiveNegotiateSecurityECDH(ecdh, receiveData) ?
+                                    BlufiSecurityResult.SUCCESS : BlufiSecurityResult.RECV_PV_FAILED);
+                }));
+    }
 
-        unregisterNotification();
+    /**
+     * Start the negotiation round trip when the public key is posted
+     */
+    private Single<Boolean> recordNegotiateRtt(Single<Boolean> postKey) {
+        return Single.defer(() -> {
+            mNegotiateStartTime = System.nanoTime();
+            return postKey.doOnSuccess(posted -> {
+                if (!posted) {
+                    recordPhase(BlufiPhaseRecorder.PHASE_NEGOTIATE_RTT, mNegotiateStartTime, false);
+                }
+            });
+        });
+    }
 
-        return result;
+    private void onNegotiateReceived(BlufiNotiData receiveData) {
+        recordPhase(BlufiPhaseRecorder.PHASE_NEGOTIATE_RTT, mNegotiateStartTime, receiveData != null);
     }
 
     /**
-     * Generate p, g and public key, post to device
+     * Post p, g and public key to device
      *
-     * @return null is generate data failed
+     * @param dhm the DH key pair
+     * @return Single of post successfully or failed
      */
-    private EspDH postNegotiateSecurity() {
+    private Single<Boolean> postNegotiateSecurityAsync(EspDH dhm) {
         int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
 
-        final int radix = 16;
-        final int dhLength = 1024;
-        EspDH dhm;
-        String p;
-        String g;
-        String k;
-        do {
-            dhm = new EspDH(dhLength);
-            p = dhm.getP().toString(radix);
-            g = dhm.getG().toString(radix);
-            k = getPublicValue(dhm);
-        } while (k == null);
-
-        byte[] pBytes = DataUtil.hexIntStringToBytes(p);
-        byte[] gBytes = DataUtil.hexIntStringToBytes(g);
-        byte[] kBytes = DataUtil.hexIntStringToBytes(k);
-
-        LinkedList<Byte> dataList = new LinkedList<>();
+        byte[] pBytes = dhm.getPBytes();
+        byte[] gBytes = dhm.getGBytes();
+        byte[] kBytes = dhm.getPublicKeyBytes();
 
         int pgkLength = pBytes.length + gBytes.length + kBytes.length + 6;
         int pgkLen1 = (pgkLength >> 8) & 0xff;
         int pgkLen2 = pgkLength & 0xff;
-        dataList.add(NEG_SET_SEC_TOTLE_LEN);
-        dataList.add((byte) pgkLen1);
-        dataList.add((byte) pgkLen2);
-        if (!post(false, false, mRequireAck, type, dataList)) {
-            return null;
-        }
+        byte[] pgkLenData = {NEG_SET_SEC_TOTLE_LEN, (byte) pgkLen1, (byte) pgkLen2};
 
-        BlufiUtils.sleep(10);
-
-        dataList.clear();
-        dataList.add(NEG_SET_SEC_ALL_DATA);
-
-        int pLength = pBytes.length;
-        int pLen1 = (pLength >> 8) & 0xff;
-        int pLen2 = pLength & 0xff;
-        dataList.add((byte) pLen1);
-        dataList.add((byte) pLen2);
-        for (byte b : pBytes) {
-            dataList.add(b);
-        }
-
-        int gLength = gBytes.length;
-        int gLen1 = (gLength >> 8) & 0xff;
-        int gLen2 = gLength & 0xff;
-        dataList.add((byte) gLen1);
-        dataList.add((byte) gLen2);
-        for (byte b : gBytes) {
-            dataList.add(b);
-        }
+        // Lengths are big-endian
+        ByteBuffer pgkBuffer = ByteBuffer.allocate(pgkLength + 1);
+        pgkBuffer.put(NEG_SET_SEC_ALL_DATA);
+        pgkBuffer.putShort((short) pBytes.length).put(pBytes);
+        pgkBuffer.putShort((short) gBytes.length).put(gBytes);
+        pgkBuffer.putShort((short) kBytes.length).put(kBytes);
 
-        int kLength = kBytes.length;
-        int kLen1 = (kLength >> 8) & 0xff;
-        int kLen2 = kLength & 0xff;
-        dataList.add((byte) kLen1);
-        dataList.add((byte) kLen2);
-        for (byte b : kBytes) {
-            dataList.add(b);
-        }
+        return andThen(postAsync(false, false, mRequireAck, type, pgkLenData),
+                () -> postAsync(false, false, mRequireAck, type, pgkBuffer.array()));
+    }
 
-        if (!post(false, false, mRequireAck, type, dataList)) {
-            return null;
+    /**
+     * Parse the device public value and generate secret key
+     *
+     * @param dhm         the DH key pair
+     * @param receiveData negotiate response, null if timeout
+     * @return generate secret key successfully or failed
+     */
+    private boolean receiveNegotiateSecurity(EspDH dhm, BlufiNotiData receiveData) {
+        if (receiveData != null) {
+            DataUtil.printBytes(receiveData.getDataArray());
+            long startTime = System.nanoTime();
+            try {
+                dhm.generateSecretKey(receiveData.getDataArray());
+                return setSecretKey(dhm.getSecretKey());
+            } catch (InvalidKeySpecException e) {
+                e.printStackTrace();
+            } finally {
+                mStats.addDHTime(System.nanoTime() - startTime);
+            }
         }
 
-        return dhm;
+        return false;
     }
 
     /**
-     * Get public value
+     * Post the EC public key to device
      *
-     * @param dhm BlufiDHM
-     * @return PublicKey value
+     * @param ecdh the EC key pair
+     * @return Single of post successfully or failed
      */
-    private String getPublicValue(EspDH dhm) {
-        DHPublicKey publicKey = dhm.getPublicKey();
-        if (publicKey != null) {
-            BigInteger y = publicKey.getY();
-            String yStr = y.toString(16);
-            while (yStr.length() < 256) {
-                yStr = "0" + yStr;
-            }
-            return yStr;
+    private Single<Boolean> postNegotiateSecurityECDHAsync(EspECDH ecdh) {
+        int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
+
+        byte[] kBytes = ecdh.getPublicKeyBytes();
+        if (kBytes == null) {
+            return Single.just(false);
         }
 
-        return null;
+        byte[] postData = new byte[kBytes.length + 1];
+        postData[0] = NEG_SET_SEC_ECDH_PUBLIC_KEY;
+        System.arraycopy(kBytes, 0, postData, 1, kBytes.length);
+        return postAsync(false, false, mRequireAck, type, postData);
     }
 
     /**
-     * Receive negotiate response and parse secret key
+     * Parse the device EC public key and generate secret key
      *
-     * @param dhm BlufiDHM
+     * @param ecdh        EspECDH
+     * @param receiveData negotiate response, null if timeout
      * @return generate secret key successfully or failed
      */
-    private boolean receiveNegotiateSecurity(EspDH dhm) {
-        BlufiNotiData receiveData = receive();
+    private boolean receiveNegotiateSecurityECDH(EspECDH ecdh, BlufiNotiData receiveData) {
         if (receiveData != null) {
             DataUtil.printBytes(receiveData.getDataArray());
-            String receiveStr = DataUtil.bytesToString(receiveData.getDataArray());
-            BigInteger devicePublicValue;
+            long startTime = System.nanoTime();
             try {
-                devicePublicValue = new BigInteger(receiveStr, 16);
-            } catch (NumberFormatException e) {
-                e.printStackTrace();
-                return false;
-            }
-
-            try {
-                dhm.generateSecretKey(devicePublicValue);
-                if (dhm.getSecretKey() == null) {
-                    return false;
-                }
-                mSecretKeyMD5 = EspMD5.getMD5Byte(dhm.getSecretKey());
-
-                return mSecretKeyMD5 != null;
+                ecdh.generateSecretKey(receiveData.getDataArray());
+                return setSecretKey(ecdh.getSecretKey());
             } catch (InvalidKeySpecException e) {
                 e.printStackTrace();
+            } finally {
+                mStats.addDHTime(System.nanoTime() - startTime);
             }
         }
 
         return false;
     }
 
+    /**
+     * Create the session AES with the MD5 of the secret key
+     *
+     * @param secretKey negotiated secret key
+     * @return false if the secret key is null
+     */
+    private boolean setSecretKey(byte[] secretKey) {
+        if (secretKey == null) {
+            return false;
+        }
+        mSecretKeyMD5 = EspMD5.getMD5Byte(secretKey);
+        if (mSecretKeyMD5 == null) {
+            return false;
+        }
+
+        // The ciphers are created once and reused by all frames of this session
+        mAES = new EspAES(mSecretKeyMD5);
+        mFrameEncoder.setAES(mAES);
+        mFrameDecoder.setAES(mAES);
+        return true;
+    }
+
     /**
      * Post device to set security
      *
@@ -384,7 +713,8 @@ public class BlufiCommunicator implements IBlufiCommunicator {
      * @param dataEncrypted whether Data part encryted
      * @param dataChecksum  whether Data part require checksum
      */
-    private boolean postSetSecurity(boolean ctrlEncrypted, boolean ctrlChecksum, boolean dataEncrypted, boolean dataChecksum) {
+    private Single<Boolean> postSetSecurityAsync(boolean ctrlEncrypted, boolean ctrlChecksum, boolean dataEncrypted,
+                                                 boolean dataChecksum) {
         int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_SET_SEC_MODE);
         int data = 0;
         if (dataChecksum) {
@@ -402,32 +732,33 @@ public class BlufiCommunicator implements IBlufiCommunicator {
 
         byte[] postData = {(byte) data};
 
-        return post(false, true, mRequireAck, type, postData);
+        return andThen(postAsync(false, true, mRequireAck, type, postData), this::drainAcksAsync);
     }
 
-    private boolean checkNegSec() {
-        boolean result;
+    private Single<Boolean> checkNegSecAsync() {
         String checkString = RandomUtil.randomString(4);
-        EspLog.i("negotiateSecurity check string = " + checkString);
+        EspLog.i("negotiateSecurity check string = %s", checkString);
         int checkValue = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
         byte[] stringData = checkString.getBytes();
         byte[] checkData = new byte[stringData.length + 1];
         checkData[0] = NEG_CHECK_NEG_SEC;
         System.arraycopy(stringData, 0, checkData, 1, stringData.length);
-        if (post(mEncrypted, mChecksum, false, checkValue, checkData)) {
-            String checkResp = receiveCheckNegSecResponse();
-            EspLog.i("negotiateSecurity check response = " + checkResp);
-            result = checkString.equals(checkResp);
-        } else {
-            EspLog.w("negotiateSecurity post check neg sec failed");
-            result = false;
-        }
+        clearReplies(Type.Data.SUBTYPE_NEG);
+        return postAsync(mEncrypted, mChecksum, false, checkValue, checkData).flatMap(posted -> {
+            if (!posted) {
+                EspLog.w("negotiateSecurity post check neg sec failed");
+                return Single.just(false);
+            }
 
-        return result;
+            return receiveAsync(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG).map(receiveData -> {
+                String checkResp = parseCheckNegSecResponse(receiveData);
+                EspLog.i("negotiateSecurity check response = %s", checkResp);
+                return checkString.equals(checkResp);
+            });
+        });
     }
 
-    private String receiveCheckNegSecResponse() {
-        BlufiNotiData receiveData = receive();
+    private String parseCheckNegSecResponse(BlufiNotiData receiveData) {
         if (receiveData == null) {
             return null;
         }
@@ -454,24 +785,35 @@ public class BlufiCommunicator implements IBlufiCommunicator {
         return new String(strData);
     }
 
-
+    /**
+     * Get the device protocol version
+     *
+     * @return version response
+     */
     public BlufiVersionResponse getVersion() {
-        registerNotification();
-
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_VERSION);
-        post(mEncrypted, mChecksum, false, type, (byte[]) null);
-
-        BlufiVersionResponse result = receiveVersion();
-
-        unregisterNotification();
+        return getVersionAsync().toBlocking().value();
+    }
 
-        return result;
+    /**
+     * Get the device protocol version without blocking
+     *
+     * @return Single of the version response
+     */
+    public Single<BlufiVersionResponse> getVersionAsync() {
+        return Single.defer(() -> {
+            registerNotification();
+            clearReplies(Type.Data.SUBTYPE_VERSION);
+
+            int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_VERSION);
+            return postAsync(mEncrypted, mChecksum, false, type, null)
+                    .flatMap(posted -> receiveAsync(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_VERSION))
+                    .map(this::parseVersion);
+        });
     }
 
-    private BlufiVersionResponse receiveVersion() {
+    private BlufiVersionResponse parseVersion(BlufiNotiData response) {
         BlufiVersionResponse result = new BlufiVersionResponse();
 
-        BlufiNotiData response = receive();
         if (response == null) {
             result.setResultCode(BlufiVersionResponse.RESULT_GET_VERSION_FAILED);
             return result;
@@ -512,34 +854,43 @@ public class BlufiCommunicator implements IBlufiCommunicator {
      * @return result string
      */
     public BlufiStatusResponse getStatus() {
-        registerNotification();
-
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_STATUS);
-        post(mEncrypted, mChecksum, false, type, (byte[]) null);
-        BlufiUtils.sleep(10);
-
-        BlufiStatusResponse result = new BlufiStatusResponse();
-        receiveWifiState(result);
-
-        unregisterNotification();
+        return getStatusAsync().toBlocking().value();
+    }
 
-        return result;
+    /**
+     * Get device current status without blocking
+     *
+     * @return Single of the status response
+     */
+    public Single<BlufiStatusResponse> getStatusAsync() {
+        return Single.defer(() -> {
+            registerNotification();
+            clearReplies(Type.Data.SUBTYPE_WIFI_CONNECTION_STATE);
+
+            int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_STATUS);
+            BlufiStatusResponse result = new BlufiStatusResponse();
+            return postAsync(mEncrypted, mChecksum, false, type, null)
+                    .flatMap(posted -> receiveWifiStateAsync(result))
+                    .map(received -> result);
+        });
     }
 
     /**
      * Receive wifi state information and set data in response
      *
      * @param response store the received data
-     * @return receive wifi state successfully or not
+     * @return Single of receive wifi state successfully or not
      */
-    private boolean receiveWifiState(BlufiStatusResponse response) {
-        BlufiNotiData stateData = receive();
-        if (stateData != null) {
-            return parseWifiState(response, stateData);
-        } else {
-            response.setResultCode(BlufiStatusResponse.RESULT_TIMEOUT);
-            return false;
-        }
+    private Single<Boolean> receiveWifiStateAsync(BlufiStatusResponse response) {
+        return recordPhaseAsync(BlufiPhaseRecorder.PHASE_WIFI_STATE,
+                receiveAsync(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_WIFI_CONNECTION_STATE).map(stateData -> {
+                    if (stateData != null) {
+                        return parseWifiState(response, stateData);
+                    } else {
+                        response.setResultCode(BlufiStatusResponse.RESULT_TIMEOUT);
+                        return false;
+                    }
+                }));
     }
 
     /**
@@ -630,7 +981,7 @@ public class BlufiCommunicator implements IBlufiCommunicator {
                 response.setSoftAPSSID(softapSSID);
                 return "SUBTYPE_SOFTAP_WIFI_SSID " + softapSSID;
             case Type.Data.SUBTYPE_STA_WIFI_BSSID:
-                String staBssid = DataUtil.bytesToString(data);
+                String staBssid = HexUtil.encode(data);
                 response.setStaBSSID(staBssid);
                 return "SUBTYPE_STA_WIFI_BSSID " + staBssid;
             case Type.Data.SUBTYPE_STA_WIFI_SSID:
@@ -653,82 +1004,104 @@ public class BlufiCommunicator implements IBlufiCommunicator {
      * @return configure result
      */
     public BlufiStatusResponse configure(final BlufiConfigureParams params, boolean requireResponse) {
-        registerNotification();
-
-        BlufiStatusResponse result = new BlufiStatusResponse();
-
-        int opMode = params.getOpMode();
-        boolean postSuc = postDeviceMode(opMode);
-        if (!postSuc) {
-            result.setResultCode(BlufiStatusResponse.RESULT_POST_FAILED);
-        } else {
-            BlufiUtils.sleep(10);
-
-            switch (opMode) {
-                case OP_MODE_NULL:
-                    if (requireResponse) {
-                        receiveWifiState(result);
-                    }
-                    break;
-                case OP_MODE_STA:
-                    postSuc = postStaWifiInfo(params);
-                    if (!postSuc) {
-                        result.setResultCode(BlufiStatusResponse.RESULT_POST_FAILED);
-                        break;
-                    }
-                    BlufiUtils.sleep(10);
-
-                    if (requireResponse) {
-                        receiveWifiState(result);
-                    } else {
-                        result.setResultCode(BlufiStatusResponse.RESULT_SUCCESS);
-                    }
-                    break;
-                case OP_MODE_SOFTAP:
-                    receiveWifiState(result);
-                    postSuc = postSoftAPInfo(params, result);
-                    if (!postSuc) {
-                        result.setResultCode(BlufiStatusResponse.RESULT_POST_FAILED);
-                        break;
-                    }
-                    BlufiUtils.sleep(10);
-
-                    break;
-                case OP_MODE_STASOFTAP:
-                    receiveWifiState(result);
-                    postSuc = postSoftAPInfo(params, result);
-                    if (!postSuc) {
-                        result.setResultCode(BlufiStatusResponse.RESULT_POST_FAILED);
-                        break;
-                    }
-                    BlufiUtils.sleep(10);
-
-                    postSuc = postStaWifiInfo(params);
-                    if (!postSuc) {
-                        result.setResultCode(BlufiStatusResponse.RESULT_POST_FAILED);
-                        break;
-                    }
-                    BlufiUtils.sleep(10);
-
-                    if (requireResponse) {
-                        receiveWifiState(result);
-                    }
-                    break;
-                default:
-                    break;
-            }
-        }
-
-        unregisterNotification();
+        return configureAsync(params, requireResponse).toBlocking().value();
+    }
 
-        return result;
+    /**
+     * Configure the device without blocking
+     *
+     * @param params config information
+     * @return Single of the configure result
+     */
+    public Single<BlufiStatusResponse> configureAsync(final BlufiConfigureParams params, final boolean requireResponse) {
+        return Single.defer(() -> {
+            registerNotification();
+            clearReplies(Type.Data.SUBTYPE_WIFI_CONNECTION_STATE);
+
+            BlufiStatusResponse result = new BlufiStatusResponse();
+
+            int opMode = params.getOpMode();
+            return postDeviceModeAsync(opMode)
+                    .flatMap(postSuc -> {
+                        if (!postSuc) {
+                            result.setResultCode(BlufiStatusResponse.RESULT_POST_FAILED);
+                            return Single.just(result);
+                        }
+
+                        switch (opMode) {
+                            case OP_MODE_NULL:
+                                if (requireResponse) {
+                                    return receiveWifiStateAsync(result).map(received -> result);
+                                }
+                                return Single.just(result);
+                            case OP_MODE_STA:
+                                return postStaWifiInfoAsync(params).flatMap(suc -> {
+                                    if (!suc) {
+                                        result.setResultCode(BlufiStatusResponse.RESULT_POST_FAILED);
+                                        return Single.just(result);
+                                    }
+
+                                    if (requireResponse) {
+                                        return receiveWifiStateAsync(result).map(received -> result);
+                                    } else {
+                                        result.setResultCode(BlufiStatusResponse.RESULT_SUCCESS);
+                                        return Single.just(result);
+                                    }
+                                });
+                            case OP_MODE_SOFTAP:
+                                return receiveWifiStateAsync(result)
+                                        .flatMap(received -> postSoftAPInfoAsync(params, result))
+                                        .map(suc -> {
+                                            if (!suc) {
+                                                result.setResultCode(BlufiStatusResponse.RESULT_POST_FAILED);
+                                            }
+                                            return result;
+                                        });
+                            case OP_MODE_STASOFTAP:
+                                return receiveWifiStateAsync(result)
+                                        .flatMap(received -> postSoftAPInfoAsync(params, result))
+                                        .flatMap(suc -> {
+                                            if (!suc) {
+                                                result.setResultCode(BlufiStatusResponse.RESULT_POST_FAILED);
+                                                return Single.just(false);
+                                            }
+                                            return postStaWifiInfoAsync(params);
+                                        })
+                                        .flatMap(suc -> {
+                                            if (!suc) {
+                                                result.setResultCode(BlufiStatusResponse.RESULT_POST_FAILED);
+                                                return Single.just(result);
+                                            }
+
+                                            if (requireResponse) {
+                                                return receiveWifiStateAsync(result).map(received -> result);
+                                            }
+                                            return Single.just(result);
+                                        });
+                            default:
+                                return Single.just(result);
+                        }
+                    });
+        });
     }
 
-    private boolean postDeviceMode(int deviceMode) {
+    private Single<Boolean> postDeviceModeAsync(int deviceMode) {
         int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_SET_OP_MODE);
         byte[] data = {(byte) deviceMode};
 
-        return post(mEncrypted, mChecksum, mRequireAck, type, data);
+        return recordPhaseAsync(BlufiPhaseRecorder.PHASE_CONFIGURE_OP_MODE,
+                postAsync(mEncrypted, mChecksum, mRequireAck, type, data));
+    }
+
+    /**
+     * Post data and receive the wifi state
+     *
+     * @return Single of post and receive successfully or not
+     */
+    private Single<Boolean> postAndReceiveWifiStateAsync(int type, byte[] data, BlufiStatusResponse response) {
+        return recordPhaseAsync(BlufiPhaseRecorder.PHASE_CONFIGURE_SOFTAP,
+                andThen(postAsync(mEncrypted, mChecksum, mRequireAck, type, data),
+                        () -> receiveWifiStateAsync(response)));
     }
 
     /**
@@ -736,71 +1109,47 @@ public class BlufiCommunicator implements IBlufiCommunicator {
      *
      * @param params   config information
      * @param response config response
-     * @return post state and receive response successfully or not
+     * @return Single of post state and receive response successfully or not
      */
-    private boolean postSoftAPInfo(BlufiConfigureParams params, BlufiStatusResponse response) {
-        boolean postSuc;
+    private Single<Boolean> postSoftAPInfoAsync(BlufiConfigureParams params, BlufiStatusResponse response) {
+        Single<Boolean> result = Single.just(true);
 
         String ssid = params.getSoftAPSSID();
-        if (!TextUtils.isEmpty(ssid)) {
+        if (!isEmpty(ssid)) {
             int ssidType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_WIFI_SSID);
-            postSuc = post(mEncrypted, mChecksum, mRequireAck, ssidType, params.getSoftAPSSID().getBytes());
-            BlufiUtils.sleep(10);
-
-            if (!postSuc || !receiveWifiState(response)) {
-                return false;
-            }
+            result = andThen(result, () -> postAndReceiveWifiStateAsync(ssidType, ssid.getBytes(), response));
         }
 
         String password = params.getSoftAPPassword();
-        if (!TextUtils.isEmpty(password)) {
+        if (!isEmpty(password)) {
             int pwdType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD);
-            postSuc = post(mEncrypted, mChecksum, mRequireAck, pwdType, password.getBytes());
-            BlufiUtils.sleep(10);
-
-            if (!postSuc || !receiveWifiState(response)) {
-                return false;
-            }
+            result = andThen(result, () -> postAndReceiveWifiStateAsync(pwdType, password.getBytes(), response));
         }
 
         int channel = params.getSoftAPChannel();
         if (channel > 0) {
             int channelType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_CHANNEL);
-            postSuc = post(mEncrypted, mChecksum, mRequireAck, channelType, new byte[]{(byte) channel});
-            BlufiUtils.sleep(10);
-
-            if (!postSuc || !receiveWifiState(response)) {
-                return false;
-            }
+            result = andThen(result,
+                    () -> postAndReceiveWifiStateAsync(channelType, new byte[]{(byte) channel}, response));
         }
 
         int maxConn = params.getSoftAPMaxConnection();
         if (maxConn > 0) {
             int maxConnType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT);
-            postSuc = post(mEncrypted, mChecksum, mRequireAck, maxConnType, new byte[]{(byte) maxConn});
-            BlufiUtils.sleep(10);
-
-            if (!postSuc || !receiveWifiState(response)) {
-                return false;
-            }
+            result = andThen(result,
+                    () -> postAndReceiveWifiStateAsync(maxConnType, new byte[]{(byte) maxConn}, response));
         }
 
         int securityType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_AUTH_MODE);
         byte[] securityBytes = {(byte) params.getSoftAPSecurity()};
-        postSuc = post(mEncrypted, mChecksum, mRequireAck, securityType, securityBytes);
-        return postSuc && receiveWifiState(response);
+        return andThen(result, () -> postAndReceiveWifiStateAsync(securityType, securityBytes, response));
     }
 
-    private boolean postStaWifiInfo(BlufiConfigureParams params) {
-        boolean result;
-
+    private Single<Boolean> postStaWifiInfoAsync(BlufiConfigureParams params) {
         int configureSeqType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
-        result = post(mEncrypted, mChecksum, mRequireAck, configureSeqType,
-                new byte[]{NEG_SET_CONFIGURE_SEQUENCE, (byte) params.getConfigureSequence()});
-        if (!result) {
-            return false;
-        }
-        BlufiUtils.sleep(10);
+        Single<Boolean> result = recordPhaseAsync(BlufiPhaseRecorder.PHASE_CONFIGURE_SEQUENCE,
+                postAsync(mEncrypted, mChecksum, mRequireAck, configureSeqType,
+                        new byte[]{NEG_SET_CONFIGURE_SEQUENCE, (byte) params.getConfigureSequence()}));
 
 //        if (params.getMeshID() != null) {
 //            int tokenType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
@@ -808,120 +1157,28 @@ public class BlufiCommunicator implements IBlufiCommunicator {
 //            byte[] postTokenBytes = new byte[tokenBytes.length + 1];
 //            postTokenBytes[0] = NEG_SET_MESH_ID;
 //            System.arraycopy(tokenBytes, 0, postTokenBytes, 1, tokenBytes.length);
-//            result = post(mEncrypted, mChecksum, mRequireAck, tokenType, postTokenBytes);
-//            if (!result) {
-//                return false;
-//            }
-//            BlufiUtils.sleep(10);
+//            result = andThen(result, () -> postAsync(mEncrypted, mChecksum, mRequireAck, tokenType, postTokenBytes));
 //        }
 
         if (params.getWifiChannel() > 0) {
             int channelType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
             byte channelByte = (byte) params.getWifiChannel();
-            result = post(mEncrypted, mChecksum, mRequireAck, channelType, new byte[]{NEG_SET_WIFI_CHANNEL, channelByte});
-            if (!result) {
-                return false;
-            }
-            BlufiUtils.sleep(10);
+            result = andThen(result, () -> recordPhaseAsync(BlufiPhaseRecorder.PHASE_CONFIGURE_CHANNEL,
+                    postAsync(mEncrypted, mChecksum, mRequireAck, channelType,
+                            new byte[]{NEG_SET_WIFI_CHANNEL, channelByte})));
         }
 
         int ssidType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_STA_WIFI_SSID);
-        result = post(mEncrypted, mChecksum, mRequireAck, ssidType, params.getStaSSID().getBytes());
-        if (!result) {
-            return false;
-        }
-        BlufiUtils.sleep(10);
+        result = andThen(result, () -> recordPhaseAsync(BlufiPhaseRecorder.PHASE_CONFIGURE_STA_SSID,
+                postAsync(mEncrypted, mChecksum, mRequireAck, ssidType, params.getStaSSID().getBytes())));
 
         int pwdType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_STA_WIFI_PASSWORD);
-        result = post(mEncrypted, mChecksum, mRequireAck, pwdType, params.getStaPassword().getBytes());
-        if (!result) {
-            return false;
-        }
-        BlufiUtils.sleep(10);
+        result = andThen(result, () -> recordPhaseAsync(BlufiPhaseRecorder.PHASE_CONFIGURE_STA_PASSWORD,
+                postAsync(mEncrypted, mChecksum, mRequireAck, pwdType, params.getStaPassword().getBytes())));
 
         int comfirmType = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_CONNECT_WIFI);
-        return post(false, false, mRequireAck, comfirmType, (byte[]) null);
-    }
-
-    /**
-     * Parse the response data and add the parsed data in BlufiNotiData
-     *
-     * @param response     date received
-     * @param notification store the data
-     * @return parse notification successfully or failed
-     */
-    private boolean parseNotification(byte[] response, BlufiNotiData notification) {
-        if (response == null) {
-            return true;
-        }
-
-        if (response.length < 4) {
-            return true;
-        }
-
-        int sequence = toInt(response[2]);
-        if (sequence == mReadSequence + 1) {
-            mReadSequence = sequence;
-        } else {
-            return true;
-        }
-
-        int type = toInt(response[0]);
-        int pkgType = getPackageType(type);
-        int subType = getSubType(type);
-        notification.setType(type);
-        notification.setPkgType(pkgType);
-        notification.setSubType(subType);
-
-        int frameCtrl = toInt(response[1]);
-        notification.setFrameCtrl(frameCtrl);
-        FrameCtrlData frameCtrlData = new FrameCtrlData(frameCtrl);
-
-        int dataLen = toInt(response[3]);
-        byte[] dataBytes = new byte[dataLen];
-        int dataOffset = 4;
-        try {
-            System.arraycopy(response, dataOffset, dataBytes, 0, dataLen);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        }
-
-        if (frameCtrlData.isEncrypted()) {
-            EspAES espAES = new EspAES(mSecretKeyMD5, generateAESIV(sequence));
-            dataBytes = espAES.decrypt(dataBytes);
-        }
-
-        if (frameCtrlData.isChecksum()) {
-            int respChecksum1 = toInt(response[response.length - 1]);
-            int respChecksum2 = toInt(response[response.length - 2]);
-
-            List<Byte> checkByteList = new LinkedList<>();
-            checkByteList.add((byte) sequence);
-            checkByteList.add((byte) dataLen);
-            for (byte b : dataBytes) {
-                checkByteList.add(b);
-            }
-            int checksum = EspCRC.caluCRC(0, DataUtil.byteListToArray(checkByteList));
-
-            int calcChecksum1 = (checksum >> 8) & 0xff;
-            int calcChecksum2 = checksum & 0xff;
-            if (respChecksum1 != calcChecksum1 || respChecksum2 != calcChecksum2) {
-                return false;
-            }
-        }
-
-        if (frameCtrlData.hasFrag()) {
-            int totleLen = dataBytes[0] | (dataBytes[1] << 8);
-            dataOffset = 2;
-        } else {
-            dataOffset = 0;
-        }
-        for (int i = dataOffset; i < dataBytes.length; i++) {
-            notification.addData(dataBytes[i]);
-        }
-
-        return !frameCtrlData.hasFrag();
+        return andThen(result, () -> recordPhaseAsync(BlufiPhaseRecorder.PHASE_CONFIGURE_CONNECT_WIFI,
+                andThen(postAsync(false, false, mRequireAck, comfirmType, null), this::drainAcksAsync)));
     }
 
     public void deauthenticate(String macAddress) {
@@ -931,233 +1188,289 @@ public class BlufiCommunicator implements IBlufiCommunicator {
     }
 
     public void deauthenticate(List<String> macAddressList) {
+        deauthenticateAsync(macAddressList).toBlocking().value();
+    }
+
+    /**
+     * Deauthenticate the stations without blocking
+     *
+     * @param macAddressList station mac addresses
+     * @return Single of post successfully or not
+     */
+    public Single<Boolean> deauthenticateAsync(List<String> macAddressList) {
         // TODO
         if (macAddressList.isEmpty()) {
-            return;
+            return Single.just(true);
         }
 
-        registerNotification();
+        return Single.defer(() -> {
+            registerNotification();
 
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_DEAUTHENTICATE);
-        List<Byte> dataList = new LinkedList<>();
-        for (String mac : macAddressList) {
-            byte[] bytes = DataUtil.hexIntStringToBytes(mac);
-            for (byte b : bytes) {
-                dataList.add(b);
+            int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_DEAUTHENTICATE);
+            byte[][] macBytes = new byte[macAddressList.size()][];
+            for (int i = 0; i < macBytes.length; i++) {
+                macBytes[i] = HexUtil.decode(macAddressList.get(i));
             }
-        }
-
-        post(mEncrypted, mChecksum, false, type, dataList);
 
-        unregisterNotification();
+            return andThen(postAsync(mEncrypted, mChecksum, false, type, DataUtil.mergeBytes(macBytes)),
+                    this::drainAcksAsync);
+        });
     }
 
-
     /**
-     * Receive the data from the cache queue
+     * Run the next step if the previous step succeeded
      *
-     * @return BlufiNotiData
+     * @param first previous step
+     * @param next  create the next step
+     * @return Single of both steps successfully or not
      */
-    private BlufiNotiData receive() {
-        try {
-            BlufiNotiData notiData = mNotiQueue.poll(TIMEOUT_READ, TimeUnit.MILLISECONDS);
-            if (notiData == null) {
-                return null;
-            }
-
-            BlufiNotiData result = new BlufiNotiData();
-            result.setType(notiData.getType());
-            result.setPkgType(notiData.getPkgType());
-            result.setSubType(notiData.getSubType());
-            result.setFrameCtrl(notiData.getFrameCtrl());
-            result.addData(notiData.getDataArray());
-
-            notiData.clear();
+    private static Single<Boolean> andThen(Single<Boolean> first, Func0<Single<Boolean>> next) {
+        return first.flatMap(suc -> suc ? next.call() : Single.just(false));
+    }
 
-            return result;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * Record the latency of a phase
+     *
+     * @param startTime start time got by {@link System#nanoTime()}
+     * @param success   false records the latency as the phase name with " failed"
+     */
+    private void recordPhase(String phase, long startTime, boolean success) {
+        BlufiPhaseRecorder recorder = mPhaseRecorder;
+        if (recorder != null) {
+            recorder.recordSince(success ? phase : phase + " failed", startTime);
         }
+    }
 
-        return null;
+    /**
+     * Record the time from the subscription to the result as the phase
+     */
+    private Single<Boolean> recordPhaseAsync(String phase, Single<Boolean> step) {
+        if (mPhaseRecorder == null) {
+            return step;
+        }
+        return Single.defer(() -> {
+            long startTime = System.nanoTime();
+            return step.doOnSuccess(suc -> recordPhase(phase, startTime, suc));
+        });
     }
 
-    private boolean receiveAck(int sequence) {
-        BlufiNotiData receiveData = receive();
-        if (receiveData == null) {
-            return false;
-        }
-        List<Byte> dataList = receiveData.getDataList();
-        if (dataList.size() == 0) {
-            return false;
-        }
-        int ack = dataList.get(0);
+    /**
+     * Receive the notification of the type, the notifications of other types don't complete it
+     *
+     * @param pkgType package type
+     * @param subType subtype
+     * @return Single of BlufiNotiData, null if timeout
+     */
+    private Single<BlufiNotiData> receiveAsync(int pkgType, int subType) {
+        // The device handles the request after it received all the frames
+        return drainAcksAsync()
+                .flatMap(drained -> {
+                    if (!drained) {
+                        return Single.just((BlufiNotiData) null);
+                    }
 
-        return ack == sequence;
+                    // The notification thread drops its reference once the data is queued, so the receiver owns it
+                    return mNotiDispatcher.take(pkgType, subType, TIMEOUT_READ, TimeUnit.MILLISECONDS);
+                });
     }
 
     /**
-     * Generate the byte array to post
+     * Drop the replies of the data subtype left by an earlier operation, called before posting the request
      *
-     * @param type       type value
-     * @param frameCtrl  fc value
-     * @param sequence   sequence
-     * @param dataLength length of data
-     * @param data       data Byte List
-     * @return byte array
+     * @param subType data subtype of the reply
      */
-    private byte[] getPostBytes(int type, int frameCtrl, int sequence, int dataLength, List<Byte> data) {
-        LinkedList<Byte> byteList = new LinkedList<>();
-        byteList.add((byte) type);
-        byteList.add((byte) frameCtrl);
-        byteList.add((byte) sequence);
-        byteList.add((byte) dataLength);
-
-        FrameCtrlData frameCtrlData = new FrameCtrlData(frameCtrl);
-        byte[] checksumBytes = null;
-        if (frameCtrlData.isChecksum()) {
-            List<Byte> checkByteList = new LinkedList<>();
-            checkByteList.add((byte) sequence);
-            checkByteList.add((byte) dataLength);
-            if (data != null) {
-                checkByteList.addAll(data);
-            }
-            byte[] checkBytes = new byte[checkByteList.size()];
-            for (int i = 0; i < checkBytes.length; i++) {
-                checkBytes[i] = checkByteList.get(i);
-            }
-            int checksum = EspCRC.caluCRC(0, checkBytes);
-            byte checksumByte1 = (byte) (checksum & 0xff);
-            byte checksumByte2 = (byte) ((checksum >> 8) & 0xff);
-            checksumBytes = new byte[]{checksumByte1, checksumByte2};
+    private void clearReplies(int subType) {
+        mNotiDispatcher.clear(Type.Data.PACKAGE_VALUE, subType);
+    }
+
+    /**
+     * Wait for the ACKs of all the outstanding frames, the wait completes in the ACK notification
+     *
+     * @return Single of false if a frame is not acknowledged
+     */
+    private Single<Boolean> drainAcksAsync() {
+        if (mAckWindow.isEmpty()) {
+            return Single.just(true);
         }
 
-        if (frameCtrlData.isEncrypted() && data != null) {
-            byte[] unEncrytedData = new byte[data.size()];
-            for (int i = 0; i < unEncrytedData.length; i++) {
-                unEncrytedData[i] = data.get(i);
-            }
+        return mAckWindow.awaitAllAsync(mRetransmitWriter, Schedulers.computation());
+    }
 
-            EspAES espAES = new EspAES(mSecretKeyMD5, generateAESIV(sequence));
-            byte[] encrytedData = espAES.encrypt(unEncrytedData);
-            List<Byte> encrytedDataList = new LinkedList<>();
-            for (byte b : encrytedData) {
-                encrytedDataList.add(b);
+    /**
+     * Write a frame posted with require ack, wait if the ack window is full
+     */
+    private Single<Boolean> writeAckFrameAsync(int sequence, byte[] frame) {
+        mAckWindow.add(sequence, frame);
+        return writeFrameAsync(frame).flatMap(suc -> {
+            if (!suc) {
+                mAckWindow.clear();
+                return Single.just(false);
             }
-            data = encrytedDataList;
-        }
-        if (data != null) {
-            byteList.addAll(data);
-        }
 
-        if (checksumBytes != null) {
-            byteList.add(checksumBytes[0]);
-            byteList.add(checksumBytes[1]);
-        }
-
-        byte[] result = new byte[byteList.size()];
-        for (int i = 0; i < byteList.size(); i++) {
-            result[i] = byteList.get(i);
-        }
+            if (mAckWindow.getOutstandingCount() < mAckWindow.getSize()) {
+                return Single.just(true);
+            }
+            return mAckWindow.awaitRoomAsync(mRetransmitWriter, Schedulers.computation());
+        });
+    }
 
-        return result;
+    /**
+     * Post a message without blocking
+     *
+     * @param data message data, null if the message has no data
+     * @return Single of post successfully or not
+     */
+    private Single<Boolean> postAsync(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data) {
+        return Single.defer(() -> {
+            // The MTU can change after the communicator is created
+            mFrameSizer.setMaxFrameLength(getMaxFrameLength());
+
+            PostMessage message = new PostMessage(encrypt, checksum, requireAck, type, data);
+            return writeFramesAsync(message)
+                    .doOnSuccess(suc -> mStats.onMessageSent(message.frameCount))
+                    .flatMap(suc -> suc ? flushFramesAsync() : Single.just(false));
+        });
     }
 
-    private boolean postNonData(boolean encrypt, boolean checksum, boolean requireAck, int type) {
-        int frameCtrl = getFrameCTRLValue(encrypt, checksum, DIRECTION_OUTPUT, requireAck, false);
-        int sequence = generateSendSequence();
-        int dataLen = 0;
+    /**
+     * A message being posted, a frame is encoded from the offset when it is to be written
+     */
+    private static class PostMessage {
+        final boolean encrypt;
+        final boolean checksum;
+        final boolean requireAck;
+        final int type;
+        final byte[] data;
 
-        byte[] postBytes = getPostBytes(type, frameCtrl, sequence, dataLen, null);
-        boolean writeSuc = mBleHelper.write(mWriteChara, postBytes);
-        if (!writeSuc) {
-            return false;
+        int offset = 0;
+        int frameCount = 0;
+
+        PostMessage(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data) {
+            this.encrypt = encrypt;
+            this.checksum = checksum;
+            this.requireAck = requireAck;
+            this.type = type;
+            this.data = data;
         }
-        if (requireAck) {
-            return receiveAck(sequence);
-        } else {
-            return true;
+
+        boolean isDone() {
+            return data == null ? frameCount > 0 : offset >= data.length;
         }
     }
 
-    private boolean postContainData(boolean encrypt, boolean checksum, boolean requireAck, int type, List<Byte> dataList) {
-        LinkedList<Byte> allDataList = new LinkedList<>();
-        allDataList.addAll(dataList);
+    /**
+     * Encode the frame of the message from its offset
+     *
+     * @param sequence    the sequence of the frame
+     * @param frameLength max length of the frame
+     * @return frame, null if encode failed
+     */
+    private byte[] encodeFrame(PostMessage message, int sequence, int frameLength) {
+        if (message.data == null) {
+            int frameCtrl = getFrameCTRLValue(message.encrypt, message.checksum, DIRECTION_OUTPUT,
+                    message.requireAck, false);
+            return mFrameEncoder.encode(message.type, frameCtrl, sequence);
+        }
+
+        int remainLen = message.data.length - message.offset;
+        boolean frag = remainLen > BlufiFrameSizer.getDataCapacity(frameLength, message.checksum, false);
+        int postDataLen = frag ? BlufiFrameSizer.getDataCapacity(frameLength, message.checksum, true) : remainLen;
+        int frameCtrl = getFrameCTRLValue(message.encrypt, message.checksum, DIRECTION_OUTPUT,
+                message.requireAck, frag);
+        return mFrameEncoder.encode(message.type, frameCtrl, sequence, remainLen, message.data, message.offset,
+                postDataLen);
+    }
 
-        LinkedList<Byte> postDataList = new LinkedList<>();
+    /**
+     * Write the frames of a message from its offset, each frame takes the next sequence when it is written
+     */
+    private Single<Boolean> writeFramesAsync(PostMessage message) {
+        if (message.isDone()) {
+            return Single.just(true);
+        }
 
-        while (!allDataList.isEmpty()) {
-            Byte b = allDataList.poll();
-            postDataList.add(b);
-            int postDataLengthLimit = mPackageLengthLimit - PACKAGE_HEADER_LENGTH;
-            if (checksum) {
-                postDataLengthLimit -= 1;
-            }
-            if (postDataList.size() >= postDataLengthLimit) {
-                boolean frag = !allDataList.isEmpty();
-                if (frag) {
-                    int frameCtrl = getFrameCTRLValue(encrypt, checksum, DIRECTION_OUTPUT, requireAck, true);
-                    int sequence = generateSendSequence();
-                    int totleLen = postDataList.size() + allDataList.size();
-                    byte totleLen1 = (byte) (totleLen & 0xff);
-                    byte totleLen2 = (byte) ((totleLen >> 8) & 0xff);
-                    postDataList.add(0, totleLen2);
-                    postDataList.add(0, totleLen1);
-                    int posDatatLen = postDataList.size();
-
-                    byte[] postBytes = getPostBytes(type, frameCtrl, sequence, posDatatLen, postDataList);
-                    boolean writeSuc = mBleHelper.write(mWriteChara, postBytes);
-                    postDataList.clear();
-                    if (!writeSuc) {
-                        return false;
-                    }
-                    if (requireAck && !receiveAck(sequence)) {
-                        return false;
-                    }
+        return writeMessageFrameAsync(message, generateSendSequence());
+    }
 
-                    BlufiUtils.sleep(10L);
-                }
-            }
+    private Single<Boolean> writeMessageFrameAsync(PostMessage message, int sequence) {
+        byte[] frame = encodeFrame(message, sequence, mFrameSizer.getFrameLength());
+        if (frame == null) {
+            return Single.just(false);
         }
 
-        if (!postDataList.isEmpty()) {
-            int frameCtrl = getFrameCTRLValue(encrypt, checksum, DIRECTION_OUTPUT, requireAck, false);
-            int sequence = generateSendSequence();
-            int postDataLen = postDataList.size();
-
-            byte[] postBytes = getPostBytes(type, frameCtrl, sequence, postDataLen, postDataList);
-            boolean writeSuc = mBleHelper.write(mWriteChara, postBytes);
-            postDataList.clear();
-            if (!writeSuc) {
-                return false;
+        Single<Boolean> write = message.requireAck ? writeAckFrameAsync(toInt(frame[2]), frame)
+                : writeFrameAsync(frame);
+        return write.flatMap(suc -> {
+            if (suc) {
+                message.frameCount++;
+                message.offset += BlufiSessionStats.getPayloadLength(frame);
+                return writeFramesAsync(message);
             }
-            if (requireAck && !receiveAck(sequence)) {
-                return false;
+            if (message.requireAck || message.data == null || !mTransport.isLastWriteTooLong()
+                    || frame.length <= mFrameSizer.getFrameLength()) {
+                // The device may have received the frame, writing its sequence again would desync the session
+                return Single.just(false);
             }
-        }
 
-        return true;
+            // The link refused the frame for its length so the device has not seen it, split its data in shorter
+            // frames, the first one keeps its sequence
+            EspLog.w("writeFrames frame length %d failed, try %d", frame.length, mFrameSizer.getFrameLength());
+            return writeMessageFrameAsync(message, sequence);
+        });
     }
 
-    private boolean post(boolean encrypt, boolean checksum, boolean requireAck, int type, List<Byte> dataList) {
-        if (dataList != null) {
-            return postContainData(encrypt, checksum, requireAck, type, dataList);
+    private boolean isPipelined() {
+        return mPipelinedWrite && mTransport.isPipelinedWriteAvailable();
+    }
+
+    private void onFrameWritten(byte[] frame, boolean result) {
+        mPacer.onWriteComplete(result);
+        mFrameSizer.onWriteComplete(frame.length, result);
+        if (result) {
+            mStats.onFrameSent(frame);
         } else {
-            return postNonData(encrypt, checksum, requireAck, type);
+            mStats.onWriteFailure();
         }
     }
 
-    private boolean post(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data) {
-        LinkedList<Byte> allDataList;
-        if (data == null) {
-            allDataList = null;
-        } else {
-            allDataList = new LinkedList<>();
-            for (byte b : data) {
-                allDataList.add(b);
+    private Single<Boolean> writeFrameAsync(byte[] frame) {
+        return Single.defer(() -> {
+            Single<Boolean> write;
+            if (isPipelined()) {
+                // The pipelined write returns once the frame is handed to the stack, it waits on an io thread
+                // only if the write window is full
+                write = Single.fromCallable(() -> {
+                    if (mTransport.writeNoResponse(frame)) {
+                        return true;
+                    }
+                    EspLog.w("writeFrame pipelined write failed, write with response");
+                    mPacer.onCongestion();
+                    return mTransport.write(frame);
+                }).subscribeOn(Schedulers.io());
+            } else {
+                write = mTransport.writeAsync(frame);
+            }
+            Single<Boolean> pacedWrite = write.doOnSuccess(result -> onFrameWritten(frame, result));
+
+            long delay = mPacer.getDelayNanos();
+            if (delay > 0) {
+                return Single.just(delay).delay(delay, TimeUnit.NANOSECONDS).flatMap(d -> pacedWrite);
+            } else {
+                return pacedWrite;
             }
+        });
+    }
+
+    /**
+     * Wait for the pipelined frames of a message, the wait completes in the write callback
+     *
+     * @return Single of false if any pipelined frame failed
+     */
+    private Single<Boolean> flushFramesAsync() {
+        if (!mPipelinedWrite) {
+            return Single.just(true);
         }
 
-        return post(encrypt, checksum, requireAck, type, allDataList);
+        return mTransport.flushWriteAsync(TIMEOUT_WRITE);
     }
 }
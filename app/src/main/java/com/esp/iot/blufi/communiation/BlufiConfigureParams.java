@@ -20,6 +20,28 @@ public class BlufiConfigureParams implements Serializable {
     private int mSoftAPChannel;
     private int mSoftAPMaxConnection;
 
+    public BlufiConfigureParams() {
+    }
+
+    /**
+     * Copy the params, the sessions configured at once set their own mesh root and configure sequence
+     */
+    public BlufiConfigureParams(BlufiConfigureParams params) {
+        mOpMode = params.mOpMode;
+        mStaBSSID = params.mStaBSSID;
+        mStaSSID = params.mStaSSID;
+        mStaPassword = params.mStaPassword;
+        mMeshRoot = params.mMeshRoot;
+        mWifiChannel = params.mWifiChannel;
+        mMeshID = params.mMeshID;
+        mConfigureSequence = params.mConfigureSequence;
+        mSoftAPSecurity = params.mSoftAPSecurity;
+        mSoftAPSSID = params.mSoftAPSSID;
+        mSoftAPPassword = params.mSoftAPPassword;
+        mSoftAPChannel = params.mSoftAPChannel;
+        mSoftAPMaxConnection = params.mSoftAPMaxConnection;
+    }
+
     public int getOpMode() {
         return mOpMode;
     }
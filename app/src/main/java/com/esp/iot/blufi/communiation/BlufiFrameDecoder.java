@@ -0,0 +1,132 @@
+package com.esp.iot.blufi.communiation;
+
+import com.espressif.libs.security.EspAES;
+import com.espressif.libs.security.EspCRC;
+
+/**
+ * Decode the received Blufi frames and add the data in {@link BlufiNotiData}.
+ * <p>
+ * The sequence is not checked here, the receiver checks it before decoding. Not thread safe, a session
+ * decodes its frames on one thread.
+ */
+public class BlufiFrameDecoder {
+    /**
+     * The frame completes the notification
+     */
+    public static final int RESULT_COMPLETE = 0;
+    /**
+     * The frame is a fragment, more frames follow
+     */
+    public static final int RESULT_FRAG = 1;
+    /**
+     * The frame is invalid, nothing is added in the notification
+     */
+    public static final int RESULT_INVALID = -1;
+
+    private EspAES mAES;
+    private final byte[] mIV = new byte[16];
+    private BlufiSessionStats mStats;
+
+    /**
+     * Set the session AES used by the encrypted frames
+     *
+     * @param aes the AES created with the session secret key
+     */
+    public void setAES(EspAES aes) {
+        mAES = aes;
+    }
+
+    /**
+     * Set the stats the AES and checksum time and the checksum mismatches are added to
+     *
+     * @param stats session stats, null to measure nothing
+     */
+    public void setStats(BlufiSessionStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Decode a frame
+     *
+     * @param frame        frame bytes
+     * @param notification store the data
+     * @return {@link #RESULT_COMPLETE}, {@link #RESULT_FRAG} or {@link #RESULT_INVALID}
+     */
+    public int decode(byte[] frame, BlufiNotiData notification) {
+        if (frame == null || frame.length < BlufiFrameEncoder.HEADER_LENGTH) {
+            return RESULT_INVALID;
+        }
+
+        int type = frame[0] & 0xff;
+        notification.setType(type);
+        notification.setPkgType(type & 0x3);
+        notification.setSubType((type & 0xfc) >> 2);
+
+        int frameCtrl = frame[1] & 0xff;
+        notification.setFrameCtrl(frameCtrl);
+        IBlufiCommunicator.FrameCtrlData frameCtrlData = new IBlufiCommunicator.FrameCtrlData(frameCtrl);
+
+        int sequence = frame[2] & 0xff;
+        int dataLen = frame[3] & 0xff;
+        int dataOffset = BlufiFrameEncoder.HEADER_LENGTH;
+        int frameLength = dataOffset + dataLen;
+        if (frameCtrlData.isChecksum()) {
+            frameLength += BlufiFrameEncoder.CHECKSUM_LENGTH;
+        }
+        if (frame.length < frameLength) {
+            return RESULT_INVALID;
+        }
+
+        BlufiSessionStats stats = mStats;
+        byte[] dataBytes = new byte[dataLen];
+        if (frameCtrlData.isEncrypted()) {
+            if (mAES == null) {
+                return RESULT_INVALID;
+            }
+            BlufiFrameEncoder.setAESIV(mIV, sequence);
+            long startTime = stats != null ? System.nanoTime() : 0L;
+            int decrypted = mAES.decrypt(mIV, frame, dataOffset, dataLen, dataBytes, 0);
+            if (stats != null) {
+                stats.addAESTime(System.nanoTime() - startTime);
+            }
+            if (decrypted < 0) {
+                return RESULT_INVALID;
+            }
+        } else {
+            System.arraycopy(frame, dataOffset, dataBytes, 0, dataLen);
+        }
+
+        if (frameCtrlData.isChecksum()) {
+            // Checksum sequence, data length and the decrypted data
+            long startTime = stats != null ? System.nanoTime() : 0L;
+            int checksum = EspCRC.caluCRC(0, frame, 2, 2);
+            checksum = EspCRC.caluCRC(checksum, dataBytes, 0, dataLen);
+            if (stats != null) {
+                stats.addCRCTime(System.nanoTime() - startTime);
+            }
+            int checksumOffset = dataOffset + dataLen;
+            if ((frame[checksumOffset] & 0xff) != (checksum & 0xff)
+                    || (frame[checksumOffset + 1] & 0xff) != ((checksum >> 8) & 0xff)) {
+                if (stats != null) {
+                    stats.onChecksumMismatch();
+                }
+                return RESULT_INVALID;
+            }
+        }
+
+        if (frameCtrlData.hasFrag()) {
+            if (dataLen < BlufiFrameEncoder.FRAG_TOTAL_LENGTH) {
+                return RESULT_INVALID;
+            }
+            // The remaining length of the whole data, include this frame
+            int totalLen = (dataBytes[0] & 0xff) | ((dataBytes[1] & 0xff) << 8);
+            notification.ensureCapacity(totalLen);
+            dataOffset = BlufiFrameEncoder.FRAG_TOTAL_LENGTH;
+        } else {
+            dataOffset = 0;
+        }
+        notification.addData(dataBytes, dataOffset, dataLen - dataOffset);
+
+        return frameCtrlData.hasFrag() ? RESULT_FRAG : RESULT_COMPLETE;
+    }
+}
@@ -0,0 +1,165 @@
+package com.esp.iot.blufi.communiation;
+
+import com.espressif.libs.security.EspAES;
+import com.espressif.libs.security.EspCRC;
+
+/**
+ * Encode the post data to Blufi frames.
+ * <p>
+ * Each frame is written directly into one byte array: header, fragment total length, data and checksum,
+ * the data part is encrypted in place. Not thread safe, a session posts its frames on one thread.
+ */
+public class BlufiFrameEncoder {
+    public static final int HEADER_LENGTH = 4;
+    public static final int FRAG_TOTAL_LENGTH = 2;
+    public static final int CHECKSUM_LENGTH = 2;
+
+    private static final byte[] AES_BASE_IV = {
+            0x00, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x00, 0x00,
+    };
+
+    private EspAES mAES;
+    private final byte[] mIV = new byte[AES_BASE_IV.length];
+    private BlufiSessionStats mStats;
+
+    /**
+     * Fill the AES IV of the sequence
+     *
+     * @param iv       the array to store the IV
+     * @param sequence frame sequence
+     */
+    static void setAESIV(byte[] iv, int sequence) {
+        System.arraycopy(AES_BASE_IV, 0, iv, 0, AES_BASE_IV.length);
+        iv[0] = (byte) sequence;
+    }
+
+    /**
+     * Compose the frame control value
+     *
+     * @param input true if the frame is from device to phone
+     * @return fc value
+     */
+    public static int getFrameCtrlValue(boolean encrypted, boolean checksum, boolean input, boolean requireAck,
+                                        boolean frag) {
+        int frameCtrl = 0;
+        if (encrypted) {
+            frameCtrl |= 1 << IBlufiCommunicator.FRAME_CTRL_POSITION_ENCRYPTED;
+        }
+        if (checksum) {
+            frameCtrl |= 1 << IBlufiCommunicator.FRAME_CTRL_POSITION_CHECKSUM;
+        }
+        if (input) {
+            frameCtrl |= 1 << IBlufiCommunicator.FRAME_CTRL_POSITION_DATA_DIRECTION;
+        }
+        if (requireAck) {
+            frameCtrl |= 1 << IBlufiCommunicator.FRAME_CTRL_POSITION_REQUIRE_ACK;
+        }
+        if (frag) {
+            frameCtrl |= 1 << IBlufiCommunicator.FRAME_CTRL_POSITION_FRAG;
+        }
+
+        return frameCtrl;
+    }
+
+    private static boolean isFrameCtrlSet(int frameCtrl, int position) {
+        return ((frameCtrl >> position) & 1) == 1;
+    }
+
+    /**
+     * Set the session AES used by the encrypted frames
+     *
+     * @param aes the AES created with the session secret key
+     */
+    public void setAES(EspAES aes) {
+        mAES = aes;
+    }
+
+    /**
+     * Set the stats the AES and checksum time is added to
+     *
+     * @param stats session stats, null to measure nothing
+     */
+    public void setStats(BlufiSessionStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Encode a frame without data
+     *
+     * @param type      type value
+     * @param frameCtrl fc value
+     * @param sequence  sequence
+     * @return frame bytes
+     */
+    public byte[] encode(int type, int frameCtrl, int sequence) {
+        return encode(type, frameCtrl, sequence, 0, null, 0, 0);
+    }
+
+    /**
+     * Encode a frame
+     *
+     * @param type        type value
+     * @param frameCtrl   fc value
+     * @param sequence    sequence
+     * @param totalLength remaining length of the whole data, posted only if fc has frag
+     * @param data        data array
+     * @param offset      start position of this frame's data in the array
+     * @param length      length of this frame's data
+     * @return frame bytes, null if encrypt failed
+     */
+    public byte[] encode(int type, int frameCtrl, int sequence, int totalLength, byte[] data, int offset, int length) {
+        boolean frag = isFrameCtrlSet(frameCtrl, IBlufiCommunicator.FRAME_CTRL_POSITION_FRAG);
+        boolean checksum = isFrameCtrlSet(frameCtrl, IBlufiCommunicator.FRAME_CTRL_POSITION_CHECKSUM);
+        boolean encrypted = isFrameCtrlSet(frameCtrl, IBlufiCommunicator.FRAME_CTRL_POSITION_ENCRYPTED);
+
+        int dataLength = frag ? length + FRAG_TOTAL_LENGTH : length;
+        int frameLength = HEADER_LENGTH + dataLength;
+        if (checksum) {
+            frameLength += CHECKSUM_LENGTH;
+        }
+        byte[] frame = new byte[frameLength];
+
+        frame[0] = (byte) type;
+        frame[1] = (byte) frameCtrl;
+        frame[2] = (byte) sequence;
+        frame[3] = (byte) dataLength;
+
+        int position = HEADER_LENGTH;
+        if (frag) {
+            frame[position++] = (byte) (totalLength & 0xff);
+            frame[position++] = (byte) ((totalLength >> 8) & 0xff);
+        }
+        if (length > 0) {
+            System.arraycopy(data, offset, frame, position, length);
+        }
+
+        BlufiSessionStats stats = mStats;
+        if (checksum) {
+            // Checksum sequence, data length and the unencrypted data
+            long startTime = stats != null ? System.nanoTime() : 0L;
+            int crc = EspCRC.caluCRC(0, frame, 2, dataLength + 2);
+            frame[frameLength - 2] = (byte) (crc & 0xff);
+            frame[frameLength - 1] = (byte) ((crc >> 8) & 0xff);
+            if (stats != null) {
+                stats.addCRCTime(System.nanoTime() - startTime);
+            }
+        }
+
+        if (encrypted && dataLength > 0) {
+            setAESIV(mIV, sequence);
+            long startTime = stats != null ? System.nanoTime() : 0L;
+            int result = mAES.encrypt(mIV, frame, HEADER_LENGTH, dataLength, frame, HEADER_LENGTH);
+            if (stats != null) {
+                stats.addAESTime(System.nanoTime() - startTime);
+            }
+            if (result < 0) {
+                return null;
+            }
+        }
+
+        return frame;
+    }
+}
@@ -0,0 +1,134 @@
+package com.esp.iot.blufi.communiation;
+
+/**
+ * Choose the length of the frames posted to one device connection.
+ * <p>
+ * The length starts from the longest frame the negotiated MTU carries. A failed write of a frame longer than
+ * any frame written successfully halves the length, the failed length becomes the ceiling. After a run of
+ * successful writes the length probes half way up to the ceiling again, so it settles at the longest frame
+ * the link accepts. Thread safe like {@link BlufiPacer}.
+ */
+public class BlufiFrameSizer {
+    /**
+     * The ATT write request header in the MTU: opcode and attribute handle
+     */
+    public static final int ATT_WRITE_OVERHEAD = 3;
+
+    /**
+     * The data length of a frame is one byte
+     */
+    public static final int MAX_DATA_LENGTH = 0xff;
+
+    /**
+     * The shortest frame carries one data byte of a fragment with checksum
+     */
+    public static final int MIN_FRAME_LENGTH = BlufiFrameEncoder.HEADER_LENGTH + BlufiFrameEncoder.FRAG_TOTAL_LENGTH
+            + BlufiFrameEncoder.CHECKSUM_LENGTH + 1;
+
+    private static final int PROBE_SUCCESS_COUNT = 8;
+
+    private int mMaxFrameLength;
+    private int mFrameLength;
+    private int mCeiling;
+    private int mLargestWritten = 0;
+    private int mSuccessCount = 0;
+
+    private int mBackoffCount = 0;
+    private int mProbeCount = 0;
+
+    /**
+     * @param maxFrameLength the longest frame, see {@link #setMaxFrameLength(int)}
+     */
+    public BlufiFrameSizer(int maxFrameLength) {
+        reset(maxFrameLength);
+    }
+
+    /**
+     * Get the longest frame an ATT MTU carries
+     */
+    public static int getFrameLength(int mtu) {
+        return mtu - ATT_WRITE_OVERHEAD;
+    }
+
+    /**
+     * Get the count of the data bytes a frame carries
+     *
+     * @param frameLength the length of the frame
+     * @param checksum    the frame has checksum
+     * @param frag        the frame is a fragment but the last
+     * @return data length, not including the fragment total length
+     */
+    public static int getDataCapacity(int frameLength, boolean checksum, boolean frag) {
+        int capacity = frameLength - BlufiFrameEncoder.HEADER_LENGTH;
+        if (checksum) {
+            capacity -= BlufiFrameEncoder.CHECKSUM_LENGTH;
+        }
+        capacity = Math.min(capacity, MAX_DATA_LENGTH);
+        if (frag) {
+            capacity -= BlufiFrameEncoder.FRAG_TOTAL_LENGTH;
+        }
+        return capacity;
+    }
+
+    /**
+     * Set the longest frame, the probing starts over if it changes
+     *
+     * @param maxFrameLength the longest frame of the MTU or the limit set by the user
+     */
+    public synchronized void setMaxFrameLength(int maxFrameLength) {
+        if (Math.max(maxFrameLength, MIN_FRAME_LENGTH) != mMaxFrameLength) {
+            reset(maxFrameLength);
+        }
+    }
+
+    private void reset(int maxFrameLength) {
+        mMaxFrameLength = Math.max(maxFrameLength, MIN_FRAME_LENGTH);
+        mFrameLength = mMaxFrameLength;
+        mCeiling = mMaxFrameLength + 1;
+        mLargestWritten = 0;
+        mSuccessCount = 0;
+    }
+
+    public synchronized int getMaxFrameLength() {
+        return mMaxFrameLength;
+    }
+
+    /**
+     * Get the length of the next frames
+     */
+    public synchronized int getFrameLength() {
+        return mFrameLength;
+    }
+
+    /**
+     * Called after a frame is written
+     *
+     * @param frameLength the length of the frame
+     * @param success     write successfully or not
+     */
+    public synchronized void onWriteComplete(int frameLength, boolean success) {
+        if (success) {
+            mLargestWritten = Math.max(mLargestWritten, frameLength);
+            if (mFrameLength < mCeiling - 1 && ++mSuccessCount >= PROBE_SUCCESS_COUNT) {
+                mSuccessCount = 0;
+                mProbeCount++;
+                mFrameLength += (mCeiling - mFrameLength) / 2;
+            }
+        } else if (frameLength > mLargestWritten && frameLength > MIN_FRAME_LENGTH) {
+            // Only a frame longer than the written ones can fail for its length
+            mSuccessCount = 0;
+            mBackoffCount++;
+            mCeiling = Math.min(mCeiling, frameLength);
+            mFrameLength = Math.max(MIN_FRAME_LENGTH, Math.min(frameLength - 1,
+                    Math.max(mLargestWritten, frameLength / 2)));
+        }
+    }
+
+    public synchronized int getBackoffCount() {
+        return mBackoffCount;
+    }
+
+    public synchronized int getProbeCount() {
+        return mProbeCount;
+    }
+}
@@ -0,0 +1,173 @@
+package com.esp.iot.blufi.communiation;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count the latencies in log-linear buckets of microseconds.
+ * <p>
+ * Each power of two is split into 8 buckets, so a percentile is at most 12.5% above the recorded value.
+ * Recording is lock free and allocates nothing, the histogram can be shared by the devices of a batch.
+ */
+public class BlufiLatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values up to 2^32 microseconds, about 71 minutes, the longer ones are counted in the last bucket
+    private static final int MAX_VALUE_BITS = 32;
+    private static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(0);
+
+    private static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int index = (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >> shift) - SUB_BUCKET_COUNT);
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    private static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param nanos latency in nanoseconds, negative values are ignored
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        recordMicros(nanos / 1000L, 1);
+    }
+
+    private void recordMicros(long micros, long count) {
+        mBuckets.addAndGet(getBucketIndex(micros), count);
+        mCount.addAndGet(count);
+        mTotal.addAndGet(micros * count);
+        updateMin(micros);
+        updateMax(micros);
+    }
+
+    private void updateMin(long micros) {
+        long min;
+        while (micros < (min = mMin.get())) {
+            if (mMin.compareAndSet(min, micros)) {
+                return;
+            }
+        }
+    }
+
+    private void updateMax(long micros) {
+        long max;
+        while (micros > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, micros)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Add the counts of another histogram, such as the histogram of another device or batch
+     */
+    public void merge(BlufiLatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.mBuckets.get(i);
+            if (count > 0) {
+                mBuckets.addAndGet(i, count);
+            }
+        }
+        mCount.addAndGet(other.mCount.get());
+        mTotal.addAndGet(other.mTotal.get());
+        if (other.getCount() > 0) {
+            updateMin(other.mMin.get());
+            updateMax(other.mMax.get());
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotal.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(0);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return the sum of the latencies in microseconds
+     */
+    public long getTotal() {
+        return mTotal.get();
+    }
+
+    /**
+     * @return min latency in microseconds, 0 if nothing is recorded
+     */
+    public long getMin() {
+        return getCount() > 0 ? mMin.get() : 0L;
+    }
+
+    /**
+     * @return max latency in microseconds
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return mean latency in microseconds, 0 if nothing is recorded
+     */
+    public long getMean() {
+        long count = getCount();
+        return count > 0 ? getTotal() / count : 0L;
+    }
+
+    /**
+     * Get the latency the percentage of the records are not longer than
+     *
+     * @param percentile 0 to 100
+     * @return latency in microseconds, the upper bound of its bucket, 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0L;
+        }
+
+        long target = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= target) {
+                return Math.min(getBucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "count %d, mean %.1f ms, p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms",
+                getCount(), getMean() / 1000.0, getPercentile(50) / 1000.0, getPercentile(95) / 1000.0,
+                getPercentile(99) / 1000.0, getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,166 @@
+package com.esp.iot.blufi.communiation;
+
+import rx.Scheduler;
+import rx.Single;
+import rx.schedulers.Schedulers;
+
+/**
+ * Connect the communicator with a device in memory, it runs on the plain JVM.
+ * <p>
+ * The written frames are handed to the {@link Peer} on the writing thread, the frames notified by the peer
+ * are delivered to the listener in order on a worker of the scheduler, like the binder thread of the BLE
+ * stack.
+ */
+public class BlufiLoopbackTransport implements BlufiTransport {
+    /**
+     * Default MTU, the MTU most devices exchange
+     */
+    public static final int DEFAULT_MTU = 128;
+
+    /**
+     * The device side of the link
+     */
+    public interface Peer {
+        /**
+         * A frame is written by the communicator
+         *
+         * @param data frame bytes, owned by the peer
+         */
+        void onWrite(byte[] data);
+    }
+
+    private final Scheduler.Worker mWorker;
+
+    private volatile Peer mPeer;
+    private volatile NotificationListener mListener;
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile boolean mConnected = true;
+    private volatile boolean mPipelined = true;
+
+    private long mWriteCount = 0;
+    private long mNotifyCount = 0;
+
+    public BlufiLoopbackTransport() {
+        this(Schedulers.io());
+    }
+
+    /**
+     * @param scheduler the notifications are delivered on a worker of the scheduler
+     */
+    public BlufiLoopbackTransport(Scheduler scheduler) {
+        mWorker = scheduler.createWorker();
+    }
+
+    public void setPeer(Peer peer) {
+        mPeer = peer;
+    }
+
+    public void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    /**
+     * Set whether {@link #writeNoResponse(byte[])} is available
+     */
+    public void setPipelined(boolean pipelined) {
+        mPipelined = pipelined;
+    }
+
+    /**
+     * Notify a frame from the peer, the listener receives it later on the worker
+     *
+     * @param data frame bytes
+     */
+    public void notifyFromPeer(byte[] data) {
+        if (!mConnected) {
+            return;
+        }
+
+        synchronized (this) {
+            mNotifyCount++;
+        }
+        mWorker.schedule(() -> {
+            NotificationListener listener = mListener;
+            if (listener != null) {
+                listener.onNotification(data);
+            }
+        });
+    }
+
+    /**
+     * Disconnect the link, the later writes fail and the notifications are dropped
+     */
+    public void disconnect() {
+        mConnected = false;
+        mWorker.unsubscribe();
+    }
+
+    @Override
+    public boolean setNotificationListener(NotificationListener listener) {
+        mListener = listener;
+        return mConnected;
+    }
+
+    @Override
+    public boolean write(byte[] data) {
+        Peer peer = mPeer;
+        if (!mConnected || peer == null) {
+            return false;
+        }
+
+        synchronized (this) {
+            mWriteCount++;
+        }
+        peer.onWrite(data.clone());
+        return true;
+    }
+
+    @Override
+    public Single<Boolean> writeAsync(byte[] data) {
+        return Single.fromCallable(() -> write(data));
+    }
+
+    @Override
+    public boolean isPipelinedWriteAvailable() {
+        return mPipelined;
+    }
+
+    @Override
+    public boolean writeNoResponse(byte[] data) {
+        return write(data);
+    }
+
+    @Override
+    public boolean flushWrite(long timeout) {
+        return mConnected;
+    }
+
+    @Override
+    public Single<Boolean> flushWriteAsync(long timeout) {
+        return Single.fromCallable(() -> flushWrite(timeout));
+    }
+
+    @Override
+    public boolean isLastWriteTooLong() {
+        // The peer receives a frame of any length
+        return false;
+    }
+
+    @Override
+    public int getMtu() {
+        return mMtu;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public synchronized long getWriteCount() {
+        return mWriteCount;
+    }
+
+    public synchronized long getNotifyCount() {
+        return mNotifyCount;
+    }
+}
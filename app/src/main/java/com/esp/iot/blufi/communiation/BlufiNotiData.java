@@ -1,10 +1,12 @@
 package com.esp.iot.blufi.communiation;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 
 public class BlufiNotiData {
+    private static final byte[] EMPTY_DATA = new byte[0];
+
     private int mTypeValue;
     private int mPkgType;
     private int mSubType;
@@ -13,10 +15,17 @@ public class BlufiNotiData {
 
     private int mSequence;
 
-    private LinkedList<Byte> mDataList;
+    private byte[] mData;
+    private int mDataLength;
 
     public BlufiNotiData() {
-        mDataList = new LinkedList<>();
+        mData = EMPTY_DATA;
+        mDataLength = 0;
+    }
+
+    public BlufiNotiData(int capacity) {
+        mData = new byte[capacity];
+        mDataLength = 0;
     }
 
     public int getType() {
@@ -51,28 +60,57 @@ public class BlufiNotiData {
         mFrameCtrlValue = frameCtrl;
     }
 
+    /**
+     * Make sure the buffer can hold more bytes without growing
+     *
+     * @param moreLength the count of the bytes will be added
+     */
+    public void ensureCapacity(int moreLength) {
+        int required = mDataLength + moreLength;
+        if (required > mData.length) {
+            int newCapacity = Math.max(required, mData.length << 1);
+            mData = Arrays.copyOf(mData, newCapacity);
+        }
+    }
+
     public void addData(byte b) {
-        mDataList.add(b);
+        ensureCapacity(1);
+        mData[mDataLength++] = b;
     }
 
     public void addData(byte[] bytes) {
-        for (byte b : bytes) {
-            mDataList.add(b);
-        }
+        addData(bytes, 0, bytes.length);
     }
 
+    public void addData(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, mData, mDataLength, length);
+        mDataLength += length;
+    }
+
+    public int getDataLength() {
+        return mDataLength;
+    }
+
+    /**
+     * Get the received data. The returned array is the data buffer itself if it is filled exactly,
+     * so the caller owns it once the notification is handed over.
+     *
+     * @return data array
+     */
     public byte[] getDataArray() {
-        byte[] result = new byte[mDataList.size()];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = mDataList.get(i);
+        if (mData.length != mDataLength) {
+            mData = Arrays.copyOf(mData, mDataLength);
         }
 
-        return result;
+        return mData;
     }
 
     public List<Byte> getDataList() {
-        List<Byte> result = new ArrayList<>();
-        result.addAll(mDataList);
+        List<Byte> result = new ArrayList<>(mDataLength);
+        for (int i = 0; i < mDataLength; i++) {
+            result.add(mData[i]);
+        }
 
         return result;
     }
@@ -81,6 +119,6 @@ public class BlufiNotiData {
         mTypeValue = 0;
         mPkgType = 0;
         mSubType = 0;
-        mDataList.clear();
+        mDataLength = 0;
     }
 }
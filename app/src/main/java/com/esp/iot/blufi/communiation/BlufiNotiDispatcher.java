@@ -0,0 +1,211 @@
+package com.esp.iot.blufi.communiation;
+
+import com.espressif.libs.log.EspLog;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Single;
+
+/**
+ * Route the reassembled notifications to the receivers asked for them.
+ * <p>
+ * ACKs are matched by the acknowledged sequence, the error reports go to the error handler at once, other
+ * notifications are queued in a bounded mailbox of their package type and subtype, so a notification the
+ * device sent unsolicited never completes a receiver waiting for another type. The notifications no receiver
+ * took are counted as unmatched.
+ */
+public class BlufiNotiDispatcher {
+    /**
+     * Default count of the notifications queued for one type
+     */
+    public static final int DEFAULT_MAILBOX_CAPACITY = 4;
+
+    private static final int TYPE_COUNT = 256;
+
+    /**
+     * Handle the ACK notifications
+     */
+    public interface AckHandler {
+        /**
+         * @param sequence the acknowledged sequence
+         * @return false if no posted frame matches the sequence
+         */
+        boolean onAck(int sequence);
+    }
+
+    /**
+     * Handle the error reports of the device
+     */
+    public interface ErrorHandler {
+        /**
+         * @param errorCode the reported error code, -1 if the report has no code
+         */
+        void onError(int errorCode);
+    }
+
+    private final int mCapacity;
+    private final BlufiNotiMailbox[] mMailboxes = new BlufiNotiMailbox[TYPE_COUNT];
+
+    private AckHandler mAckHandler;
+    private ErrorHandler mErrorHandler;
+    private boolean mClosed = false;
+
+    private final AtomicInteger mDeliveredCount = new AtomicInteger(0);
+    private final AtomicInteger mUnmatchedCount = new AtomicInteger(0);
+    private final AtomicInteger mUnmatchedAckCount = new AtomicInteger(0);
+
+    public BlufiNotiDispatcher() {
+        this(DEFAULT_MAILBOX_CAPACITY);
+    }
+
+    /**
+     * @param capacity the count of the notifications queued for one type
+     */
+    public BlufiNotiDispatcher(int capacity) {
+        mCapacity = capacity;
+    }
+
+    private static int getTypeValue(int pkgType, int subType) {
+        return ((subType << 2) | pkgType) & 0xff;
+    }
+
+    public void setAckHandler(AckHandler handler) {
+        mAckHandler = handler;
+    }
+
+    /**
+     * Set the handler of the error reports, they are queued like other notifications if no handler is set
+     *
+     * @param handler error handler
+     */
+    public void setErrorHandler(ErrorHandler handler) {
+        mErrorHandler = handler;
+    }
+
+    private synchronized BlufiNotiMailbox getMailbox(int typeValue) {
+        BlufiNotiMailbox mailbox = mMailboxes[typeValue];
+        if (mailbox == null) {
+            mailbox = new BlufiNotiMailbox(mCapacity);
+            if (mClosed) {
+                mailbox.close();
+            }
+            mMailboxes[typeValue] = mailbox;
+        }
+        return mailbox;
+    }
+
+    /**
+     * Route a reassembled notification, called in the notification callback
+     *
+     * @param data notification
+     */
+    public void dispatch(BlufiNotiData data) {
+        int pkgType = data.getPkgType();
+        int subType = data.getSubType();
+        if (pkgType == IBlufiCommunicator.Type.Ctrl.PACKAGE_VALUE
+                && subType == IBlufiCommunicator.Type.Ctrl.SUBTYPE_ACK) {
+            byte[] ackData = data.getDataArray();
+            AckHandler handler = mAckHandler;
+            if (ackData.length == 0 || handler == null || !handler.onAck(ackData[0] & 0xff)) {
+                mUnmatchedAckCount.incrementAndGet();
+                EspLog.w("dispatch unmatched ack");
+            }
+            return;
+        }
+
+        ErrorHandler errorHandler = mErrorHandler;
+        if (errorHandler != null && pkgType == IBlufiCommunicator.Type.Data.PACKAGE_VALUE
+                && subType == IBlufiCommunicator.Type.Data.SUBTYPE_ERROR) {
+            byte[] errorData = data.getDataArray();
+            mDeliveredCount.incrementAndGet();
+            errorHandler.onError(errorData.length == 0 ? -1 : errorData[0] & 0xff);
+            return;
+        }
+
+        mDeliveredCount.incrementAndGet();
+        BlufiNotiData dropped = getMailbox(getTypeValue(pkgType, subType)).offer(data);
+        if (dropped != null) {
+            mUnmatchedCount.incrementAndGet();
+            EspLog.w("dispatch mailbox full, drop type %d subtype %d", pkgType, subType);
+        }
+    }
+
+    /**
+     * Receive the next notification of the type
+     *
+     * @param pkgType package type
+     * @param subType subtype
+     * @return Single completes when the notification arrives, completes with null if the dispatcher is closed
+     */
+    public Single<BlufiNotiData> take(int pkgType, int subType) {
+        return getMailbox(getTypeValue(pkgType, subType)).take();
+    }
+
+    /**
+     * Receive the next notification of the type, see {@link BlufiNotiMailbox#take(long, TimeUnit)}
+     *
+     * @return Single completes when the notification arrives, completes with null if timeout or the dispatcher
+     * is closed
+     */
+    public Single<BlufiNotiData> take(int pkgType, int subType, long timeout, TimeUnit unit) {
+        return getMailbox(getTypeValue(pkgType, subType)).take(timeout, unit);
+    }
+
+    /**
+     * Drop the queued notifications of the type, called before posting a request so a stale reply of an
+     * earlier request is not taken as its response. They are counted as unmatched.
+     *
+     * @param pkgType package type
+     * @param subType subtype
+     */
+    public void clear(int pkgType, int subType) {
+        int dropped = getMailbox(getTypeValue(pkgType, subType)).clear();
+        if (dropped > 0) {
+            mUnmatchedCount.addAndGet(dropped);
+            EspLog.w("dispatch drop stale type %d subtype %d count %d", pkgType, subType, dropped);
+        }
+    }
+
+    /**
+     * Close the mailboxes of all types, the receivers complete with null
+     */
+    public void close() {
+        BlufiNotiMailbox[] mailboxes;
+        synchronized (this) {
+            mClosed = true;
+            mailboxes = mMailboxes.clone();
+        }
+
+        int dropped = 0;
+        for (BlufiNotiMailbox mailbox : mailboxes) {
+            if (mailbox != null) {
+                dropped += mailbox.close();
+            }
+        }
+        if (dropped > 0) {
+            mUnmatchedCount.addAndGet(dropped);
+        }
+    }
+
+    /**
+     * Get the count of the notifications except ACKs
+     */
+    public int getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    /**
+     * Get the count of the notifications no receiver took
+     */
+    public int getUnmatchedCount() {
+        return mUnmatchedCount.get();
+    }
+
+    /**
+     * Get the count of the ACKs no posted frame matched
+     */
+    public int getUnmatchedAckCount() {
+        return mUnmatchedAckCount.get();
+    }
+}
@@ -0,0 +1,144 @@
+package com.esp.iot.blufi.communiation;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import rx.Scheduler;
+import rx.Single;
+import rx.SingleSubscriber;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Hand the received notifications to the receivers without blocking a thread. A receiver subscribes
+ * {@link #take()}, it is completed in the notification callback when the notification arrives.
+ * <p>
+ * At most capacity notifications are queued when no receiver is waiting, the oldest one is dropped
+ * if the mailbox is full. A notification is never handed to a receiver which has timed out or unsubscribed,
+ * it is queued for the next receiver.
+ */
+public class BlufiNotiMailbox {
+    private final int mCapacity;
+
+    private final LinkedList<BlufiNotiData> mQueue = new LinkedList<>();
+    private final LinkedList<SingleSubscriber<? super BlufiNotiData>> mWaiters = new LinkedList<>();
+
+    private boolean mClosed = false;
+
+    /**
+     * @param capacity the count of the notifications can be queued, at least 1
+     */
+    public BlufiNotiMailbox(int capacity) {
+        mCapacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Deliver a notification to the first waiting receiver, or queue it if no receiver is waiting
+     *
+     * @param data notification
+     * @return the dropped oldest notification if the mailbox is full, null otherwise
+     */
+    public BlufiNotiData offer(BlufiNotiData data) {
+        SingleSubscriber<? super BlufiNotiData> waiter;
+        synchronized (this) {
+            if (mClosed) {
+                return null;
+            }
+            do {
+                waiter = mWaiters.poll();
+            } while (waiter != null && waiter.isUnsubscribed());
+            if (waiter == null) {
+                BlufiNotiData dropped = mQueue.size() >= mCapacity ? mQueue.poll() : null;
+                mQueue.add(data);
+                return dropped;
+            }
+        }
+
+        // Complete out of the lock, the receiver may take again in onSuccess
+        waiter.onSuccess(data);
+        return null;
+    }
+
+    /**
+     * Take the next notification
+     *
+     * @return Single completes when a notification is available, completes with null if the mailbox is closed
+     */
+    public Single<BlufiNotiData> take() {
+        return take(-1L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take the next notification, give up after the timeout. The timeout and the delivery are decided under the
+     * mailbox lock, a notification arrives at the timeout stays queued.
+     *
+     * @param timeout max time to wait, negative to wait until closed
+     * @param unit    unit of the timeout
+     * @return Single completes when a notification is available, completes with null if timeout or the mailbox
+     * is closed
+     */
+    public Single<BlufiNotiData> take(long timeout, TimeUnit unit) {
+        return Single.create(subscriber -> {
+            BlufiNotiData data;
+            synchronized (BlufiNotiMailbox.this) {
+                data = mQueue.poll();
+                if (data == null && !mClosed) {
+                    mWaiters.add(subscriber);
+                    subscriber.add(Subscriptions.create(() -> removeWaiter(subscriber)));
+                    if (timeout >= 0) {
+                        Scheduler.Worker worker = Schedulers.computation().createWorker();
+                        subscriber.add(worker);
+                        worker.schedule(() -> {
+                            if (removeWaiter(subscriber)) {
+                                subscriber.onSuccess(null);
+                            }
+                        }, timeout, unit);
+                    }
+                    return;
+                }
+            }
+
+            subscriber.onSuccess(data);
+        });
+    }
+
+    /**
+     * @return false if the receiver is not waiting, a notification has been handed to it
+     */
+    private synchronized boolean removeWaiter(SingleSubscriber<? super BlufiNotiData> subscriber) {
+        return mWaiters.remove(subscriber);
+    }
+
+    /**
+     * Drop the queued notifications
+     *
+     * @return the count of the dropped notifications
+     */
+    public synchronized int clear() {
+        int count = mQueue.size();
+        mQueue.clear();
+        return count;
+    }
+
+    /**
+     * Drop the queued notifications and complete the waiting receivers with null, the later receivers
+     * complete with null immediately
+     *
+     * @return the count of the dropped notifications
+     */
+    public int close() {
+        LinkedList<SingleSubscriber<? super BlufiNotiData>> waiters;
+        int count;
+        synchronized (this) {
+            mClosed = true;
+            count = clear();
+            waiters = new LinkedList<>(mWaiters);
+            mWaiters.clear();
+        }
+
+        for (SingleSubscriber<? super BlufiNotiData> waiter : waiters) {
+            waiter.onSuccess(null);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,162 @@
+package com.esp.iot.blufi.communiation;
+
+/**
+ * Keep the gap between the frames written to one device connection.
+ * <p>
+ * The gap starts from the old fixed delay and shrinks after each successful write. A failed write or a write
+ * the stack refuses as busy backs it off, and the gap it failed at becomes the floor the gap never shrinks
+ * to again, so it settles just above the minimum gap the link accepts. The ACKs notified by the device tell
+ * the round trip time of the link, a round trip much longer than the shortest one means the frames queue up
+ * in the link, the gap grows without moving the floor. A receive timeout says nothing about the pace, the
+ * device may just be slow to reply.
+ * <p>
+ * The time spent since the last write counts towards the gap. Thread safe, the writes complete on the
+ * scheduler threads and on the GATT callback thread.
+ */
+public class BlufiPacer {
+    /**
+     * Default initial gap in milliseconds
+     */
+    public static final long DEFAULT_GAP = 10L;
+
+    private static final long MAX_GAP_NANOS = 100000000L;
+    private static final long MIN_BACKOFF_NANOS = 2000000L;
+    private static final long ZERO_GAP_NANOS = 100000L;
+
+    /**
+     * The extra round trip time over twice the shortest one taken as congestion
+     */
+    private static final long CONGESTION_DELAY_NANOS = 5000000L;
+
+    private long mGapNanos;
+    private long mFloorNanos = 0;
+    private long mLastWriteTime;
+    private boolean mWritten = false;
+    private long mMinRttNanos = 0;
+
+    private int mSuccessCount = 0;
+    private int mFailureCount = 0;
+    private int mCongestionCount = 0;
+
+    public BlufiPacer() {
+        this(DEFAULT_GAP);
+    }
+
+    /**
+     * @param initialGap initial gap in milliseconds
+     */
+    public BlufiPacer(long initialGap) {
+        mGapNanos = Math.min(MAX_GAP_NANOS, initialGap * 1000000L);
+    }
+
+    /**
+     * Block until the gap since the last write passed, the lock is not held while sleeping
+     */
+    public void await() {
+        long wait = getDelayNanos();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Get the time to wait before the next write
+     *
+     * @return nanoseconds, 0 if the next frame can be written now
+     */
+    public synchronized long getDelayNanos() {
+        if (!mWritten || mGapNanos == 0) {
+            return 0;
+        }
+
+        return Math.max(0, mLastWriteTime + mGapNanos - System.nanoTime());
+    }
+
+    /**
+     * Called after a frame is written
+     *
+     * @param success write successfully or not
+     */
+    public synchronized void onWriteComplete(boolean success) {
+        mLastWriteTime = System.nanoTime();
+        mWritten = true;
+        if (success) {
+            decrease();
+        } else {
+            mFailureCount++;
+            backoff();
+        }
+    }
+
+    /**
+     * Called when the stack refuses a write because it is busy with the earlier writes
+     */
+    public synchronized void onCongestion() {
+        mCongestionCount++;
+        backoff();
+    }
+
+    /**
+     * Called when the device acknowledges a written frame
+     */
+    public synchronized void onAck() {
+        if (!mWritten) {
+            return;
+        }
+
+        long rtt = System.nanoTime() - mLastWriteTime;
+        if (mMinRttNanos == 0 || rtt < mMinRttNanos) {
+            mMinRttNanos = rtt;
+        } else if (rtt > mMinRttNanos * 2 + CONGESTION_DELAY_NANOS) {
+            // The frames queue up in the link, slow down but the gap has not failed
+            mCongestionCount++;
+            mGapNanos = Math.min(MAX_GAP_NANOS, Math.max(MIN_BACKOFF_NANOS, mGapNanos * 3 / 2));
+        }
+    }
+
+    private void decrease() {
+        mSuccessCount++;
+        long gap = mGapNanos * 3 / 4;
+        if (gap < ZERO_GAP_NANOS) {
+            gap = 0;
+        }
+        mGapNanos = Math.max(mFloorNanos, gap);
+    }
+
+    private void backoff() {
+        // The current gap is not safe, stay above it from now on
+        mFloorNanos = Math.min(MAX_GAP_NANOS, Math.max(MIN_BACKOFF_NANOS, mGapNanos * 5 / 4));
+        mGapNanos = Math.min(MAX_GAP_NANOS, Math.max(mFloorNanos, mGapNanos * 2));
+    }
+
+    public synchronized long getGapNanos() {
+        return mGapNanos;
+    }
+
+    /**
+     * Get the gap the gap never shrinks below, just above the last gap a write failed at
+     */
+    public synchronized long getFloorNanos() {
+        return mFloorNanos;
+    }
+
+    public synchronized int getSuccessCount() {
+        return mSuccessCount;
+    }
+
+    public synchronized int getFailureCount() {
+        return mFailureCount;
+    }
+
+    /**
+     * Get the count of the busy refusals and the long round trips
+     */
+    public synchronized int getCongestionCount() {
+        return mCongestionCount;
+    }
+}
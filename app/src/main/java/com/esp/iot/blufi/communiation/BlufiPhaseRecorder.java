@@ -0,0 +1,106 @@
+package com.esp.iot.blufi.communiation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Record the latency histogram of each provisioning phase.
+ * <p>
+ * One recorder is shared by the devices of a batch, the histograms are created when a phase is first
+ * recorded and kept in that order. Thread safe.
+ */
+public class BlufiPhaseRecorder {
+    public static final String PHASE_CONNECT = "connect";
+    public static final String PHASE_DISCOVER = "discover";
+    public static final String PHASE_MTU = "mtu";
+    /**
+     * Generate or take the DH or ECDH key pair
+     */
+    public static final String PHASE_KEYGEN = "keygen";
+    /**
+     * Post the public key until the device public key is received
+     */
+    public static final String PHASE_NEGOTIATE_RTT = "negotiate rtt";
+    public static final String PHASE_CONFIGURE_OP_MODE = "configure op mode";
+    public static final String PHASE_CONFIGURE_SEQUENCE = "configure sequence";
+    public static final String PHASE_CONFIGURE_CHANNEL = "configure channel";
+    public static final String PHASE_CONFIGURE_STA_SSID = "configure sta ssid";
+    public static final String PHASE_CONFIGURE_STA_PASSWORD = "configure sta password";
+    public static final String PHASE_CONFIGURE_CONNECT_WIFI = "configure connect wifi";
+    public static final String PHASE_CONFIGURE_SOFTAP = "configure softap";
+    /**
+     * Wait for the Wi-Fi state reported by the device
+     */
+    public static final String PHASE_WIFI_STATE = "wifi state";
+
+    private final Map<String, BlufiLatencyHistogram> mHistograms = new LinkedHashMap<>();
+
+    private synchronized BlufiLatencyHistogram obtainHistogram(String phase) {
+        BlufiLatencyHistogram histogram = mHistograms.get(phase);
+        if (histogram == null) {
+            histogram = new BlufiLatencyHistogram();
+            mHistograms.put(phase, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Record a latency of the phase
+     *
+     * @param phase phase name
+     * @param nanos latency in nanoseconds
+     */
+    public void record(String phase, long nanos) {
+        obtainHistogram(phase).record(nanos);
+    }
+
+    /**
+     * Record the time from the start to now
+     *
+     * @param phase     phase name
+     * @param startTime start time got by {@link System#nanoTime()}
+     */
+    public void recordSince(String phase, long startTime) {
+        record(phase, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Get the histogram of the phase
+     *
+     * @return null if the phase is never recorded
+     */
+    public synchronized BlufiLatencyHistogram getHistogram(String phase) {
+        return mHistograms.get(phase);
+    }
+
+    /**
+     * Get the recorded phases in the order they were first recorded
+     */
+    public synchronized List<String> getPhases() {
+        return new ArrayList<>(mHistograms.keySet());
+    }
+
+    /**
+     * Add the histograms of another recorder
+     */
+    public void merge(BlufiPhaseRecorder other) {
+        for (String phase : other.getPhases()) {
+            obtainHistogram(phase).merge(other.getHistogram(phase));
+        }
+    }
+
+    public synchronized void reset() {
+        mHistograms.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String phase : getPhases()) {
+            sb.append(phase).append(": ").append(getHistogram(phase)).append('\n');
+        }
+        return sb.toString();
+    }
+}
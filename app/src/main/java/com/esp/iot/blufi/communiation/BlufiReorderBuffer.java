@@ -0,0 +1,266 @@
+package com.esp.iot.blufi.communiation;
+
+import java.util.concurrent.TimeUnit;
+
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+/**
+ * Put the notified frames back in sequence order.
+ * <p>
+ * A frame of the expected sequence is delivered at once, a frame ahead of it is kept until the missing frames
+ * arrive, a duplicated or old frame is discarded. If the missing frames don't arrive in the gap timeout, or a
+ * frame arrives beyond the window, they are considered lost and skipped, the receiver is told to drop the
+ * message it is building. The sequence wraps at 256.
+ */
+public class BlufiReorderBuffer {
+    /**
+     * Default max count of the sequences kept ahead of the expected sequence
+     */
+    public static final int DEFAULT_WINDOW = 16;
+
+    /**
+     * Default time in milliseconds the kept frames wait for the missing frames
+     */
+    public static final long DEFAULT_GAP_TIMEOUT = 200L;
+
+    private static final int SEQUENCE_COUNT = 256;
+
+    /**
+     * Receive the frames in sequence order, called on the thread calling {@link #offer(byte[])}, or on the
+     * scheduler thread if a gap times out. The calls are serialized.
+     */
+    public interface Receiver {
+        /**
+         * @param frame the frame of the next sequence
+         */
+        void onFrame(byte[] frame);
+
+        /**
+         * Some frames are lost, the next frame follows a gap
+         *
+         * @param lostCount the count of the lost frames
+         */
+        void onGap(int lostCount);
+
+        /**
+         * A duplicated or old frame is discarded
+         *
+         * @param frame the discarded frame
+         */
+        void onDiscard(byte[] frame);
+    }
+
+    private final Receiver mReceiver;
+    private final int mWindow;
+    private final long mGapTimeout;
+    private final Scheduler mScheduler;
+
+    private final byte[][] mPendingFrames = new byte[SEQUENCE_COUNT][];
+    private int mPendingCount = 0;
+    private int mExpectedSequence = 0;
+
+    private Scheduler.Worker mGapTimer;
+    private int mGapSequence;
+
+    private long mFrameCount = 0;
+    private long mReorderedCount = 0;
+    private long mDuplicateCount = 0;
+    private long mLostCount = 0;
+    private long mInvalidCount = 0;
+
+    public BlufiReorderBuffer(Receiver receiver) {
+        this(receiver, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param receiver receive the ordered frames
+     * @param window   max count of the sequences kept ahead of the expected sequence, less than 128
+     */
+    public BlufiReorderBuffer(Receiver receiver, int window) {
+        this(receiver, window, DEFAULT_GAP_TIMEOUT, Schedulers.computation());
+    }
+
+    /**
+     * @param receiver   receive the ordered frames
+     * @param window     max count of the sequences kept ahead of the expected sequence, less than 128
+     * @param gapTimeout time in milliseconds the kept frames wait for the missing frames
+     * @param scheduler  the scheduler runs the gap timer
+     */
+    public BlufiReorderBuffer(Receiver receiver, int window, long gapTimeout, Scheduler scheduler) {
+        mReceiver = receiver;
+        mWindow = Math.max(1, Math.min(window, SEQUENCE_COUNT / 2 - 1));
+        mGapTimeout = gapTimeout;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Handle a notified frame
+     *
+     * @param frame frame bytes
+     */
+    public synchronized void offer(byte[] frame) {
+        if (frame == null || frame.length < BlufiFrameEncoder.HEADER_LENGTH) {
+            mInvalidCount++;
+            return;
+        }
+
+        mFrameCount++;
+        int sequence = frame[2] & 0xff;
+        int distance = (sequence - mExpectedSequence) & 0xff;
+        if (distance >= SEQUENCE_COUNT / 2) {
+            discard(frame);
+            return;
+        }
+
+        if (distance > mWindow) {
+            // The missing frames don't arrive in the window, give them up
+            skip(distance - mWindow);
+            if (((sequence - mExpectedSequence) & 0xff) >= SEQUENCE_COUNT / 2) {
+                // The same sequence was kept and delivered already
+                discard(frame);
+                updateGapTimer();
+                return;
+            }
+        }
+
+        if (sequence != mExpectedSequence) {
+            if (mPendingFrames[sequence] == null) {
+                mReorderedCount++;
+                mPendingFrames[sequence] = frame;
+                mPendingCount++;
+            } else {
+                discard(frame);
+            }
+            updateGapTimer();
+            return;
+        }
+
+        deliver(frame);
+        deliverPending();
+        updateGapTimer();
+    }
+
+    /**
+     * Time the gap before the first kept frame, the timer starts over when the expected sequence moves
+     */
+    private void updateGapTimer() {
+        if (mPendingCount == 0) {
+            cancelGapTimer();
+        } else if (mGapTimer == null || mGapSequence != mExpectedSequence) {
+            cancelGapTimer();
+            Scheduler.Worker timer = mScheduler.createWorker();
+            mGapTimer = timer;
+            mGapSequence = mExpectedSequence;
+            timer.schedule(() -> onGapTimeout(timer), mGapTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelGapTimer() {
+        if (mGapTimer != null) {
+            mGapTimer.unsubscribe();
+            mGapTimer = null;
+        }
+    }
+
+    private synchronized void onGapTimeout(Scheduler.Worker timer) {
+        if (timer != mGapTimer) {
+            return;
+        }
+        cancelGapTimer();
+
+        // The missing frames are late for the gap timeout, skip to the first kept frame
+        int count = 0;
+        while (mPendingCount > 0 && mPendingFrames[(mExpectedSequence + count) & 0xff] == null) {
+            count++;
+        }
+        if (count > 0) {
+            skip(count);
+        }
+        updateGapTimer();
+    }
+
+    private void discard(byte[] frame) {
+        mDuplicateCount++;
+        mReceiver.onDiscard(frame);
+    }
+
+    private void deliver(byte[] frame) {
+        mExpectedSequence = (mExpectedSequence + 1) & 0xff;
+        mReceiver.onFrame(frame);
+    }
+
+    private void deliverPending() {
+        byte[] pending;
+        while ((pending = mPendingFrames[mExpectedSequence]) != null) {
+            mPendingFrames[mExpectedSequence] = null;
+            mPendingCount--;
+            deliver(pending);
+        }
+    }
+
+    private void skip(int count) {
+        for (int i = 0; i < count; i++) {
+            byte[] pending = mPendingFrames[mExpectedSequence];
+            if (pending != null) {
+                mPendingFrames[mExpectedSequence] = null;
+                mPendingCount--;
+                deliver(pending);
+                continue;
+            }
+
+            // Count the lost frames before the next received frame
+            int lost = 1;
+            mExpectedSequence = (mExpectedSequence + 1) & 0xff;
+            while (i + 1 < count && mPendingFrames[mExpectedSequence] == null) {
+                i++;
+                lost++;
+                mExpectedSequence = (mExpectedSequence + 1) & 0xff;
+            }
+            mLostCount += lost;
+            mReceiver.onGap(lost);
+        }
+        deliverPending();
+    }
+
+    /**
+     * Drop the pending frames, the next expected sequence is kept. Called when the session closes.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < SEQUENCE_COUNT; i++) {
+            mPendingFrames[i] = null;
+        }
+        mPendingCount = 0;
+        cancelGapTimer();
+    }
+
+    public synchronized int getExpectedSequence() {
+        return mExpectedSequence;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Get the count of the frames arrived ahead of the missing frames
+     */
+    public synchronized long getReorderedCount() {
+        return mReorderedCount;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * Get the count of the missing frames given up
+     */
+    public synchronized long getLostCount() {
+        return mLostCount;
+    }
+
+    public synchronized long getInvalidCount() {
+        return mInvalidCount;
+    }
+}
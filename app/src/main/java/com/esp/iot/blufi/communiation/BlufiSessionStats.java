@@ -0,0 +1,252 @@
+package com.esp.iot.blufi.communiation;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count the frames, bytes, errors and crypto time of a session.
+ * <p>
+ * The bytes of each frame are split into the payload, the message data it carries, and the overhead:
+ * header, fragment total length and checksum. Recording is a few atomic adds, it is cheap enough to be
+ * always on. The stats of the sessions of a batch can be merged into one.
+ */
+public class BlufiSessionStats {
+    private static final int FRAMES_SENT = 0;
+    private static final int BYTES_SENT = 1;
+    private static final int PAYLOAD_SENT = 2;
+    private static final int MESSAGES_SENT = 3;
+    private static final int MESSAGE_FRAMES_SENT = 4;
+    private static final int FRAMES_RECEIVED = 5;
+    private static final int BYTES_RECEIVED = 6;
+    private static final int PAYLOAD_RECEIVED = 7;
+    private static final int MESSAGES_RECEIVED = 8;
+    private static final int MESSAGE_FRAMES_RECEIVED = 9;
+    private static final int WRITE_FAILURES = 10;
+    private static final int ACK_TIMEOUTS = 11;
+    private static final int CHECKSUM_MISMATCHES = 12;
+    private static final int DISCARDED_FRAMES = 13;
+    private static final int LOST_FRAMES = 14;
+    private static final int AES_NANOS = 15;
+    private static final int CRC_NANOS = 16;
+    private static final int DH_NANOS = 17;
+    private static final int COUNTER_COUNT = 18;
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+
+    /**
+     * Get the message data length a frame carries
+     *
+     * @param frame frame bytes
+     * @return payload length, 0 if the frame is too short
+     */
+    static int getPayloadLength(byte[] frame) {
+        if (frame.length < BlufiFrameEncoder.HEADER_LENGTH) {
+            return 0;
+        }
+        int dataLength = frame[3] & 0xff;
+        boolean frag = ((frame[1] >> IBlufiCommunicator.FRAME_CTRL_POSITION_FRAG) & 1) == 1;
+        if (frag) {
+            dataLength -= BlufiFrameEncoder.FRAG_TOTAL_LENGTH;
+        }
+        return Math.max(0, Math.min(dataLength, frame.length - BlufiFrameEncoder.HEADER_LENGTH));
+    }
+
+    void onFrameSent(byte[] frame) {
+        mCounters.incrementAndGet(FRAMES_SENT);
+        mCounters.addAndGet(BYTES_SENT, frame.length);
+        mCounters.addAndGet(PAYLOAD_SENT, getPayloadLength(frame));
+    }
+
+    /**
+     * @param frameCount the count of the frames the message is fragmented to
+     */
+    void onMessageSent(int frameCount) {
+        mCounters.incrementAndGet(MESSAGES_SENT);
+        mCounters.addAndGet(MESSAGE_FRAMES_SENT, frameCount);
+    }
+
+    void onFrameReceived(byte[] frame) {
+        mCounters.incrementAndGet(FRAMES_RECEIVED);
+        mCounters.addAndGet(BYTES_RECEIVED, frame.length);
+        mCounters.addAndGet(PAYLOAD_RECEIVED, getPayloadLength(frame));
+    }
+
+    void onMessageReceived(int frameCount) {
+        mCounters.incrementAndGet(MESSAGES_RECEIVED);
+        mCounters.addAndGet(MESSAGE_FRAMES_RECEIVED, frameCount);
+    }
+
+    void onWriteFailure() {
+        mCounters.incrementAndGet(WRITE_FAILURES);
+    }
+
+    void onAckTimeout() {
+        mCounters.incrementAndGet(ACK_TIMEOUTS);
+    }
+
+    void onChecksumMismatch() {
+        mCounters.incrementAndGet(CHECKSUM_MISMATCHES);
+    }
+
+    void onFrameDiscarded() {
+        mCounters.incrementAndGet(DISCARDED_FRAMES);
+    }
+
+    void onFramesLost(int count) {
+        mCounters.addAndGet(LOST_FRAMES, count);
+    }
+
+    void addAESTime(long nanos) {
+        mCounters.addAndGet(AES_NANOS, nanos);
+    }
+
+    void addCRCTime(long nanos) {
+        mCounters.addAndGet(CRC_NANOS, nanos);
+    }
+
+    void addDHTime(long nanos) {
+        mCounters.addAndGet(DH_NANOS, nanos);
+    }
+
+    /**
+     * Add the counters of another session
+     */
+    public void merge(BlufiSessionStats other) {
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            mCounters.addAndGet(i, other.mCounters.get(i));
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            mCounters.set(i, 0);
+        }
+    }
+
+    /**
+     * Get the count of the written frames, the retransmitted frames included
+     */
+    public long getFramesSent() {
+        return mCounters.get(FRAMES_SENT);
+    }
+
+    public long getBytesSent() {
+        return mCounters.get(BYTES_SENT);
+    }
+
+    public long getPayloadBytesSent() {
+        return mCounters.get(PAYLOAD_SENT);
+    }
+
+    public long getOverheadBytesSent() {
+        return getBytesSent() - getPayloadBytesSent();
+    }
+
+    public long getMessagesSent() {
+        return mCounters.get(MESSAGES_SENT);
+    }
+
+    /**
+     * Get the average count of the frames a posted message is fragmented to
+     */
+    public double getFragmentsPerMessageSent() {
+        long messages = getMessagesSent();
+        return messages > 0 ? (double) mCounters.get(MESSAGE_FRAMES_SENT) / messages : 0;
+    }
+
+    /**
+     * Get the count of the notified frames, the duplicated and invalid frames included
+     */
+    public long getFramesReceived() {
+        return mCounters.get(FRAMES_RECEIVED);
+    }
+
+    public long getBytesReceived() {
+        return mCounters.get(BYTES_RECEIVED);
+    }
+
+    public long getPayloadBytesReceived() {
+        return mCounters.get(PAYLOAD_RECEIVED);
+    }
+
+    public long getOverheadBytesReceived() {
+        return getBytesReceived() - getPayloadBytesReceived();
+    }
+
+    public long getMessagesReceived() {
+        return mCounters.get(MESSAGES_RECEIVED);
+    }
+
+    /**
+     * Get the average count of the frames a received message is fragmented to
+     */
+    public double getFragmentsPerMessageReceived() {
+        long messages = getMessagesReceived();
+        return messages > 0 ? (double) mCounters.get(MESSAGE_FRAMES_RECEIVED) / messages : 0;
+    }
+
+    public long getWriteFailures() {
+        return mCounters.get(WRITE_FAILURES);
+    }
+
+    /**
+     * Get the count of the frames retransmitted because their ACK timed out
+     */
+    public long getAckTimeouts() {
+        return mCounters.get(ACK_TIMEOUTS);
+    }
+
+    public long getChecksumMismatches() {
+        return mCounters.get(CHECKSUM_MISMATCHES);
+    }
+
+    /**
+     * Get the count of the duplicated or old frames dropped by the reorder buffer
+     */
+    public long getDiscardedFrames() {
+        return mCounters.get(DISCARDED_FRAMES);
+    }
+
+    /**
+     * Get the count of the notified frames never received, skipped by the reorder buffer
+     */
+    public long getLostFrames() {
+        return mCounters.get(LOST_FRAMES);
+    }
+
+    /**
+     * @return time spent in AES in nanoseconds
+     */
+    public long getAESTime() {
+        return mCounters.get(AES_NANOS);
+    }
+
+    /**
+     * @return time spent in the checksum in nanoseconds
+     */
+    public long getCRCTime() {
+        return mCounters.get(CRC_NANOS);
+    }
+
+    /**
+     * @return time spent in the DH or ECDH key generation and agreement in nanoseconds
+     */
+    public long getDHTime() {
+        return mCounters.get(DH_NANOS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH,
+                "sent %d frames %d bytes (payload %d, overhead %d), %d messages %.2f frames each; "
+                        + "received %d frames %d bytes (payload %d, overhead %d), %d messages %.2f frames each; "
+                        + "write failures %d, ack timeouts %d, checksum mismatches %d, discarded %d, lost %d; "
+                        + "aes %.3f ms, crc %.3f ms, dh %.3f ms",
+                getFramesSent(), getBytesSent(), getPayloadBytesSent(), getOverheadBytesSent(),
+                getMessagesSent(), getFragmentsPerMessageSent(),
+                getFramesReceived(), getBytesReceived(), getPayloadBytesReceived(), getOverheadBytesReceived(),
+                getMessagesReceived(), getFragmentsPerMessageReceived(),
+                getWriteFailures(), getAckTimeouts(), getChecksumMismatches(), getDiscardedFrames(), getLostFrames(),
+                getAESTime() / 1e6, getCRCTime() / 1e6, getDHTime() / 1e6);
+    }
+}
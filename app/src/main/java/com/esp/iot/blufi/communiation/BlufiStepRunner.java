@@ -0,0 +1,284 @@
+package com.esp.iot.blufi.communiation;
+
+import com.espressif.libs.log.EspLog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import rx.Single;
+
+/**
+ * Run the provisioning as ordered steps and keep the completed steps as the checkpoint.
+ * <p>
+ * A failed step is retried in place as its policy allows, the retries are counted over all the runs so the
+ * runs don't multiply them. The later {@link #run()} resumes from the first uncompleted step. If the link or
+ * the session is unusable, or a step added to restart still fails after its retries, all the checkpoints are
+ * dropped and the next run starts over from the first step. {@link #runAsync()} runs the same steps without
+ * blocking, a blocking step runs on the thread the run is subscribed on. Not thread safe, the runs of a device
+ * must not overlap.
+ */
+public class BlufiStepRunner {
+    /**
+     * A provisioning step
+     */
+    public interface Step {
+        /**
+         * @return null if the step completed, otherwise the failure message
+         * @throws InterruptedException the thread is interrupted
+         */
+        String run() throws InterruptedException;
+    }
+
+    /**
+     * A non-blocking provisioning step
+     */
+    public interface AsyncStep {
+        /**
+         * @return Single of null if the step completed, otherwise the failure message
+         */
+        Single<String> run();
+    }
+
+    /**
+     * Check whether the link and the session the steps depend on are still usable
+     */
+    public interface LinkChecker {
+        boolean isLinkAlive();
+    }
+
+    private static class StepEntry {
+        final String name;
+        final int maxRetry;
+        final boolean restart;
+        final AsyncStep step;
+
+        boolean completed = false;
+        int retryCount = 0;
+
+        StepEntry(String name, int maxRetry, boolean restart, AsyncStep step) {
+            this.name = name;
+            this.maxRetry = maxRetry;
+            this.restart = restart;
+            this.step = step;
+        }
+    }
+
+    private final List<StepEntry> mSteps = new ArrayList<>();
+    private LinkChecker mLinkChecker;
+    private BlufiPhaseRecorder mPhaseRecorder;
+
+    private int mRunCount = 0;
+    private int mRetryCount = 0;
+    private int mRestartCount = 0;
+
+    /**
+     * Add a step after the added steps
+     *
+     * @param name     step name, used in the log
+     * @param maxRetry the times the step is retried in place after it failed, in all the runs
+     * @param step     the step
+     * @return this runner
+     */
+    public BlufiStepRunner addStep(String name, int maxRetry, Step step) {
+        return addStep(name, maxRetry, false, step);
+    }
+
+    /**
+     * Add a step after the added steps
+     *
+     * @param name     step name, used in the log
+     * @param maxRetry the times the step is retried in place after it failed, in all the runs
+     * @param restart  true if the session is unusable once the step fails after its retries, the steps start over
+     * @param step     the step
+     * @return this runner
+     */
+    public BlufiStepRunner addStep(String name, int maxRetry, boolean restart, Step step) {
+        return addAsyncStep(name, maxRetry, restart, () -> Single.fromCallable(step::run));
+    }
+
+    /**
+     * Add a non-blocking step after the added steps
+     *
+     * @param name     step name, used in the log
+     * @param maxRetry the times the step is retried in place after it failed, in all the runs
+     * @param restart  true if the session is unusable once the step fails after its retries, the steps start over
+     * @param step     the step
+     * @return this runner
+     */
+    public BlufiStepRunner addAsyncStep(String name, int maxRetry, boolean restart, AsyncStep step) {
+        mSteps.add(new StepEntry(name, maxRetry, restart, step));
+        return this;
+    }
+
+    /**
+     * Set the checker called after a step failed, the step is not retried in place and the steps start over if
+     * the link is lost or the session is unusable
+     *
+     * @param checker link checker, null if the link is never lost
+     * @return this runner
+     */
+    public BlufiStepRunner setLinkChecker(LinkChecker checker) {
+        mLinkChecker = checker;
+        return this;
+    }
+
+    /**
+     * Set the recorder of the step latencies, each try is recorded as the step name if it completed,
+     * otherwise as the step name with " failed"
+     *
+     * @param recorder phase recorder, null to record nothing
+     * @return this runner
+     */
+    public BlufiStepRunner setPhaseRecorder(BlufiPhaseRecorder recorder) {
+        mPhaseRecorder = recorder;
+        return this;
+    }
+
+    private boolean isLinkAlive() {
+        return mLinkChecker == null || mLinkChecker.isLinkAlive();
+    }
+
+    /**
+     * Run the uncompleted steps in order and block
+     *
+     * @return null if all the steps completed, otherwise the failure message of the failed step
+     * @throws InterruptedException the thread is interrupted
+     */
+    public String run() throws InterruptedException {
+        try {
+            return runAsync().toBlocking().value();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Run the uncompleted steps in order without blocking
+     *
+     * @return Single of null if all the steps completed, otherwise the failure message of the failed step
+     */
+    public Single<String> runAsync() {
+        return Single.defer(() -> {
+            mRunCount++;
+            if (hasCheckpoint() && !isLinkAlive()) {
+                EspLog.w("BlufiStepRunner link lost before resume, start over");
+                restart();
+            }
+
+            return runFrom(0);
+        });
+    }
+
+    private Single<String> runFrom(int index) {
+        while (index < mSteps.size() && mSteps.get(index).completed) {
+            index++;
+        }
+        if (index == mSteps.size()) {
+            return Single.just(null);
+        }
+
+        final StepEntry entry = mSteps.get(index);
+        final int next = index + 1;
+        return runStep(entry).flatMap(failure -> {
+            if (failure != null) {
+                if (!isLinkAlive()) {
+                    EspLog.w("BlufiStepRunner link lost at %s, start over", entry.name);
+                    restart();
+                } else if (entry.restart) {
+                    EspLog.w("BlufiStepRunner %s failed after retries, start over", entry.name);
+                    restart();
+                }
+                return Single.just(failure);
+            }
+
+            entry.completed = true;
+            return runFrom(next);
+        });
+    }
+
+    private Single<String> runStep(StepEntry entry) {
+        return Single.defer(() -> {
+            long startTime = System.nanoTime();
+            return entry.step.run().doOnSuccess(failure -> {
+                if (mPhaseRecorder != null) {
+                    mPhaseRecorder.recordSince(failure == null ? entry.name : entry.name + " failed", startTime);
+                }
+            });
+        }).flatMap(failure -> {
+            if (failure == null || entry.retryCount >= entry.maxRetry || !isLinkAlive()) {
+                return Single.just(failure);
+            }
+
+            entry.retryCount++;
+            mRetryCount++;
+            EspLog.w("BlufiStepRunner retry %s %d", entry.name, entry.retryCount);
+            return runStep(entry);
+        });
+    }
+
+    private void restart() {
+        mRestartCount++;
+        for (StepEntry entry : mSteps) {
+            entry.completed = false;
+        }
+    }
+
+    /**
+     * Whether all the steps completed
+     */
+    public boolean isCompleted() {
+        for (StepEntry entry : mSteps) {
+            if (!entry.completed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether any step completed, the next run resumes from the checkpoint
+     */
+    public boolean hasCheckpoint() {
+        for (StepEntry entry : mSteps) {
+            if (entry.completed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the name of the step the next run starts from
+     *
+     * @return step name, null if all the steps completed
+     */
+    public String getResumeStep() {
+        for (StepEntry entry : mSteps) {
+            if (!entry.completed) {
+                return entry.name;
+            }
+        }
+        return null;
+    }
+
+    public int getRunCount() {
+        return mRunCount;
+    }
+
+    /**
+     * Get the count of the in place retries of all steps
+     */
+    public int getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * Get the count of the times the steps started over after the link or the session was lost
+     */
+    public int getRestartCount() {
+        return mRestartCount;
+    }
+}
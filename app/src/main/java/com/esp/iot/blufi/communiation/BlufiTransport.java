@@ -0,0 +1,81 @@
+package com.esp.iot.blufi.communiation;
+
+import rx.Single;
+
+/**
+ * The link the Blufi frames are written to and notified from.
+ * <p>
+ * {@link BlufiBleTransport} writes the GATT characteristics, {@link BlufiLoopbackTransport} connects the
+ * communicator with a device in memory.
+ */
+public interface BlufiTransport {
+    /**
+     * Receive the notified frames
+     */
+    interface NotificationListener {
+        void onNotification(byte[] data);
+    }
+
+    /**
+     * Subscribe the notifications
+     *
+     * @param listener receive the notifications in order, null to unsubscribe
+     * @return subscribe successfully or not
+     */
+    boolean setNotificationListener(NotificationListener listener);
+
+    /**
+     * Write a frame and wait until it is written
+     *
+     * @return write successfully or not
+     */
+    boolean write(byte[] data);
+
+    /**
+     * Write a frame without blocking, only one write can be in progress
+     *
+     * @return Single of the write result, false if timeout
+     */
+    Single<Boolean> writeAsync(byte[] data);
+
+    /**
+     * Whether the frames can be written by {@link #writeNoResponse(byte[])} now
+     */
+    boolean isPipelinedWriteAvailable();
+
+    /**
+     * Write a frame without waiting for it is written, several frames can be in flight
+     *
+     * @return false if the frame is not accepted, the frame can be written again
+     */
+    boolean writeNoResponse(byte[] data);
+
+    /**
+     * Wait until the frames written by {@link #writeNoResponse(byte[])} are written
+     *
+     * @param timeout max wait time in milliseconds
+     * @return true if all the frames since last flush are written
+     */
+    boolean flushWrite(long timeout);
+
+    /**
+     * Wait without blocking until the frames written by {@link #writeNoResponse(byte[])} are written
+     *
+     * @param timeout max wait time in milliseconds
+     * @return Single of true if all the frames since last flush are written
+     */
+    Single<Boolean> flushWriteAsync(long timeout);
+
+    /**
+     * Whether the last failed write was refused for the frame length, the device has not received the frame.
+     * A timeout or another error doesn't tell whether the device received it.
+     */
+    boolean isLastWriteTooLong();
+
+    /**
+     * Get the MTU of the link, a frame is at most MTU - 3 bytes
+     */
+    int getMtu();
+
+    boolean isConnected();
+}
@@ -25,6 +25,7 @@ public interface IBlufiCommunicator {
     byte NEG_SET_WIFI_CHANNEL = 0x07;
     byte NEG_SET_CONFIGURE_SEQUENCE = 0x08;
     byte NEG_CHECK_NEG_SEC = 0x09;
+    byte NEG_SET_SEC_ECDH_PUBLIC_KEY = 0x0a;
 
     final class Type {
         public final static class Ctrl {
@@ -60,6 +61,7 @@ public interface IBlufiCommunicator {
             public static final int SUBTYPE_SERVER_PRIVATE_KEY = 0x0e;
             public static final int SUBTYPE_WIFI_CONNECTION_STATE = 0x0f;
             public static final int SUBTYPE_VERSION = 0x10;
+            public static final int SUBTYPE_ERROR = 0x12;
         }
     }
 
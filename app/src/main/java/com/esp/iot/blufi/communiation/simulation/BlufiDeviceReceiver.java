@@ -0,0 +1,182 @@
+package com.esp.iot.blufi.communiation.simulation;
+
+import com.esp.iot.blufi.communiation.BlufiFrameDecoder;
+import com.esp.iot.blufi.communiation.BlufiNotiData;
+import com.esp.iot.blufi.communiation.IBlufiCommunicator;
+import com.espressif.libs.security.EspAES;
+
+/**
+ * The device side receiver of the frames written by the phone.
+ * <p>
+ * By default the sequence is checked like the firmware does: a frame not of the expected sequence is dropped
+ * and reported as a sequence error, the expected sequence doesn't move. With a window the frames are handled
+ * in sequence order instead, a duplicated frame is dropped and acknowledged again, a frame ahead of the
+ * expected sequence is kept in the window and acknowledged, so the phone only retransmits the missing frames.
+ * The callbacks run on the thread calling {@link #onFrame(byte[])}.
+ */
+public class BlufiDeviceReceiver {
+    public interface Listener {
+        /**
+         * A whole message is received
+         */
+        void onMessage(BlufiNotiData message);
+
+        /**
+         * The frame requires ack, the device should notify an ACK of the sequence
+         */
+        void onAck(int sequence);
+
+        /**
+         * A frame is not of the expected sequence and dropped, the device should report the error
+         *
+         * @param expected the expected sequence
+         * @param received the sequence of the dropped frame
+         */
+        void onSequenceError(int expected, int received);
+    }
+
+    private static final int SEQUENCE_COUNT = 256;
+
+    private final Listener mListener;
+    private int mWindow;
+    private final BlufiFrameDecoder mDecoder = new BlufiFrameDecoder();
+
+    private final byte[][] mPendingFrames = new byte[SEQUENCE_COUNT][];
+    private int mExpectedSequence = 0;
+    private BlufiNotiData mMessage;
+
+    private long mFrameCount = 0;
+    private long mDuplicateCount = 0;
+    private long mOutOfOrderCount = 0;
+    private long mInvalidCount = 0;
+    private long mSequenceErrorCount = 0;
+
+    public BlufiDeviceReceiver(Listener listener) {
+        this(listener, 0);
+    }
+
+    /**
+     * @param listener receive the messages and the ACK requests
+     * @param window   see {@link #setWindow(int)}
+     */
+    public BlufiDeviceReceiver(Listener listener, int window) {
+        mListener = listener;
+        setWindow(window);
+    }
+
+    /**
+     * Set the max count of the frames kept ahead of the expected sequence
+     *
+     * @param window less than 128, 0 to check the sequence like the firmware
+     */
+    public synchronized void setWindow(int window) {
+        mWindow = Math.max(0, Math.min(window, SEQUENCE_COUNT / 2 - 1));
+    }
+
+    /**
+     * Set the session AES after the security negotiation
+     */
+    public synchronized void setAES(EspAES aes) {
+        mDecoder.setAES(aes);
+    }
+
+    /**
+     * Handle a frame written by the phone
+     *
+     * @param frame frame bytes
+     */
+    public synchronized void onFrame(byte[] frame) {
+        if (frame == null || frame.length < 4) {
+            mInvalidCount++;
+            return;
+        }
+
+        mFrameCount++;
+        int sequence = frame[2] & 0xff;
+        if (mWindow == 0 && sequence != mExpectedSequence) {
+            mSequenceErrorCount++;
+            mListener.onSequenceError(mExpectedSequence, sequence);
+            return;
+        }
+
+        int distance = (sequence - mExpectedSequence) & 0xff;
+        if (distance >= SEQUENCE_COUNT / 2) {
+            // Handled already, the ACK may be lost
+            mDuplicateCount++;
+            ackIfRequired(frame);
+            return;
+        }
+        if (distance > mWindow) {
+            mInvalidCount++;
+            return;
+        }
+        if (distance > 0) {
+            if (mPendingFrames[sequence] == null) {
+                mOutOfOrderCount++;
+                mPendingFrames[sequence] = frame;
+            } else {
+                mDuplicateCount++;
+            }
+            ackIfRequired(frame);
+            return;
+        }
+
+        if (!handle(frame)) {
+            return;
+        }
+        ackIfRequired(frame);
+
+        // Handle the frames received ahead
+        while (mPendingFrames[mExpectedSequence] != null) {
+            byte[] pending = mPendingFrames[mExpectedSequence];
+            mPendingFrames[mExpectedSequence] = null;
+            handle(pending);
+        }
+    }
+
+    private boolean handle(byte[] frame) {
+        if (mMessage == null) {
+            mMessage = new BlufiNotiData();
+        }
+
+        int result = mDecoder.decode(frame, mMessage);
+        if (result == BlufiFrameDecoder.RESULT_INVALID) {
+            mInvalidCount++;
+            return false;
+        }
+
+        mExpectedSequence = (mExpectedSequence + 1) & 0xff;
+        if (result == BlufiFrameDecoder.RESULT_COMPLETE) {
+            BlufiNotiData message = mMessage;
+            mMessage = null;
+            mListener.onMessage(message);
+        }
+        return true;
+    }
+
+    private void ackIfRequired(byte[] frame) {
+        if (new IBlufiCommunicator.FrameCtrlData(frame[1] & 0xff).requireAck()) {
+            mListener.onAck(frame[2] & 0xff);
+        }
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    public synchronized long getOutOfOrderCount() {
+        return mOutOfOrderCount;
+    }
+
+    public synchronized long getInvalidCount() {
+        return mInvalidCount;
+    }
+
+    public synchronized long getSequenceErrorCount() {
+        return mSequenceErrorCount;
+    }
+}
@@ -0,0 +1,134 @@
+package com.esp.iot.blufi.communiation.simulation;
+
+import com.esp.iot.blufi.communiation.IBlufiCommunicator;
+import com.espressif.libs.security.EspAES;
+import com.espressif.libs.security.EspDH;
+import com.espressif.libs.security.EspECDH;
+import com.espressif.libs.security.EspMD5;
+
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.spec.InvalidKeySpecException;
+
+/**
+ * The device side of the security negotiation, it handles the NEG data posted by the phone like the
+ * ESP32 Blufi stack does. Supports both classic DH and ECDH.
+ */
+public class BlufiDeviceSecurity {
+    private final int mDHLength;
+
+    private int mDHTotalLength = -1;
+
+    private byte[] mSecretKeyMD5;
+    private EspAES mAES;
+
+    /**
+     * @param dhLength the bit length of the device DH private key
+     */
+    public BlufiDeviceSecurity(int dhLength) {
+        mDHLength = dhLength;
+    }
+
+    /**
+     * Handle the NEG data received from the phone
+     *
+     * @param data NEG data, the first byte is the NEG type
+     * @return the data the device notifies back, null if no response or the data is invalid
+     */
+    public byte[] onNegotiateData(byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+
+        switch (data[0]) {
+            case IBlufiCommunicator.NEG_SET_SEC_TOTLE_LEN:
+                if (data.length < 3) {
+                    return null;
+                }
+                mDHTotalLength = ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+                return null;
+            case IBlufiCommunicator.NEG_SET_SEC_ALL_DATA:
+                return negotiateDH(data);
+            case IBlufiCommunicator.NEG_SET_SEC_ECDH_PUBLIC_KEY:
+                return negotiateECDH(data);
+            default:
+                return null;
+        }
+    }
+
+    private byte[] negotiateDH(byte[] data) {
+        if (mDHTotalLength >= 0 && mDHTotalLength != data.length - 1) {
+            return null;
+        }
+
+        try {
+            // P, G and public value with big-endian lengths
+            ByteBuffer buffer = ByteBuffer.wrap(data, 1, data.length - 1);
+            byte[] pBytes = new byte[buffer.getShort() & 0xffff];
+            buffer.get(pBytes);
+            byte[] gBytes = new byte[buffer.getShort() & 0xffff];
+            buffer.get(gBytes);
+            byte[] kBytes = new byte[buffer.getShort() & 0xffff];
+            buffer.get(kBytes);
+
+            EspDH dh = new EspDH(new BigInteger(1, pBytes), new BigInteger(1, gBytes), mDHLength);
+            dh.generateSecretKey(kBytes);
+            if (!setSecretKey(dh.getSecretKey())) {
+                return null;
+            }
+            return dh.getPublicKeyBytes();
+        } catch (BufferUnderflowException | InvalidKeySpecException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    private byte[] negotiateECDH(byte[] data) {
+        byte[] kBytes = new byte[data.length - 1];
+        System.arraycopy(data, 1, kBytes, 0, kBytes.length);
+
+        try {
+            EspECDH ecdh = new EspECDH();
+            ecdh.generateSecretKey(kBytes);
+            if (!setSecretKey(ecdh.getSecretKey())) {
+                return null;
+            }
+            return ecdh.getPublicKeyBytes();
+        } catch (InvalidKeySpecException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    private boolean setSecretKey(byte[] secretKey) {
+        if (secretKey == null) {
+            return false;
+        }
+        mSecretKeyMD5 = EspMD5.getMD5Byte(secretKey);
+        if (mSecretKeyMD5 == null) {
+            return false;
+        }
+        mAES = new EspAES(mSecretKeyMD5);
+        return true;
+    }
+
+    public boolean isNegotiated() {
+        return mAES != null;
+    }
+
+    public byte[] getSecretKeyMD5() {
+        return mSecretKeyMD5;
+    }
+
+    /**
+     * Get the AES created with the negotiated secret key
+     *
+     * @return null if not negotiated
+     */
+    public EspAES getAES() {
+        return mAES;
+    }
+}
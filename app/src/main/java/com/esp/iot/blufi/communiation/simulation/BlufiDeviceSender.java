@@ -0,0 +1,77 @@
+package com.esp.iot.blufi.communiation.simulation;
+
+import com.esp.iot.blufi.communiation.BlufiFrameEncoder;
+import com.esp.iot.blufi.communiation.IBlufiCommunicator;
+import com.espressif.libs.security.EspAES;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The device side encoder of the frames notified to the phone, the frames are fragmented like the phone does.
+ */
+public class BlufiDeviceSender {
+    private static final int DEFAULT_PACKAGE_LENGTH = 128;
+
+    private final BlufiFrameEncoder mEncoder = new BlufiFrameEncoder();
+    private int mSequence = 0;
+    private int mPackageLengthLimit = DEFAULT_PACKAGE_LENGTH;
+
+    public synchronized void setAES(EspAES aes) {
+        mEncoder.setAES(aes);
+    }
+
+    /**
+     * @param lengthLimit max length of a frame
+     */
+    public synchronized void setPackageLengthLimit(int lengthLimit) {
+        mPackageLengthLimit = Math.max(lengthLimit, BlufiFrameEncoder.HEADER_LENGTH
+                + BlufiFrameEncoder.FRAG_TOTAL_LENGTH + BlufiFrameEncoder.CHECKSUM_LENGTH);
+    }
+
+    /**
+     * Encode the ACK of a frame received
+     *
+     * @param sequence the sequence of the frame received
+     * @return frame bytes
+     */
+    public synchronized byte[] encodeAck(int sequence) {
+        int type = (IBlufiCommunicator.Type.Ctrl.SUBTYPE_ACK << 2) | IBlufiCommunicator.Type.Ctrl.PACKAGE_VALUE;
+        int frameCtrl = BlufiFrameEncoder.getFrameCtrlValue(false, false, true, false, false);
+        return mEncoder.encode(type, frameCtrl, mSequence++, 0, new byte[]{(byte) sequence}, 0, 1);
+    }
+
+    /**
+     * Encode a message
+     *
+     * @param type      type value
+     * @param encrypted encrypt the data or not
+     * @param checksum  add checksum or not
+     * @param data      message data, null if the message has no data
+     * @return frames
+     */
+    public synchronized List<byte[]> encode(int type, boolean encrypted, boolean checksum, byte[] data) {
+        List<byte[]> frames = new ArrayList<>();
+        if (data == null || data.length == 0) {
+            int frameCtrl = BlufiFrameEncoder.getFrameCtrlValue(encrypted, checksum, true, false, false);
+            frames.add(mEncoder.encode(type, frameCtrl, mSequence++));
+            return frames;
+        }
+
+        int dataLengthLimit = mPackageLengthLimit - BlufiFrameEncoder.HEADER_LENGTH;
+        if (checksum) {
+            dataLengthLimit -= BlufiFrameEncoder.CHECKSUM_LENGTH;
+        }
+        int offset = 0;
+        while (offset < data.length) {
+            int remainLen = data.length - offset;
+            boolean frag = remainLen > dataLengthLimit;
+            int frameDataLen = frag ? dataLengthLimit - BlufiFrameEncoder.FRAG_TOTAL_LENGTH : remainLen;
+            int frameCtrl = BlufiFrameEncoder.getFrameCtrlValue(encrypted, checksum, true, false, frag);
+            frames.add(mEncoder.encode(type, frameCtrl, mSequence++, remainLen, data, offset, frameDataLen));
+            offset += frameDataLen;
+        }
+
+        return frames;
+    }
+}
@@ -0,0 +1,524 @@
+package com.esp.iot.blufi.communiation.simulation;
+
+import com.esp.iot.blufi.communiation.BlufiTransport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import rx.Scheduler;
+import rx.Single;
+import rx.SingleSubscriber;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Emulate a bad link around another transport: frame loss, duplication, reordering, latency and jitter,
+ * an MTU limit, a bounded write queue and random disconnects.
+ * <p>
+ * The random choices of each direction come from a generator seeded with the given seed, so a run is
+ * reproducible as long as the frames are written and notified in the same order.
+ * <p>
+ * Only the notifications and the writes without response are reordered, an acknowledged write waits for its
+ * delay before it returns so no later frame can overtake it.
+ */
+public class BlufiImpairedTransport implements BlufiTransport {
+    /**
+     * The jitter is uniformly distributed from 0 to the jitter
+     */
+    public static final int JITTER_UNIFORM = 0;
+    /**
+     * The jitter is exponentially distributed with the jitter as the mean, a long tail of late frames
+     */
+    public static final int JITTER_EXPONENTIAL = 1;
+    /**
+     * The delay is normally distributed around the latency with the jitter as the standard deviation,
+     * never less than 0
+     */
+    public static final int JITTER_NORMAL = 2;
+
+    /**
+     * The impairments of the link, all disabled by default
+     */
+    public static class Profile {
+        double lossRate = 0;
+        double duplicateRate = 0;
+        double reorderRate = 0;
+        long latency = 0L;
+        long jitter = 0L;
+        int jitterDistribution = JITTER_UNIFORM;
+        int mtu = 0;
+        int writeQueueCapacity = Integer.MAX_VALUE;
+        double disconnectRate = 0;
+
+        /**
+         * @param rate the probability a frame is lost
+         */
+        public Profile setLossRate(double rate) {
+            lossRate = rate;
+            return this;
+        }
+
+        /**
+         * @param rate the probability a frame is delivered twice
+         */
+        public Profile setDuplicateRate(double rate) {
+            duplicateRate = rate;
+            return this;
+        }
+
+        /**
+         * @param rate the probability a notification or a write without response is held back and overtaken
+         *             by the later frames
+         */
+        public Profile setReorderRate(double rate) {
+            reorderRate = rate;
+            return this;
+        }
+
+        /**
+         * @param latency the delay of each frame in milliseconds
+         * @param jitter  the extra delay in milliseconds, see {@link #setJitterDistribution(int)}
+         */
+        public Profile setLatency(long latency, long jitter) {
+            this.latency = latency;
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * @param distribution {@link #JITTER_UNIFORM}, {@link #JITTER_EXPONENTIAL} or {@link #JITTER_NORMAL}
+         */
+        public Profile setJitterDistribution(int distribution) {
+            jitterDistribution = distribution;
+            return this;
+        }
+
+        /**
+         * Get the delay most frames arrive in, a held frame waits longer
+         */
+        long getDelayBound() {
+            switch (jitterDistribution) {
+                case JITTER_EXPONENTIAL:
+                case JITTER_NORMAL:
+                    return latency + 3 * jitter;
+                default:
+                    return latency + jitter;
+            }
+        }
+
+        /**
+         * @param mtu the MTU of the link, the longer frames are rejected, 0 to use the MTU of the transport
+         */
+        public Profile setMtu(int mtu) {
+            this.mtu = mtu;
+            return this;
+        }
+
+        /**
+         * @param capacity the count of the frames written without response can be in flight
+         */
+        public Profile setWriteQueueCapacity(int capacity) {
+            writeQueueCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param rate the probability the link is lost at a written frame
+         */
+        public Profile setDisconnectRate(double rate) {
+            disconnectRate = rate;
+            return this;
+        }
+    }
+
+    private static final long REORDER_HOLD = 5L;
+
+    private final BlufiTransport mTransport;
+    private final Profile mProfile;
+    private final Scheduler mScheduler;
+    private final Scheduler.Worker mWriteWorker;
+    private final Scheduler.Worker mNotifyWorker;
+    private final Random mWriteRandom;
+    private final Random mNotifyRandom;
+
+    private volatile boolean mConnected = true;
+    private volatile NotificationListener mListener;
+    private volatile boolean mLastWriteTooLong = false;
+
+    private int mQueuedWrites = 0;
+    private final List<SingleSubscriber<? super Boolean>> mFlushWaiters = new ArrayList<>();
+
+    private long mLostCount = 0;
+    private long mDuplicateCount = 0;
+    private long mReorderCount = 0;
+    private long mRejectedCount = 0;
+    private long mBackPressureCount = 0;
+    private long mDisconnectCount = 0;
+
+    /**
+     * @param transport the transport impaired
+     * @param profile   the impairments
+     * @param seed      seed of the random choices
+     * @param scheduler the delayed frames are delivered on its workers
+     */
+    public BlufiImpairedTransport(BlufiTransport transport, Profile profile, long seed, Scheduler scheduler) {
+        mTransport = transport;
+        mProfile = profile;
+        mScheduler = scheduler;
+        mWriteWorker = scheduler.createWorker();
+        mNotifyWorker = scheduler.createWorker();
+        mWriteRandom = new Random(seed);
+        mNotifyRandom = new Random(seed + 1);
+    }
+
+    /**
+     * The fate of a frame
+     */
+    private static class Decision {
+        boolean lost;
+        boolean duplicated;
+        boolean disconnect;
+        long delay;
+    }
+
+    private long nextDelay(Random random) {
+        long latency = mProfile.latency;
+        long jitter = mProfile.jitter;
+        if (jitter <= 0) {
+            return latency;
+        }
+
+        switch (mProfile.jitterDistribution) {
+            case JITTER_EXPONENTIAL:
+                return latency + (long) (-Math.log(1.0 - random.nextDouble()) * jitter);
+            case JITTER_NORMAL:
+                return Math.max(0L, latency + Math.round(random.nextGaussian() * jitter));
+            default:
+                return latency + (long) (random.nextDouble() * (jitter + 1));
+        }
+    }
+
+    /**
+     * @param write       the frame is written
+     * @param reorderable the frame is delivered on a worker, a later frame can overtake it
+     */
+    private Decision decide(Random random, boolean write, boolean reorderable) {
+        Decision decision = new Decision();
+        boolean reordered = false;
+        synchronized (random) {
+            if (write && mProfile.disconnectRate > 0 && random.nextDouble() < mProfile.disconnectRate) {
+                decision.disconnect = true;
+                return decision;
+            }
+
+            decision.lost = mProfile.lossRate > 0 && random.nextDouble() < mProfile.lossRate;
+            if (!decision.lost) {
+                decision.duplicated = mProfile.duplicateRate > 0 && random.nextDouble() < mProfile.duplicateRate;
+
+                decision.delay = nextDelay(random);
+                if (reorderable && mProfile.reorderRate > 0 && random.nextDouble() < mProfile.reorderRate) {
+                    // Hold it long enough for the next frames to pass
+                    reordered = true;
+                    decision.delay += mProfile.getDelayBound() + REORDER_HOLD;
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (decision.lost) {
+                mLostCount++;
+            }
+            if (decision.duplicated) {
+                mDuplicateCount++;
+            }
+            if (reordered) {
+                mReorderCount++;
+            }
+        }
+        return decision;
+    }
+
+    private void disconnect() {
+        List<SingleSubscriber<? super Boolean>> flushWaiters;
+        synchronized (this) {
+            if (!mConnected) {
+                return;
+            }
+            mConnected = false;
+            mDisconnectCount++;
+            notifyAll();
+            flushWaiters = takeFlushWaiters();
+        }
+        mTransport.setNotificationListener(null);
+        completeFlushWaiters(flushWaiters);
+    }
+
+    private boolean isTooLong(byte[] data) {
+        mLastWriteTooLong = data.length > getMtu() - 3;
+        if (mLastWriteTooLong) {
+            synchronized (this) {
+                mRejectedCount++;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean setNotificationListener(NotificationListener listener) {
+        mListener = listener;
+        if (listener == null) {
+            return mTransport.setNotificationListener(null);
+        }
+        return mConnected && mTransport.setNotificationListener(this::onNotification);
+    }
+
+    private void onNotification(byte[] data) {
+        if (!mConnected) {
+            return;
+        }
+
+        Decision decision = decide(mNotifyRandom, false, true);
+        if (decision.lost) {
+            return;
+        }
+        deliverNotification(data, decision.delay);
+        if (decision.duplicated) {
+            deliverNotification(data, decision.delay);
+        }
+    }
+
+    private void deliverNotification(byte[] data, long delay) {
+        mNotifyWorker.schedule(() -> {
+            NotificationListener listener = mListener;
+            if (mConnected && listener != null) {
+                listener.onNotification(data);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean write(byte[] data) {
+        if (!mConnected || isTooLong(data)) {
+            return false;
+        }
+
+        Decision decision = decide(mWriteRandom, true, false);
+        if (decision.disconnect) {
+            disconnect();
+            return false;
+        }
+        if (decision.delay > 0) {
+            try {
+                Thread.sleep(decision.delay);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+        // A lost frame is still reported written, it never reaches the device
+        return forward(data, decision);
+    }
+
+    private boolean forward(byte[] data, Decision decision) {
+        if (!mConnected) {
+            return false;
+        }
+        if (decision.lost) {
+            return true;
+        }
+
+        boolean result = mTransport.write(data);
+        if (decision.duplicated) {
+            mTransport.write(data);
+        }
+        return result;
+    }
+
+    @Override
+    public Single<Boolean> writeAsync(byte[] data) {
+        return Single.defer(() -> {
+            if (!mConnected || isTooLong(data)) {
+                return Single.just(false);
+            }
+
+            Decision decision = decide(mWriteRandom, true, false);
+            if (decision.disconnect) {
+                disconnect();
+                return Single.just(false);
+            }
+            if (decision.delay > 0) {
+                return Single.just(decision).delay(decision.delay, TimeUnit.MILLISECONDS, mScheduler)
+                        .map(d -> forward(data, d));
+            }
+            return Single.just(forward(data, decision));
+        });
+    }
+
+    @Override
+    public boolean isPipelinedWriteAvailable() {
+        return mTransport.isPipelinedWriteAvailable();
+    }
+
+    @Override
+    public boolean writeNoResponse(byte[] data) {
+        if (!mConnected || isTooLong(data)) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (mQueuedWrites >= mProfile.writeQueueCapacity) {
+                mBackPressureCount++;
+                return false;
+            }
+            mQueuedWrites++;
+        }
+
+        Decision decision = decide(mWriteRandom, true, true);
+        if (decision.disconnect) {
+            disconnect();
+            onQueuedWriteComplete();
+            return false;
+        }
+        mWriteWorker.schedule(() -> {
+            if (mConnected && !decision.lost) {
+                mTransport.writeNoResponse(data);
+                if (decision.duplicated) {
+                    mTransport.writeNoResponse(data);
+                }
+            }
+            onQueuedWriteComplete();
+        }, decision.delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void onQueuedWriteComplete() {
+        List<SingleSubscriber<? super Boolean>> flushWaiters = null;
+        synchronized (this) {
+            mQueuedWrites--;
+            notifyAll();
+            if (mQueuedWrites == 0) {
+                flushWaiters = takeFlushWaiters();
+            }
+        }
+        completeFlushWaiters(flushWaiters);
+    }
+
+    /**
+     * Take all the flush waiters, called with the lock held
+     */
+    private List<SingleSubscriber<? super Boolean>> takeFlushWaiters() {
+        List<SingleSubscriber<? super Boolean>> waiters = new ArrayList<>(mFlushWaiters);
+        mFlushWaiters.clear();
+        return waiters;
+    }
+
+    private static void completeFlushWaiters(List<SingleSubscriber<? super Boolean>> waiters) {
+        if (waiters != null) {
+            for (SingleSubscriber<? super Boolean> waiter : waiters) {
+                waiter.onSuccess(true);
+            }
+        }
+    }
+
+    private synchronized void removeFlushWaiter(SingleSubscriber<? super Boolean> subscriber) {
+        mFlushWaiters.remove(subscriber);
+    }
+
+    @Override
+    public boolean flushWrite(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (mQueuedWrites > 0 && mConnected) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+        }
+
+        return mConnected && mTransport.flushWrite(timeout);
+    }
+
+    @Override
+    public Single<Boolean> flushWriteAsync(long timeout) {
+        Single<Boolean> flush = Single.create(subscriber -> {
+            synchronized (BlufiImpairedTransport.this) {
+                if (mQueuedWrites > 0 && mConnected) {
+                    mFlushWaiters.add(subscriber);
+                    subscriber.add(Subscriptions.create(() -> removeFlushWaiter(subscriber)));
+                    return;
+                }
+            }
+            subscriber.onSuccess(true);
+        });
+        return flush.timeout(timeout, TimeUnit.MILLISECONDS, Single.just(false), mScheduler)
+                .flatMap(drained -> drained && mConnected ? mTransport.flushWriteAsync(timeout) : Single.just(false));
+    }
+
+    @Override
+    public boolean isLastWriteTooLong() {
+        return mLastWriteTooLong || mTransport.isLastWriteTooLong();
+    }
+
+    @Override
+    public int getMtu() {
+        int mtu = mTransport.getMtu();
+        return mProfile.mtu > 0 ? Math.min(mProfile.mtu, mtu) : mtu;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected && mTransport.isConnected();
+    }
+
+    /**
+     * Stop delivering the delayed frames
+     */
+    public void close() {
+        disconnect();
+        mWriteWorker.unsubscribe();
+        mNotifyWorker.unsubscribe();
+    }
+
+    public synchronized long getLostCount() {
+        return mLostCount;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * Get the count of the frames held back for the later frames to overtake, only the notifications and the
+     * writes without response are held
+     */
+    public synchronized long getReorderCount() {
+        return mReorderCount;
+    }
+
+    /**
+     * Get the count of the frames rejected by the MTU limit
+     */
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Get the count of the writes refused because the write queue was full
+     */
+    public synchronized long getBackPressureCount() {
+        return mBackPressureCount;
+    }
+
+    public synchronized long getDisconnectCount() {
+        return mDisconnectCount;
+    }
+}
@@ -0,0 +1,510 @@
+package com.esp.iot.blufi.communiation.simulation;
+
+import com.esp.iot.blufi.communiation.BlufiLoopbackTransport;
+import com.esp.iot.blufi.communiation.BlufiNotiData;
+import com.esp.iot.blufi.communiation.IBlufiCommunicator;
+import com.esp.iot.blufi.communiation.IBlufiCommunicator.Type;
+import com.espressif.libs.security.EspAES;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.Scheduler;
+
+/**
+ * A Blufi device in pure Java, it handles what {@link com.esp.iot.blufi.communiation.BlufiCommunicator} posts
+ * like the ESP32 Blufi stack does: the security negotiation, the framing, the ACKs, the sequence check, the
+ * op mode, the station and SoftAP settings, the deauthentication, the wifi state and the version.
+ * <p>
+ * The device runs on a worker of the given scheduler, so thousands of devices share the threads of one
+ * scheduler. The frames of a device are handled in order, the messages are handled after the processing
+ * delay which models the firmware latency.
+ */
+public class BlufiSimulatedDevice implements BlufiLoopbackTransport.Peer, BlufiDeviceReceiver.Listener {
+    /**
+     * Default bit length of the device DH private key
+     */
+    public static final int DEFAULT_DH_LENGTH = 1024;
+
+    /**
+     * The station connection state reported
+     */
+    public static final int STA_CONNECTED = 0;
+    public static final int STA_DISCONNECTED = 1;
+
+    /**
+     * The error code reported if a frame is not of the expected sequence
+     */
+    public static final int ERROR_SEQUENCE = 0x00;
+
+    private static final byte[] DEFAULT_BSSID = {0x24, 0x0a, (byte) 0xc4, 0x00, 0x00, 0x01};
+
+    /**
+     * Notify the frames to the phone
+     */
+    public interface Notifier {
+        void notify(byte[] frame);
+    }
+
+    private final Scheduler.Worker mWorker;
+    private final BlufiDeviceReceiver mReceiver;
+    private final BlufiDeviceSender mSender;
+    private final BlufiDeviceSecurity mSecurity;
+
+    private volatile Notifier mNotifier;
+
+    private int[] mVersion = {1, 0};
+    private long mProcessingDelay = 0L;
+    private long mWifiConnectDelay = 0L;
+    private boolean mWifiConnectSuccess = true;
+    private long mBusyUntil = 0L;
+
+    private boolean mCtrlEncrypted = false;
+    private boolean mCtrlChecksum = false;
+    private boolean mDataEncrypted = false;
+    private boolean mDataChecksum = false;
+
+    private int mOpMode = IBlufiCommunicator.OP_MODE_NULL;
+    private int mStaConnection = STA_DISCONNECTED;
+    private byte[] mStaBSSID = DEFAULT_BSSID;
+    private String mStaSSID;
+    private String mStaPassword;
+    private String mSoftAPSSID;
+    private String mSoftAPPassword;
+    private int mSoftAPSecurity = IBlufiCommunicator.SOFTAP_SECURITY_OPEN;
+    private int mSoftAPChannel = 1;
+    private int mSoftAPMaxConnection = 4;
+    private int mWifiChannel = 0;
+    private int mConfigureSequence = -1;
+    private final List<byte[]> mDeauthenticatedStations = new ArrayList<>();
+
+    private long mMessageCount = 0;
+    private long mStateReportCount = 0;
+    private long mNegotiateCount = 0;
+    private long mConnectCount = 0;
+
+    /**
+     * @param scheduler the device runs on a worker of the scheduler
+     */
+    public BlufiSimulatedDevice(Scheduler scheduler) {
+        this(scheduler, DEFAULT_DH_LENGTH);
+    }
+
+    /**
+     * @param scheduler the device runs on a worker of the scheduler
+     * @param dhLength  the bit length of the device DH private key
+     */
+    public BlufiSimulatedDevice(Scheduler scheduler, int dhLength) {
+        mWorker = scheduler.createWorker();
+        mReceiver = new BlufiDeviceReceiver(this);
+        mSender = new BlufiDeviceSender();
+        mSecurity = new BlufiDeviceSecurity(dhLength);
+    }
+
+    /**
+     * Connect with the phone by the loopback transport
+     *
+     * @param transport the transport the communicator uses
+     */
+    public void attach(BlufiLoopbackTransport transport) {
+        mNotifier = transport::notifyFromPeer;
+        mSender.setPackageLengthLimit(transport.getMtu() - 3);
+        transport.setPeer(this);
+    }
+
+    public void setNotifier(Notifier notifier) {
+        mNotifier = notifier;
+    }
+
+    /**
+     * @param lengthLimit max length of a notified frame
+     */
+    public void setPackageLengthLimit(int lengthLimit) {
+        mSender.setPackageLengthLimit(lengthLimit);
+    }
+
+    /**
+     * Accept the frames out of sequence in a window instead of reporting a sequence error like the firmware,
+     * used with a phone retransmits the frames in an ack window
+     *
+     * @param window max count of the frames kept ahead of the expected sequence, 0 to check the sequence
+     */
+    public void setSequenceWindow(int window) {
+        mReceiver.setWindow(window);
+    }
+
+    public synchronized void setVersion(int major, int minor) {
+        mVersion = new int[]{major, minor};
+    }
+
+    /**
+     * @param delay the time the firmware takes to handle a message in milliseconds
+     */
+    public synchronized void setProcessingDelay(long delay) {
+        mProcessingDelay = delay;
+    }
+
+    /**
+     * @param delay the time from the connect request to the wifi state report in milliseconds
+     * @param success the station connects successfully or not
+     */
+    public synchronized void setWifiConnect(long delay, boolean success) {
+        mWifiConnectDelay = delay;
+        mWifiConnectSuccess = success;
+    }
+
+    /**
+     * Stop handling the frames
+     */
+    public void close() {
+        mWorker.unsubscribe();
+    }
+
+    @Override
+    public void onWrite(byte[] data) {
+        mWorker.schedule(() -> mReceiver.onFrame(data));
+    }
+
+    @Override
+    public void onAck(int sequence) {
+        notifyFrame(mSender.encodeAck(sequence));
+    }
+
+    @Override
+    public void onSequenceError(int expected, int received) {
+        send(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_ERROR, new byte[]{ERROR_SEQUENCE});
+    }
+
+    @Override
+    public void onMessage(BlufiNotiData message) {
+        long delay;
+        synchronized (this) {
+            mMessageCount++;
+            if (mProcessingDelay <= 0) {
+                delay = 0;
+            } else {
+                // The messages are handled one by one
+                long now = System.nanoTime();
+                mBusyUntil = Math.max(now, mBusyUntil) + TimeUnit.MILLISECONDS.toNanos(mProcessingDelay);
+                delay = mBusyUntil - now;
+            }
+        }
+
+        if (delay == 0) {
+            handleMessage(message);
+        } else {
+            mWorker.schedule(() -> handleMessage(message), delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void handleMessage(BlufiNotiData message) {
+        int pkgType = message.getPkgType();
+        int subType = message.getSubType();
+        byte[] data = message.getDataArray();
+        if (pkgType == Type.Ctrl.PACKAGE_VALUE) {
+            handleCtrl(subType, data);
+        } else if (pkgType == Type.Data.PACKAGE_VALUE) {
+            handleData(subType, data);
+        }
+    }
+
+    private void handleCtrl(int subType, byte[] data) {
+        switch (subType) {
+            case Type.Ctrl.SUBTYPE_SET_SEC_MODE:
+                if (data.length > 0) {
+                    synchronized (this) {
+                        mDataChecksum = (data[0] & 1) != 0;
+                        mDataEncrypted = (data[0] & (1 << 1)) != 0;
+                        mCtrlChecksum = (data[0] & (1 << 4)) != 0;
+                        mCtrlEncrypted = (data[0] & (1 << 5)) != 0;
+                    }
+                }
+                break;
+            case Type.Ctrl.SUBTYPE_SET_OP_MODE:
+                if (data.length > 0) {
+                    int opMode;
+                    synchronized (this) {
+                        mOpMode = data[0] & 0xff;
+                        opMode = mOpMode;
+                    }
+                    // The station mode reports after the connect request
+                    if (opMode != IBlufiCommunicator.OP_MODE_STA) {
+                        reportWifiState();
+                    }
+                }
+                break;
+            case Type.Ctrl.SUBTYPE_CONNECT_WIFI:
+                connectWifi();
+                break;
+            case Type.Ctrl.SUBTYPE_DISCONNECT_WIFI:
+                synchronized (this) {
+                    mStaConnection = STA_DISCONNECTED;
+                }
+                break;
+            case Type.Ctrl.SUBTYPE_GET_WIFI_STATUS:
+                reportWifiState();
+                break;
+            case Type.Ctrl.SUBTYPE_DEAUTHENTICATE:
+                synchronized (this) {
+                    for (int i = 0; i + 6 <= data.length; i += 6) {
+                        byte[] mac = new byte[6];
+                        System.arraycopy(data, i, mac, 0, 6);
+                        mDeauthenticatedStations.add(mac);
+                    }
+                }
+                break;
+            case Type.Ctrl.SUBTYPE_GET_VERSION:
+                int[] version;
+                synchronized (this) {
+                    version = mVersion;
+                }
+                send(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_VERSION,
+                        new byte[]{(byte) version[0], (byte) version[1]});
+                break;
+        }
+    }
+
+    private void handleData(int subType, byte[] data) {
+        switch (subType) {
+            case Type.Data.SUBTYPE_NEG:
+                handleNegotiate(data);
+                break;
+            case Type.Data.SUBTYPE_STA_WIFI_BSSID:
+                synchronized (this) {
+                    mStaBSSID = data;
+                }
+                break;
+            case Type.Data.SUBTYPE_STA_WIFI_SSID:
+                synchronized (this) {
+                    mStaSSID = new String(data);
+                }
+                break;
+            case Type.Data.SUBTYPE_STA_WIFI_PASSWORD:
+                synchronized (this) {
+                    mStaPassword = new String(data);
+                }
+                break;
+            case Type.Data.SUBTYPE_SOFTAP_WIFI_SSID:
+                synchronized (this) {
+                    mSoftAPSSID = new String(data);
+                }
+                reportWifiState();
+                break;
+            case Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD:
+                synchronized (this) {
+                    mSoftAPPassword = new String(data);
+                }
+                reportWifiState();
+                break;
+            case Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT:
+                if (data.length > 0) {
+                    synchronized (this) {
+                        mSoftAPMaxConnection = data[0] & 0xff;
+                    }
+                }
+                reportWifiState();
+                break;
+            case Type.Data.SUBTYPE_SOFTAP_AUTH_MODE:
+                if (data.length > 0) {
+                    synchronized (this) {
+                        mSoftAPSecurity = data[0] & 0xff;
+                    }
+                }
+                reportWifiState();
+                break;
+            case Type.Data.SUBTYPE_SOFTAP_CHANNEL:
+                if (data.length > 0) {
+                    synchronized (this) {
+                        mSoftAPChannel = data[0] & 0xff;
+                    }
+                }
+                reportWifiState();
+                break;
+        }
+    }
+
+    private void handleNegotiate(byte[] data) {
+        if (data.length == 0) {
+            return;
+        }
+
+        switch (data[0]) {
+            case IBlufiCommunicator.NEG_SET_SEC_TOTLE_LEN:
+            case IBlufiCommunicator.NEG_SET_SEC_ALL_DATA:
+            case IBlufiCommunicator.NEG_SET_SEC_ECDH_PUBLIC_KEY:
+                byte[] response = mSecurity.onNegotiateData(data);
+                if (response != null) {
+                    synchronized (this) {
+                        mNegotiateCount++;
+                    }
+                    // The response is plain, the later frames use the new key
+                    send(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG, response, true);
+                    EspAES aes = mSecurity.getAES();
+                    mReceiver.setAES(aes);
+                    mSender.setAES(aes);
+                }
+                break;
+            case IBlufiCommunicator.NEG_SET_WIFI_CHANNEL:
+                if (data.length > 1) {
+                    synchronized (this) {
+                        mWifiChannel = data[1] & 0xff;
+                    }
+                }
+                break;
+            case IBlufiCommunicator.NEG_SET_CONFIGURE_SEQUENCE:
+                if (data.length > 1) {
+                    synchronized (this) {
+                        mConfigureSequence = data[1] & 0xff;
+                    }
+                }
+                break;
+            case IBlufiCommunicator.NEG_CHECK_NEG_SEC:
+                // Echo the check string
+                send(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG, data);
+                break;
+        }
+    }
+
+    private void connectWifi() {
+        long delay;
+        synchronized (this) {
+            mConnectCount++;
+            delay = mWifiConnectDelay;
+        }
+
+        if (delay > 0) {
+            mWorker.schedule(this::onWifiConnected, delay, TimeUnit.MILLISECONDS);
+        } else {
+            onWifiConnected();
+        }
+    }
+
+    private void onWifiConnected() {
+        synchronized (this) {
+            mStaConnection = mWifiConnectSuccess && mStaSSID != null ? STA_CONNECTED : STA_DISCONNECTED;
+        }
+        reportWifiState();
+    }
+
+    private void reportWifiState() {
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        synchronized (this) {
+            mStateReportCount++;
+            state.write(mOpMode);
+            state.write(mStaConnection);
+            state.write(0);
+
+            if (mOpMode == IBlufiCommunicator.OP_MODE_STA || mOpMode == IBlufiCommunicator.OP_MODE_STASOFTAP) {
+                writeState(state, Type.Data.SUBTYPE_STA_WIFI_BSSID, mStaBSSID);
+                if (mStaSSID != null) {
+                    writeState(state, Type.Data.SUBTYPE_STA_WIFI_SSID, mStaSSID.getBytes());
+                }
+            }
+            if (mOpMode == IBlufiCommunicator.OP_MODE_SOFTAP || mOpMode == IBlufiCommunicator.OP_MODE_STASOFTAP) {
+                writeState(state, Type.Data.SUBTYPE_SOFTAP_AUTH_MODE, new byte[]{(byte) mSoftAPSecurity});
+                writeState(state, Type.Data.SUBTYPE_SOFTAP_CHANNEL, new byte[]{(byte) mSoftAPChannel});
+                writeState(state, Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT,
+                        new byte[]{(byte) mSoftAPMaxConnection});
+                if (mSoftAPSSID != null) {
+                    writeState(state, Type.Data.SUBTYPE_SOFTAP_WIFI_SSID, mSoftAPSSID.getBytes());
+                }
+            }
+        }
+
+        send(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_WIFI_CONNECTION_STATE, state.toByteArray());
+    }
+
+    private static void writeState(ByteArrayOutputStream state, int subType, byte[] value) {
+        int length = Math.min(value.length, 0xff);
+        state.write(subType);
+        state.write(length);
+        state.write(value, 0, length);
+    }
+
+    private void send(int pkgType, int subType, byte[] data) {
+        send(pkgType, subType, data, false);
+    }
+
+    private void send(int pkgType, int subType, byte[] data, boolean plain) {
+        boolean encrypted;
+        boolean checksum;
+        synchronized (this) {
+            boolean ctrl = pkgType == Type.Ctrl.PACKAGE_VALUE;
+            encrypted = !plain && (ctrl ? mCtrlEncrypted : mDataEncrypted);
+            checksum = !plain && (ctrl ? mCtrlChecksum : mDataChecksum);
+        }
+
+        List<byte[]> frames = mSender.encode((subType << 2) | pkgType, encrypted, checksum, data);
+        for (byte[] frame : frames) {
+            notifyFrame(frame);
+        }
+    }
+
+    private void notifyFrame(byte[] frame) {
+        Notifier notifier = mNotifier;
+        if (notifier != null) {
+            notifier.notify(frame);
+        }
+    }
+
+    public synchronized int getOpMode() {
+        return mOpMode;
+    }
+
+    public synchronized String getStaSSID() {
+        return mStaSSID;
+    }
+
+    public synchronized String getStaPassword() {
+        return mStaPassword;
+    }
+
+    public synchronized String getSoftAPSSID() {
+        return mSoftAPSSID;
+    }
+
+    public synchronized String getSoftAPPassword() {
+        return mSoftAPPassword;
+    }
+
+    public synchronized int getWifiChannel() {
+        return mWifiChannel;
+    }
+
+    public synchronized int getConfigureSequence() {
+        return mConfigureSequence;
+    }
+
+    /**
+     * Get the MAC addresses of the SoftAP stations the phone asked to deauthenticate
+     */
+    public synchronized List<byte[]> getDeauthenticatedStations() {
+        return new ArrayList<>(mDeauthenticatedStations);
+    }
+
+    public synchronized boolean isStaConnected() {
+        return mStaConnection == STA_CONNECTED;
+    }
+
+    public synchronized long getMessageCount() {
+        return mMessageCount;
+    }
+
+    public synchronized long getStateReportCount() {
+        return mStateReportCount;
+    }
+
+    public synchronized long getNegotiateCount() {
+        return mNegotiateCount;
+    }
+
+    public synchronized long getConnectCount() {
+        return mConnectCount;
+    }
+
+    public BlufiDeviceReceiver getReceiver() {
+        return mReceiver;
+    }
+}
@@ -17,7 +17,5 @@ public final class BlufiConstants {
     public static final int DEFAULT_MTU_LENGTH = 128;
     public static final int MIN_MTU_LENGTH = 30;
 
-    public static final int POST_DATA_LENGTH_LESS = 16;
-
     public static final String PREF_MESH_IDS_NAME = "espblufi_mesh_ids";
 }
@@ -3,4 +3,5 @@ package com.espressif.espblufi.constants;
 public class SettingsConstants {
     public static final String PREF_SETTINGS_NAME = "esp_settings";
     public static final String PREF_SETTINGS_KEY_MTU_LENGTH = "esp_settings_mtu_length";
+    public static final String PREF_SETTINGS_KEY_ECDH = "esp_settings_ecdh";
 }
@@ -4,8 +4,8 @@ import android.app.AlertDialog;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
 import android.content.SharedPreferences;
-import android.os.Build;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.support.annotation.Nullable;
@@ -17,6 +17,9 @@ import android.widget.TextView;
 
 import com.esp.iot.blufi.communiation.BlufiCommunicator;
 import com.esp.iot.blufi.communiation.BlufiConfigureParams;
+import com.esp.iot.blufi.communiation.BlufiPhaseRecorder;
+import com.esp.iot.blufi.communiation.BlufiSessionStats;
+import com.esp.iot.blufi.communiation.BlufiStepRunner;
 import com.esp.iot.blufi.communiation.response.BlufiSecurityResult;
 import com.esp.iot.blufi.communiation.response.BlufiStatusResponse;
 import com.espressif.espblufi.R;
@@ -25,22 +28,28 @@ import com.espressif.espblufi.constants.BlufiConstants;
 import com.espressif.espblufi.constants.SettingsConstants;
 import com.espressif.libs.ble.EspBleHelper;
 import com.espressif.libs.log.EspLog;
+import com.espressif.libs.security.EspDHPool;
 
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import rx.Observable;
+import rx.Scheduler;
+import rx.Single;
 import rx.Subscriber;
 import rx.Subscription;
 import rx.android.schedulers.AndroidSchedulers;
 import rx.schedulers.Schedulers;
 
 public class BlufiConfigureActivity extends BlufiAbsActivity {
+    private static final int RETRY_TIME = 3;
+    private static final int MAX_BLOCKING_THREADS = 2;
+
     private final Object mConnectLock = new Object();
 
     private TextView mTextView;
@@ -58,7 +67,16 @@ public class BlufiConfigureActivity extends BlufiAbsActivity {
     private volatile boolean mDestroy = false;
 
     private List<Subscription> mSubs;
-    private BlockingQueue<Object> mOverQueue;
+    // Runs the blocking GATT calls of connect, discover and MTU, the sessions wait for the device in callbacks
+    private ExecutorService mBlockingExecutor;
+    private Scheduler mBlockingScheduler;
+
+    private EspDHPool mDHPool;
+
+    // Latency histograms of the provisioning phases of all devices in this batch
+    private final BlufiPhaseRecorder mPhaseRecorder = new BlufiPhaseRecorder();
+    // Frame and byte counters of all closed sessions in this batch
+    private final BlufiSessionStats mBatchStats = new BlufiSessionStats();
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -90,7 +108,12 @@ public class BlufiConfigureActivity extends BlufiAbsActivity {
                     .apply();
         }
         mMultithreadCount = getIntent().getIntExtra(BlufiConstants.KEY_CONFIGURE_MULTITHREAD, 1);
-        mOverQueue = new ArrayBlockingQueue<>(mMultithreadCount);
+        mBlockingExecutor = Executors.newFixedThreadPool(Math.min(mMultithreadCount, MAX_BLOCKING_THREADS));
+        mBlockingScheduler = Schedulers.from(mBlockingExecutor);
+
+        // Generate DH key pairs in background instead of on the connected devices' critical path
+        mDHPool = new EspDHPool(BlufiCommunicator.DH_LENGTH, mMultithreadCount * 2);
+        mDHPool.start();
 
         mProgressView = findViewById(R.id.progress);
         mTextView = (TextView) findViewById(R.id.text);
@@ -131,73 +154,13 @@ public class BlufiConfigureActivity extends BlufiAbsActivity {
 
     private void configure() {
         showProgress(true);
-        final int retryTime = 3;
         final long startTime = SystemClock.elapsedRealtime();
-        for (int i = 0; i < mMultithreadCount; i++) {
-            Subscription subscription = Observable.just(i)
-                    .subscribeOn(Schedulers.io())
-                    .doOnNext(integer -> {
-                        ConfigureDevice cd;
-                        while ((cd = mDeviceQueue.poll()) != null) {
-                            int devIndex = mAllDevices.indexOf(cd);
-                            cd.running = true;
-                            notifyAdapter(devIndex);
-
-                            ConfigureResult cr = executeTask(cd);
-                            if (cr == null) {
-                                return;
-                            }
-
-                            if (mDestroy) {
-                                return;
-                            }
-
-                            cd.success = cr.success;
-                            cd.results.add(cr);
-                            cd.tryCount++;
-                            cd.running = false;
-
-                            if (!cd.success && cd.tryCount < retryTime) {
-                                mDeviceQueue.add(cd);
-                            } else {
-                                cd.over = true;
-                            }
-                            notifyAdapter(devIndex);
-                        }
-                    })
-                    .subscribe(new Subscriber<Integer>() {
-                        @Override
-                        public void onCompleted() {
-                            mOverQueue.add(new Object());
-                        }
-
-                        @Override
-                        public void onError(Throwable e) {
-                            e.printStackTrace();
-                            mOverQueue.add(new Object());
-                        }
-
-                        @Override
-                        public void onNext(Integer integer) {
-                        }
-                    });
-            mSubs.add(subscription);
-        }
-
-        // Wait all task over
-        mSubs.add(Observable.just(1)
-                .subscribeOn(Schedulers.io())
-                .doOnNext(integer -> {
-                    for (int i = 0; i < mMultithreadCount; i++) {
-                        try {
-                            mOverQueue.take();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                })
+        // mMultithreadCount devices are provisioned at once, each lane takes the next device once its device
+        // is over. A lane holds no thread while its device replies
+        mSubs.add(Observable.range(0, mMultithreadCount)
+                .flatMap(lane -> configureNext(null).toObservable())
                 .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(new Subscriber<Integer>() {
+                .subscribe(new Subscriber<Boolean>() {
                     @Override
                     public void onCompleted() {
                         showProgress(false);
@@ -214,6 +177,9 @@ public class BlufiConfigureActivity extends BlufiAbsActivity {
                                         "Cost %d millisenonds, success %d",
                                         cost, sucCount)
                         );
+                        EspLog.d("DH pool hit %d, miss %d", mDHPool.getHitCount(), mDHPool.getMissCount());
+                        EspLog.d("Phase latencies\n%s", mPhaseRecorder);
+                        EspLog.d("Session stats %s", mBatchStats);
                     }
 
                     @Override
@@ -223,19 +189,81 @@ public class BlufiConfigureActivity extends BlufiAbsActivity {
                     }
 
                     @Override
-                    public void onNext(Integer integer) {
+                    public void onNext(Boolean over) {
                     }
                 }));
     }
 
-    private ConfigureResult executeTask(ConfigureDevice configureDevice) {
-        Task task = new Task(configureDevice);
-        try {
-            return task.run();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            return null;
-        } finally {
+    /**
+     * Configure the resumed device or the next device in the queue, then the following devices of the lane
+     *
+     * @param resume the device to resume the kept session of, null to take the next device in the queue
+     * @return Single of true once the queue is empty, false if the lane stopped
+     */
+    private Single<Boolean> configureNext(final ConfigureDevice resume) {
+        return Single.defer(() -> {
+            final ConfigureDevice cd = resume != null ? resume : mDeviceQueue.poll();
+            if (cd == null) {
+                return Single.just(true);
+            }
+            final int devIndex = mAllDevices.indexOf(cd);
+            cd.running = true;
+            notifyAdapter(devIndex);
+
+            return executeTask(cd).flatMap(cr -> {
+                if (cr == null || mDestroy) {
+                    return Single.just(false);
+                }
+
+                cd.success = cr.success;
+                cd.results.add(cr);
+                cd.tryCount++;
+                cd.running = false;
+
+                ConfigureDevice next = null;
+                if (!cd.success && cd.tryCount < RETRY_TIME) {
+                    if (cd.task != null) {
+                        // Resume the kept session now, it would hold the connection in the queue
+                        next = cd;
+                    } else {
+                        mDeviceQueue.add(cd);
+                    }
+                } else {
+                    cd.over = true;
+                    releaseTask(cd);
+                }
+                notifyAdapter(devIndex);
+                return configureNext(next);
+            });
+        });
+    }
+
+    private Single<ConfigureResult> executeTask(final ConfigureDevice configureDevice) {
+        if (configureDevice.task == null) {
+            configureDevice.task = new Task(configureDevice);
+        }
+        final Task task = configureDevice.task;
+        return task.run()
+                // Leave the GATT callback thread before closing the connection
+                .observeOn(mBlockingScheduler)
+                .doOnSuccess(result -> {
+                    // Keep the connected session, the next try resumes from the failed step. The checkpoints are
+                    // gone if the session is unusable, close it and the next try connects again
+                    if (result.success || !task.runner.hasCheckpoint()) {
+                        releaseTask(configureDevice);
+                    }
+                })
+                .onErrorReturn(e -> {
+                    e.printStackTrace();
+                    releaseTask(configureDevice);
+                    return null;
+                });
+    }
+
+    private void releaseTask(ConfigureDevice configureDevice) {
+        Task task = configureDevice.task;
+        configureDevice.task = null;
+        if (task != null) {
             task.close();
         }
     }
@@ -245,34 +273,88 @@ public class BlufiConfigureActivity extends BlufiAbsActivity {
         super.onDestroy();
 
         mDestroy = true;
+        for (ConfigureDevice cd : mAllDevices) {
+            releaseTask(cd);
+        }
         mAllDevices.clear();
         for (Subscription s : mSubs) {
             s.unsubscribe();
         }
         mSubs.clear();
+        mDHPool.close();
+        mBlockingExecutor.shutdown();
     }
 
     private class Task {
         ConfigureDevice device;
         EspBleHelper mBleHelper;
+        int mtuLen;
         BluetoothGattService service;
         BluetoothGattCharacteristic send;
         BluetoothGattCharacteristic recv;
         BlufiCommunicator communicator;
 
+        // A failed step is retried on the existing connection. Reconnect if the link is lost, the device
+        // reported an error, or negotiate or configure still fails after its retry, the session is unusable then
+        final BlufiStepRunner runner = new BlufiStepRunner()
+                .addAsyncStep(BlufiPhaseRecorder.PHASE_CONNECT, 0, false, blocking(this::connect))
+                .addAsyncStep(BlufiPhaseRecorder.PHASE_DISCOVER, 1, false, blocking(this::discover))
+                .addAsyncStep(BlufiPhaseRecorder.PHASE_MTU, 0, false, blocking(this::requestMtu))
+                .addAsyncStep("communicator", 0, false, blocking(this::createCommunicator))
+                .addAsyncStep("negotiate", 1, true, this::negotiate)
+                .addAsyncStep("configure", 2, true, this::postConfigure)
+                .setLinkChecker(this::isSessionUsable)
+                .setPhaseRecorder(mPhaseRecorder);
+
         Task(ConfigureDevice dev) {
             device = dev;
         }
 
+        /**
+         * Run a blocking step on the bounded pool
+         */
+        BlufiStepRunner.AsyncStep blocking(BlufiStepRunner.Step step) {
+            return () -> Single.fromCallable(step::run).subscribeOn(mBlockingScheduler);
+        }
+
         void close() {
+            if (communicator != null) {
+                mBatchStats.merge(communicator.getStats());
+                communicator.close();
+                communicator = null;
+            }
             if (mBleHelper != null) {
                 mBleHelper.close();
+                mBleHelper = null;
             }
         }
 
-        ConfigureResult run() throws InterruptedException {
-            EspLog.d("xxj task start");
-            ConfigureResult result = new ConfigureResult();
+        boolean isConnected() {
+            return mBleHelper != null && mBleHelper.getConnectState() == BluetoothProfile.STATE_CONNECTED;
+        }
+
+        boolean isSessionUsable() {
+            return isConnected() && (communicator == null || communicator.isSessionUsable());
+        }
+
+        Single<ConfigureResult> run() {
+            EspLog.d("task start from %s", runner.getResumeStep());
+            return runner.runAsync().map(failure -> {
+                ConfigureResult result = new ConfigureResult();
+                if (failure == null) {
+                    result.msg = "completed";
+                    result.success = true;
+                } else {
+                    result.msg = failure;
+                    result.success = false;
+                }
+                return result;
+            });
+        }
+
+        String connect() {
+            // Start over with a new connection
+            close();
 
             mBleHelper = new EspBleHelper(getApplicationContext());
             boolean connect;
@@ -280,90 +362,91 @@ public class BlufiConfigureActivity extends BlufiAbsActivity {
                 connect = mBleHelper.connectGatt(device.device);
             }
             if (!connect) {
-                result.msg = "connect failed";
-                result.success = false;
-                return result;
+                return "connect failed";
             }
-            EspLog.d("xxj task connect suc");
+            return null;
+        }
 
+        String discover() {
             service = mBleHelper.discoverService(BlufiConstants.UUID_WIFI_SERVICE);
             if (service == null) {
-                result.msg = "discover gatt service failed";
-                result.success = false;
-                return result;
+                return "discover gatt service failed";
             }
-            EspLog.d("xxj task service suc");
 
             send = service.getCharacteristic(BlufiConstants.UUID_WRITE_CHARACTERISTIC);
             if (send == null) {
-                result.msg = "discover write characteristic failed";
-                result.success = false;
-                return result;
+                return "discover write characteristic failed";
             }
             recv = service.getCharacteristic(BlufiConstants.UUID_NOTIFICATION_CHARACTERISTIC);
             if (recv == null) {
-                result.msg = "discover notification characteristic failed";
-                result.success = false;
-                return result;
+                return "discover notification characteristic failed";
             }
+            return null;
+        }
 
+        String requestMtu() {
             SharedPreferences shared = getSharedPreferences(SettingsConstants.PREF_SETTINGS_NAME, MODE_PRIVATE);
-            int mtuLen = shared.getInt(SettingsConstants.PREF_SETTINGS_KEY_MTU_LENGTH, BlufiConstants.DEFAULT_MTU_LENGTH);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                mBleHelper.requestMtu(mtuLen);
-            }
-            EspLog.d("xxj task mtu suc");
+            int requestLen = shared.getInt(SettingsConstants.PREF_SETTINGS_KEY_MTU_LENGTH,
+                    BlufiConstants.DEFAULT_MTU_LENGTH);
+            mtuLen = mBleHelper.requestMtu(requestLen);
+            EspLog.d("task mtu %d of %d", mtuLen, requestLen);
+            return null;
+        }
 
+        String createCommunicator() {
+            if (communicator != null) {
+                mBatchStats.merge(communicator.getStats());
+                communicator.close();
+            }
             communicator = new BlufiCommunicator(mBleHelper, send, recv);
-            communicator.setPostPackageLengthLimit(mtuLen - BlufiConstants.POST_DATA_LENGTH_LESS);
-
-            BlufiSecurityResult negsec = communicator.negotiateSecurity();
-            EspLog.d("xxj task neg suc");
-            switch (negsec) {
-                case SUCCESS:
-                    break;
-                case POST_PGK_FAILED:
-                    result.msg = "negotiate post pgk failed";
-                    result.success = false;
-                    return result;
-                case RECV_PV_FAILED:
-                    result.msg = "negotiate recv device pv failed";
-                    result.success = false;
-                    return result;
-                case POST_SET_MODE_FAILED:
-                    result.msg = "negotiate post set mode failed";
-                    result.success = false;
-                    return result;
-                case CHECK_FAILED:
-                    result.msg = "negotiate check failed";
-                    result.success = false;
-                    return result;
+            communicator.setDHPool(mDHPool);
+            SharedPreferences shared = getSharedPreferences(SettingsConstants.PREF_SETTINGS_NAME, MODE_PRIVATE);
+            communicator.setECDHEnabled(shared.getBoolean(SettingsConstants.PREF_SETTINGS_KEY_ECDH, false));
+            communicator.setPhaseRecorder(mPhaseRecorder);
+            if ((send.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+                communicator.setPipelinedWrite(true);
             }
+            return null;
+        }
 
-            mParam.setMeshRoot(mRootDevice == device);
-            mParam.setConfigureSequence(mAllDevices.indexOf(device));
-            BlufiStatusResponse confResp = communicator.configure(mParam, false);
-            EspLog.d("xxj task config suc");
-            switch (confResp.getResultCode()) {
-                case BlufiStatusResponse.RESULT_SUCCESS:
-                    result.msg = "completed";
-                    result.success = true;
-                    return result;
-                case BlufiStatusResponse.RESULT_TIMEOUT:
-                    result.msg = "receive wifi state timeout";
-                    result.success = false;
-                    return result;
-                case BlufiStatusResponse.RESULT_PARSE_FAILED:
-                    result.msg = "receive wifi sstate parse data error";
-                    result.success = false;
-                    return result;
-                case BlufiStatusResponse.RESULT_POST_FAILED:
-                    result.msg = "post wifi info failed";
-                    result.success = false;
-                    return result;
-            }
+        Single<String> negotiate() {
+            return communicator.negotiateSecurityAsync().map(negsec -> {
+                switch (negsec) {
+                    case SUCCESS:
+                        return null;
+                    case POST_PGK_FAILED:
+                        return "negotiate post pgk failed";
+                    case RECV_PV_FAILED:
+                        return "negotiate recv device pv failed";
+                    case POST_SET_MODE_FAILED:
+                        return "negotiate post set mode failed";
+                    case CHECK_FAILED:
+                        return "negotiate check failed";
+                    default:
+                        return "negotiate failed";
+                }
+            });
+        }
 
-            return result;
+        Single<String> postConfigure() {
+            // The lanes configure at once, each device gets its own params
+            BlufiConfigureParams params = new BlufiConfigureParams(mParam);
+            params.setMeshRoot(mRootDevice == device);
+            params.setConfigureSequence(mAllDevices.indexOf(device));
+            return communicator.configureAsync(params, false).map(confResp -> {
+                switch (confResp.getResultCode()) {
+                    case BlufiStatusResponse.RESULT_SUCCESS:
+                        return null;
+                    case BlufiStatusResponse.RESULT_TIMEOUT:
+                        return "receive wifi state timeout";
+                    case BlufiStatusResponse.RESULT_PARSE_FAILED:
+                        return "receive wifi sstate parse data error";
+                    case BlufiStatusResponse.RESULT_POST_FAILED:
+                        return "post wifi info failed";
+                    default:
+                        return "configure failed";
+                }
+            });
         }
     }
 
@@ -374,6 +457,7 @@ public class BlufiConfigureActivity extends BlufiAbsActivity {
         boolean over = false;
         int tryCount = 0;
         LinkedList<ConfigureResult> results = new LinkedList<>();
+        Task task;
 
         ConfigureDevice(BluetoothDevice bd) {
             device = bd;
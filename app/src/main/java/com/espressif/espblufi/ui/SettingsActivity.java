@@ -6,6 +6,7 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
@@ -33,6 +34,7 @@ public class SettingsActivity extends AppCompatActivity {
 
     public static class BlufiSettingsFragment extends PreferenceFragment implements Preference.OnPreferenceChangeListener {
         private EditTextPreference mMtuPref;
+        private CheckBoxPreference mECDHPref;
 
         private SharedPreferences mShared;
 
@@ -55,7 +57,6 @@ public class SettingsActivity extends AppCompatActivity {
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
                 PreferenceCategory blufiCategory = (PreferenceCategory) findPreference(getString(R.string.settings_category_blufi_key));
                 blufiCategory.removePreference(mMtuPref);
-                getPreferenceScreen().removePreference(blufiCategory);
             } else {
                 mMtuPref.getEditText().setHint(getString(R.string.settings_mtu_length_hint, BlufiConstants.MIN_MTU_LENGTH));
                 int mtuLen = mShared.getInt(SettingsConstants.PREF_SETTINGS_KEY_MTU_LENGTH, BlufiConstants.DEFAULT_MTU_LENGTH);
@@ -64,6 +65,10 @@ public class SettingsActivity extends AppCompatActivity {
                     mMtuPref.setSummary(String.valueOf(mtuLen));
                 }
             }
+
+            mECDHPref = (CheckBoxPreference) findPreference(getString(R.string.settings_ecdh_key));
+            mECDHPref.setChecked(mShared.getBoolean(SettingsConstants.PREF_SETTINGS_KEY_ECDH, false));
+            mECDHPref.setOnPreferenceChangeListener(this);
         }
 
         public String getVersionName() {
@@ -91,6 +96,10 @@ public class SettingsActivity extends AppCompatActivity {
                 }
                 mMtuPref.setSummary(String.valueOf(mtuLen));
                 mShared.edit().putInt(SettingsConstants.PREF_SETTINGS_KEY_MTU_LENGTH, mtuLen).apply();
+            } else if (preference == mECDHPref) {
+                boolean ecdh = (Boolean) newValue;
+                mECDHPref.setChecked(ecdh);
+                mShared.edit().putBoolean(SettingsConstants.PREF_SETTINGS_KEY_ECDH, ecdh).apply();
             }
             return false;
         }
@@ -5,6 +5,8 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.Signature;
 
+import com.espressif.libs.utils.HexUtil;
+
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
@@ -49,18 +51,7 @@ public class AppUtil {
             Signature signature = (pi.signatures)[0];
             MessageDigest digest = MessageDigest.getInstance("md5");
             digest.update(signature.toByteArray());
-            byte[] result = digest.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : result) {
-                int number = b & 0xff;
-                String str = Integer.toHexString(number);
-                if (str.length() == 1) {
-                    sb.append("0");
-                }
-                sb.append(str);
-            }
-
-            return sb.toString();
+            return HexUtil.encode(digest.digest());
         } catch (PackageManager.NameNotFoundException | NoSuchAlgorithmException | NullPointerException e) {
             e.printStackTrace();
         }
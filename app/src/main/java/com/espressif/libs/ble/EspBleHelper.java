@@ -12,15 +12,32 @@ import android.os.Build;
 
 import com.espressif.libs.log.EspLog;
 
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rx.Single;
+import rx.SingleSubscriber;
+import rx.subscriptions.Subscriptions;
 
 public class EspBleHelper {
+    /**
+     * The ATT MTU before the MTU is exchanged
+     */
+    public static final int DEFAULT_MTU = 23;
+
+    private static final long TIMEOUT_WRITE = 3000L;
+
+    private static final int DEFAULT_WRITE_WINDOW = 4;
+    private static final int MAX_WRITE_ERROR_COUNT = 3;
+    private static final int WRITE_BUSY_RETRY = 10;
+    private static final long WRITE_BUSY_WAIT = 20L;
+
     private final Object mConnectLock = new Object();
+    private final Object mWriteLock = new Object();
     private final List<GattCallback> mUserCallbacks;
 
     private Context mContext;
@@ -30,13 +47,22 @@ public class EspBleHelper {
     private Callback mCallback;
 
     private int mConnectState;
+    // Read once for the log, getName() is an IPC to the Bluetooth service
+    private volatile String mDeviceName;
+    private volatile int mMtu = DEFAULT_MTU;
+
+    private final EspWriteWindow mWriteWindow;
+    private final AtomicReference<SingleSubscriber<? super Boolean>> mAsyncWrite = new AtomicReference<>();
+    private volatile int mLastWriteStatus = BluetoothGatt.GATT_SUCCESS;
 
     public EspBleHelper(Context context) {
         mContext = context.getApplicationContext();
         mBluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
-        mUserCallbacks = new LinkedList<>();
+        // The callbacks are iterated for every notification without lock, they change rarely
+        mUserCallbacks = new CopyOnWriteArrayList<>();
 
         mConnectState = BluetoothProfile.STATE_DISCONNECTED;
+        mWriteWindow = new EspWriteWindow(DEFAULT_WRITE_WINDOW, MAX_WRITE_ERROR_COUNT);
     }
 
     public int getConnectState() {
@@ -61,7 +87,8 @@ public class EspBleHelper {
 
     public boolean connectGatt(BluetoothDevice device) {
         synchronized (mConnectLock) {
-            EspLog.d(String.format("EspBleHelper %s connectGatt", device.getName()));
+            mDeviceName = device.getName();
+            EspLog.d("EspBleHelper %s connectGatt", mDeviceName);
             if (mGatt != null) {
                 throw new IllegalStateException("the gatt has connected a device already");
             }
@@ -69,26 +96,26 @@ public class EspBleHelper {
             final int tryCount = 2;
             boolean result = false;
             for (int i = 0; i < tryCount; i++) {
-                EspLog.d(String.format(Locale.ENGLISH, "EspBleHelper %s connect %d", device.getName(), i));
+                EspLog.d("EspBleHelper %s connect %d", mDeviceName, i);
                 mCallback = new Callback();
                 mGatt = connect(device, mCallback);
                 result = mCallback.waitConnect(4000L);
 
                 if (!result) {
-                    EspLog.d(String.format("EspBleHelper %s retry connect", device.getName()));
+                    EspLog.d("EspBleHelper %s retry connect", mDeviceName);
                     mGatt.connect();
                     result = mCallback.waitConnect(4000L);
                 }
 
                 if (result) {
-                    EspLog.d(String.format("EspBleHelper %s discoverServices", device.getName()));
+                    EspLog.d("EspBleHelper %s discoverServices", mDeviceName);
                     mCallback.clear();
                     mGatt.discoverServices();
                     result = mCallback.waitService(8000L);
                 }
 
                 if (!result) {
-                    EspLog.d(String.format("EspBleHelper %s connectGatt close", device.getName()));
+                    EspLog.d("EspBleHelper %s connectGatt close", mDeviceName);
                     mGatt.close();
                     mGatt = null;
                     mCallback.clear();
@@ -96,11 +123,13 @@ public class EspBleHelper {
                 }
 
                 if (result) {
+                    // The errors of the last connection don't disable the pipelined writes of this one
+                    mWriteWindow.enable();
                     break;
                 }
             }
 
-            EspLog.d(String.format("EspBleHelper %s connectGatt result %b", device.getName(), result));
+            EspLog.d("EspBleHelper %s connectGatt result %b", mDeviceName, result);
             return result;
         }
     }
@@ -124,8 +153,10 @@ public class EspBleHelper {
                 mGatt.disconnect();
                 mGatt.close();
                 mConnectState = BluetoothProfile.STATE_DISCONNECTED;
+                mMtu = DEFAULT_MTU;
 
                 mUserCallbacks.clear();
+                mWriteWindow.reset();
                 mCallback.clear();
                 mCallback = null;
                 mGatt = null;
@@ -143,19 +174,34 @@ public class EspBleHelper {
         return mGatt.getService(uuid);
     }
 
-    public boolean requestMtu(int mtu) {
+    /**
+     * Exchange the ATT MTU and wait for the device
+     *
+     * @param mtu the MTU requested
+     * @return the MTU negotiated, the device may accept a smaller one, the current MTU if the exchange failed
+     */
+    public int requestMtu(int mtu) {
         EspLog.d("EspBleHelper requestMtu");
         if (mGatt == null || mConnectState != BluetoothGatt.STATE_CONNECTED) {
-            return false;
+            return mMtu;
         }
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             if (mGatt.requestMtu(mtu)) {
-                return mCallback.waitMtu();
+                mCallback.waitMtu();
             }
         }
 
-        return false;
+        return mMtu;
+    }
+
+    /**
+     * Get the ATT MTU of the connection
+     *
+     * @return the exchanged MTU, {@link #DEFAULT_MTU} if the MTU is not exchanged
+     */
+    public int getMtu() {
+        return mMtu;
     }
 
     public boolean write(BluetoothGattCharacteristic characteristic, byte[] data) {
@@ -163,9 +209,119 @@ public class EspBleHelper {
             return false;
         }
 
-        characteristic.setValue(data);
-        mGatt.writeCharacteristic(characteristic);
-        return mCallback.waitWrite(3000L);
+        // The callbacks of the pipelined writes must not be taken as the callback of this write
+        if (mWriteWindow.getInFlightCount() > 0) {
+            mWriteWindow.flush(TIMEOUT_WRITE);
+        }
+
+        synchronized (mWriteLock) {
+            mLastWriteStatus = BluetoothGatt.GATT_FAILURE;
+            characteristic.setValue(data);
+            mGatt.writeCharacteristic(characteristic);
+        }
+        return mCallback.waitWrite(TIMEOUT_WRITE);
+    }
+
+    /**
+     * Get the status of the last write with response
+     *
+     * @return the status of the write callback, GATT_FAILURE if the write failed without a callback
+     */
+    public int getLastWriteStatus() {
+        return mLastWriteStatus;
+    }
+
+    /**
+     * Write without blocking, the Single completes in the write callback. Only one write can be in progress,
+     * the pipelined writes must be flushed before.
+     *
+     * @return Single of the write result, false if timeout
+     */
+    public Single<Boolean> writeAsync(final BluetoothGattCharacteristic characteristic, final byte[] data) {
+        Single<Boolean> write = Single.create(subscriber -> {
+            if (mGatt == null || mConnectState != BluetoothGatt.STATE_CONNECTED) {
+                subscriber.onSuccess(false);
+                return;
+            }
+            if (!mAsyncWrite.compareAndSet(null, subscriber)) {
+                EspLog.w("EspBleHelper writeAsync another write is in progress");
+                subscriber.onSuccess(false);
+                return;
+            }
+            subscriber.add(Subscriptions.create(() -> mAsyncWrite.compareAndSet(subscriber, null)));
+
+            boolean written;
+            synchronized (mWriteLock) {
+                mLastWriteStatus = BluetoothGatt.GATT_FAILURE;
+                characteristic.setValue(data);
+                written = mGatt.writeCharacteristic(characteristic);
+            }
+            if (!written && mAsyncWrite.compareAndSet(subscriber, null)) {
+                subscriber.onSuccess(false);
+            }
+        });
+        return write.timeout(TIMEOUT_WRITE, TimeUnit.MILLISECONDS, Single.just(false));
+    }
+
+    public EspWriteWindow getWriteWindow() {
+        return mWriteWindow;
+    }
+
+    /**
+     * Write with WRITE_TYPE_NO_RESPONSE without waiting for the write callback, the count of the writes in
+     * flight is limited by {@link #getWriteWindow()}. Call {@link #flushWrite(long)} at the end of a message.
+     *
+     * @return false if the write is not handed to the stack, the data can be written again
+     */
+    public boolean writeNoResponse(BluetoothGattCharacteristic characteristic, byte[] data) {
+        if (mGatt == null || mConnectState != BluetoothGatt.STATE_CONNECTED) {
+            return false;
+        }
+
+        if (!mWriteWindow.acquire(TIMEOUT_WRITE)) {
+            return false;
+        }
+
+        synchronized (mWriteLock) {
+            int writeType = characteristic.getWriteType();
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            characteristic.setValue(data);
+            try {
+                for (int i = 0; i < WRITE_BUSY_RETRY; i++) {
+                    if (mGatt.writeCharacteristic(characteristic)) {
+                        return true;
+                    }
+                    // The stack is busy with the previous write, wait for its callback
+                    mWriteWindow.waitRelease(WRITE_BUSY_WAIT);
+                }
+            } finally {
+                characteristic.setWriteType(writeType);
+            }
+        }
+
+        mWriteWindow.cancel();
+        return false;
+    }
+
+    /**
+     * Wait until all the pipelined writes are completed
+     *
+     * @param timeout max wait time in milliseconds
+     * @return true if all the pipelined writes since last flush succeeded
+     */
+    public boolean flushWrite(long timeout) {
+        return mWriteWindow.flush(timeout);
+    }
+
+    /**
+     * Wait without blocking until all the pipelined writes are completed, the Single completes in the write
+     * callback
+     *
+     * @param timeout max wait time in milliseconds
+     * @return Single of true if all the pipelined writes since last flush succeeded
+     */
+    public Single<Boolean> flushWriteAsync(long timeout) {
+        return mWriteWindow.flushAsync(timeout);
     }
 
     public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
@@ -211,6 +367,11 @@ public class EspBleHelper {
             mServiceQueue.add(false);
             mMtuQueue.add(false);
             mWriteQueue.add(false);
+            mWriteWindow.reset();
+            SingleSubscriber<? super Boolean> asyncWrite = mAsyncWrite.getAndSet(null);
+            if (asyncWrite != null) {
+                asyncWrite.onSuccess(false);
+            }
         }
 
         void clear() {
@@ -306,8 +467,7 @@ public class EspBleHelper {
 
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            EspLog.i(String.format(Locale.ENGLISH, "EspBleHelper %s onConnectionStateChange status=%d, state=%d",
-                    gatt.getDevice().getName(), status, newState));
+            EspLog.i("EspBleHelper %s onConnectionStateChange status=%d, state=%d", mDeviceName, status, newState);
             mConnectState = newState;
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 switch (newState) {
@@ -331,8 +491,7 @@ public class EspBleHelper {
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            EspLog.i(String.format(Locale.ENGLISH, "EspBleHelper %s onServicesDiscovered status=%d",
-                    gatt.getDevice().getName(), status));
+            EspLog.i("EspBleHelper %s onServicesDiscovered status=%d", mDeviceName, status);
             mServiceQueue.add(status == BluetoothGatt.GATT_SUCCESS);
 
             for (GattCallback callback : mUserCallbacks) {
@@ -342,8 +501,10 @@ public class EspBleHelper {
 
         @Override
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            EspLog.i(String.format(Locale.ENGLISH, "EspBleHelper %s onMtuChanged status=%d, mtu=%d",
-                    gatt.getDevice().getName(), status, mtu));
+            EspLog.i("EspBleHelper %s onMtuChanged status=%d, mtu=%d", mDeviceName, status, mtu);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+            }
             mMtuQueue.add(status == BluetoothGatt.GATT_SUCCESS);
 
             for (GattCallback callback : mUserCallbacks) {
@@ -354,9 +515,17 @@ public class EspBleHelper {
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic
                 characteristic, int status) {
-            EspLog.i(String.format(Locale.ENGLISH, "EspBleHelper %s onCharacteristicWrite status=%d",
-                    gatt.getDevice().getName(), status));
-            mWriteQueue.add(status == BluetoothGatt.GATT_SUCCESS);
+            EspLog.i("EspBleHelper %s onCharacteristicWrite status=%d", mDeviceName, status);
+            boolean success = status == BluetoothGatt.GATT_SUCCESS;
+            if (!mWriteWindow.release(success)) {
+                mLastWriteStatus = status;
+                SingleSubscriber<? super Boolean> asyncWrite = mAsyncWrite.getAndSet(null);
+                if (asyncWrite != null) {
+                    asyncWrite.onSuccess(success);
+                } else {
+                    mWriteQueue.add(success);
+                }
+            }
             for (GattCallback callback : mUserCallbacks) {
                 callback.onCharacteristicWrite(gatt, characteristic, status);
             }
@@ -0,0 +1,257 @@
+package com.espressif.libs.ble;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.Single;
+import rx.SingleSubscriber;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Credit based flow control of the pipelined writes.
+ * <p>
+ * Each write takes a credit before it is handed to the stack and returns it in the write callback. The window
+ * grows by one after a window of successful writes and is halved on an error. The window disables itself after
+ * too many errors, the caller should use acknowledged writes then. It stays disabled until {@link #enable()},
+ * which the helper calls on each new connection.
+ */
+public class EspWriteWindow {
+    private final int mMaxWindow;
+    private final int mMaxErrorCount;
+
+    private int mWindow;
+    private int mInFlight = 0;
+    private int mSuccessCount = 0;
+    private int mErrorCount = 0;
+    private boolean mFailed = false;
+    private boolean mEnabled = true;
+
+    private final List<SingleSubscriber<? super Boolean>> mFlushWaiters = new ArrayList<>();
+
+    /**
+     * @param maxWindow     max count of the writes in flight
+     * @param maxErrorCount disable the window after the count of errors
+     */
+    public EspWriteWindow(int maxWindow, int maxErrorCount) {
+        mMaxWindow = Math.max(1, maxWindow);
+        mMaxErrorCount = maxErrorCount;
+        mWindow = mMaxWindow;
+    }
+
+    public synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Enable the window again and reset the error count, called when a new connection is made
+     */
+    public synchronized void enable() {
+        mEnabled = true;
+        mErrorCount = 0;
+        mWindow = mMaxWindow;
+    }
+
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    public synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    public synchronized int getErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * Take a credit, block until a credit is returned if the window is full
+     *
+     * @param timeout max wait time in milliseconds
+     * @return false if timeout or the window is disabled
+     */
+    public synchronized boolean acquire(long timeout) {
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        while (mEnabled && mInFlight >= mWindow) {
+            long remain = (deadline - System.nanoTime()) / 1000000L;
+            if (remain <= 0 || !waitMillis(remain)) {
+                onError();
+                return false;
+            }
+        }
+        if (!mEnabled) {
+            return false;
+        }
+
+        mInFlight++;
+        return true;
+    }
+
+    /**
+     * Return the credit of a write the stack refused
+     */
+    public void cancel() {
+        List<SingleSubscriber<? super Boolean>> flushWaiters;
+        synchronized (this) {
+            if (mInFlight > 0) {
+                mInFlight--;
+            }
+            onError();
+            notifyAll();
+            flushWaiters = takeFlushWaiters();
+        }
+        completeFlushWaiters(flushWaiters);
+    }
+
+    /**
+     * Return a credit in the write callback
+     *
+     * @param success write status
+     * @return false if no write is in flight, the callback belongs to an acknowledged write
+     */
+    public boolean release(boolean success) {
+        List<SingleSubscriber<? super Boolean>> flushWaiters;
+        synchronized (this) {
+            if (mInFlight == 0) {
+                return false;
+            }
+
+            mInFlight--;
+            if (success) {
+                mSuccessCount++;
+                if (mSuccessCount >= mWindow && mWindow < mMaxWindow) {
+                    mWindow++;
+                    mSuccessCount = 0;
+                }
+            } else {
+                mFailed = true;
+                onError();
+            }
+            notifyAll();
+            flushWaiters = takeFlushWaiters();
+        }
+        completeFlushWaiters(flushWaiters);
+        return true;
+    }
+
+    private void onError() {
+        mSuccessCount = 0;
+        mWindow = Math.max(1, mWindow / 2);
+        mErrorCount++;
+        if (mErrorCount >= mMaxErrorCount) {
+            mEnabled = false;
+        }
+    }
+
+    /**
+     * Wait until one credit is returned
+     *
+     * @param timeout max wait time in milliseconds
+     */
+    public synchronized void waitRelease(long timeout) {
+        if (mInFlight > 0) {
+            waitMillis(timeout);
+        }
+    }
+
+    /**
+     * Wait until all the writes in flight are completed
+     *
+     * @param timeout max wait time in milliseconds
+     * @return true if all the writes since last flush succeeded
+     */
+    public synchronized boolean flush(long timeout) {
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        while (mInFlight > 0) {
+            long remain = (deadline - System.nanoTime()) / 1000000L;
+            if (remain <= 0 || !waitMillis(remain)) {
+                break;
+            }
+        }
+
+        return takeFlushResult();
+    }
+
+    /**
+     * Wait without blocking until all the writes in flight are completed, the Single completes in the write
+     * callback of the last write
+     *
+     * @param timeout max wait time in milliseconds
+     * @return Single of true if all the writes since last flush succeeded
+     */
+    public Single<Boolean> flushAsync(long timeout) {
+        Single<Boolean> flush = Single.create(subscriber -> {
+            synchronized (EspWriteWindow.this) {
+                if (mInFlight > 0) {
+                    mFlushWaiters.add(subscriber);
+                    subscriber.add(Subscriptions.create(() -> removeFlushWaiter(subscriber)));
+                    return;
+                }
+            }
+            subscriber.onSuccess(true);
+        });
+        return flush.timeout(timeout, TimeUnit.MILLISECONDS, Single.just(false))
+                .map(drained -> takeFlushResult());
+    }
+
+    private synchronized boolean takeFlushResult() {
+        boolean result = mInFlight == 0 && !mFailed;
+        mFailed = false;
+        return result;
+    }
+
+    private synchronized void removeFlushWaiter(SingleSubscriber<? super Boolean> subscriber) {
+        mFlushWaiters.remove(subscriber);
+    }
+
+    /**
+     * Take the flush waiters if no write is in flight, called with the lock held
+     */
+    private List<SingleSubscriber<? super Boolean>> takeFlushWaiters() {
+        if (mInFlight > 0 || mFlushWaiters.isEmpty()) {
+            return null;
+        }
+
+        List<SingleSubscriber<? super Boolean>> waiters = new ArrayList<>(mFlushWaiters);
+        mFlushWaiters.clear();
+        return waiters;
+    }
+
+    /**
+     * Complete the flush waiters out of the lock, the caller may write again in onSuccess
+     */
+    private static void completeFlushWaiters(List<SingleSubscriber<? super Boolean>> waiters) {
+        if (waiters != null) {
+            for (SingleSubscriber<? super Boolean> waiter : waiters) {
+                waiter.onSuccess(true);
+            }
+        }
+    }
+
+    /**
+     * Drop all the writes in flight, called when the connection is lost
+     */
+    public void reset() {
+        List<SingleSubscriber<? super Boolean>> flushWaiters;
+        synchronized (this) {
+            if (mInFlight > 0) {
+                mFailed = true;
+            }
+            mInFlight = 0;
+            notifyAll();
+            flushWaiters = takeFlushWaiters();
+        }
+        completeFlushWaiters(flushWaiters);
+    }
+
+    private boolean waitMillis(long millis) {
+        try {
+            wait(millis);
+            return true;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -3,46 +3,240 @@ package com.espressif.libs.log;
 import android.content.Context;
 import android.util.Log;
 
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * The log of the app.
+ * <p>
+ * The messages with arguments are formatted only if their level is enabled, call
+ * {@link #isLoggable(Level)} before computing an argument costs. With {@link #startWriter(int, File)} the
+ * messages are formatted and written by a background thread instead of the logging thread.
+ */
 public class EspLog {
+    private static final int DEFAULT_WRITER_CAPACITY = 256;
+
     private static String mTag = null;
-    private static Level mLevel = Level.NIL;
+    private static volatile Level mLevel = Level.NIL;
+    private static volatile EspLogWriter mWriter = null;
 
     public static void init(Context context, Level level) {
         mTag = context.getPackageName();
         mLevel = level;
     }
 
+    /**
+     * Init the log and write the messages on a background thread
+     *
+     * @param file the file the messages are appended to, null to write logcat only
+     */
+    public static void init(Context context, Level level, File file) {
+        init(context, level);
+        startWriter(DEFAULT_WRITER_CAPACITY, file);
+    }
+
     public static void setLevel(Level level) {
         mLevel = level;
     }
 
+    public static Level getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Check whether the messages of the level are written
+     */
+    public static boolean isLoggable(Level level) {
+        return mLevel.ordinal() <= level.ordinal();
+    }
+
+    /**
+     * Write the messages on a background thread, the previous writer is closed
+     *
+     * @param capacity the count of the messages can wait for the writer, the later messages are dropped
+     * @param file     the file the messages are appended to, null to write logcat only
+     */
+    public static synchronized void startWriter(int capacity, File file) {
+        stopWriter();
+        mWriter = new EspLogWriter(mTag, capacity, file);
+    }
+
+    /**
+     * Write the messages on the logging thread again, the buffered messages are still written
+     */
+    public static synchronized void stopWriter() {
+        EspLogWriter writer = mWriter;
+        mWriter = null;
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    /**
+     * Get the background writer, null if the messages are written on the logging thread
+     */
+    public static EspLogWriter getWriter() {
+        return mWriter;
+    }
+
+    private static void log(Level level, String format, int argCount, Object arg1, Object arg2, Object arg3) {
+        EspLogWriter writer = mWriter;
+        if (writer != null) {
+            writer.offer(level, format, argCount, arg1, arg2, arg3);
+            return;
+        }
+
+        String msg;
+        switch (argCount) {
+            case 0:
+                msg = format;
+                break;
+            case 1:
+                msg = String.format(Locale.ENGLISH, format, arg1);
+                break;
+            case 2:
+                msg = String.format(Locale.ENGLISH, format, arg1, arg2);
+                break;
+            default:
+                msg = String.format(Locale.ENGLISH, format, arg1, arg2, arg3);
+                break;
+        }
+        switch (level) {
+            case V:
+                Log.v(mTag, msg);
+                break;
+            case D:
+                Log.d(mTag, msg);
+                break;
+            case I:
+                Log.i(mTag, msg);
+                break;
+            case W:
+                Log.w(mTag, msg);
+                break;
+            default:
+                Log.e(mTag, msg);
+                break;
+        }
+    }
+
     public static void v(String msg) {
         if (mLevel.ordinal() <= Level.V.ordinal()) {
-            Log.v(mTag, msg);
+            log(Level.V, msg, 0, null, null, null);
+        }
+    }
+
+    public static void v(String format, Object arg1) {
+        if (mLevel.ordinal() <= Level.V.ordinal()) {
+            log(Level.V, format, 1, arg1, null, null);
+        }
+    }
+
+    public static void v(String format, Object arg1, Object arg2) {
+        if (mLevel.ordinal() <= Level.V.ordinal()) {
+            log(Level.V, format, 2, arg1, arg2, null);
+        }
+    }
+
+    public static void v(String format, Object arg1, Object arg2, Object arg3) {
+        if (mLevel.ordinal() <= Level.V.ordinal()) {
+            log(Level.V, format, 3, arg1, arg2, arg3);
         }
     }
 
     public static void d(String msg) {
         if (mLevel.ordinal() <= Level.D.ordinal()) {
-            Log.d(mTag, msg);
+            log(Level.D, msg, 0, null, null, null);
+        }
+    }
+
+    public static void d(String format, Object arg1) {
+        if (mLevel.ordinal() <= Level.D.ordinal()) {
+            log(Level.D, format, 1, arg1, null, null);
+        }
+    }
+
+    public static void d(String format, Object arg1, Object arg2) {
+        if (mLevel.ordinal() <= Level.D.ordinal()) {
+            log(Level.D, format, 2, arg1, arg2, null);
+        }
+    }
+
+    public static void d(String format, Object arg1, Object arg2, Object arg3) {
+        if (mLevel.ordinal() <= Level.D.ordinal()) {
+            log(Level.D, format, 3, arg1, arg2, arg3);
         }
     }
 
     public static void i(String msg) {
         if (mLevel.ordinal() <= Level.I.ordinal()) {
-            Log.i(mTag, msg);
+            log(Level.I, msg, 0, null, null, null);
+        }
+    }
+
+    public static void i(String format, Object arg1) {
+        if (mLevel.ordinal() <= Level.I.ordinal()) {
+            log(Level.I, format, 1, arg1, null, null);
+        }
+    }
+
+    public static void i(String format, Object arg1, Object arg2) {
+        if (mLevel.ordinal() <= Level.I.ordinal()) {
+            log(Level.I, format, 2, arg1, arg2, null);
+        }
+    }
+
+    public static void i(String format, Object arg1, Object arg2, Object arg3) {
+        if (mLevel.ordinal() <= Level.I.ordinal()) {
+            log(Level.I, format, 3, arg1, arg2, arg3);
         }
     }
 
     public static void w(String msg) {
         if (mLevel.ordinal() <= Level.W.ordinal()) {
-            Log.w(mTag, msg);
+            log(Level.W, msg, 0, null, null, null);
+        }
+    }
+
+    public static void w(String format, Object arg1) {
+        if (mLevel.ordinal() <= Level.W.ordinal()) {
+            log(Level.W, format, 1, arg1, null, null);
+        }
+    }
+
+    public static void w(String format, Object arg1, Object arg2) {
+        if (mLevel.ordinal() <= Level.W.ordinal()) {
+            log(Level.W, format, 2, arg1, arg2, null);
+        }
+    }
+
+    public static void w(String format, Object arg1, Object arg2, Object arg3) {
+        if (mLevel.ordinal() <= Level.W.ordinal()) {
+            log(Level.W, format, 3, arg1, arg2, arg3);
         }
     }
 
     public static void e(String msg) {
         if (mLevel.ordinal() <= Level.E.ordinal()) {
-            Log.e(mTag, msg);
+            log(Level.E, msg, 0, null, null, null);
+        }
+    }
+
+    public static void e(String format, Object arg1) {
+        if (mLevel.ordinal() <= Level.E.ordinal()) {
+            log(Level.E, format, 1, arg1, null, null);
+        }
+    }
+
+    public static void e(String format, Object arg1, Object arg2) {
+        if (mLevel.ordinal() <= Level.E.ordinal()) {
+            log(Level.E, format, 2, arg1, arg2, null);
+        }
+    }
+
+    public static void e(String format, Object arg1, Object arg2, Object arg3) {
+        if (mLevel.ordinal() <= Level.E.ordinal()) {
+            log(Level.E, format, 3, arg1, arg2, arg3);
         }
     }
 
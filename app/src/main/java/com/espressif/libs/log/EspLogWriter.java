@@ -0,0 +1,261 @@
+package com.espressif.libs.log;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Write the log entries on a background thread.
+ * <p>
+ * The entries are kept in a ring buffer allocated once, the logging thread only copies the format and the
+ * arguments into a slot, the message is formatted and written to logcat and the optional file by the
+ * writer thread. An entry is dropped if the buffer is full, the logging thread never waits for the writer.
+ */
+public class EspLogWriter {
+    private static final int MAX_ARG_COUNT = 3;
+
+    private static class Entry {
+        EspLog.Level level;
+        long time;
+        String format;
+        int argCount;
+        final Object[] args = new Object[MAX_ARG_COUNT];
+    }
+
+    private final String mTag;
+    private final Entry[] mEntries;
+    private final Object[][] mFormatArgs;
+    private final Thread mThread;
+    private final Writer mFileWriter;
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.ENGLISH);
+    private final StringBuilder mLineBuilder = new StringBuilder();
+
+    private int mHead = 0;
+    private int mSize = 0;
+    private long mWritten = 0;
+    private long mDroppedCount = 0;
+    private boolean mWaiting = false;
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param tag      the tag of the logcat messages
+     * @param capacity the count of the entries the buffer holds
+     * @param file     the file the messages are appended to, null to write logcat only
+     */
+    public EspLogWriter(String tag, int capacity, File file) {
+        mTag = tag;
+        mEntries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mEntries[i] = new Entry();
+        }
+        mFormatArgs = new Object[MAX_ARG_COUNT + 1][];
+        for (int i = 0; i <= MAX_ARG_COUNT; i++) {
+            mFormatArgs[i] = new Object[i];
+        }
+
+        Writer fileWriter = null;
+        if (file != null) {
+            try {
+                fileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mFileWriter = fileWriter;
+
+        mThread = new Thread(this::run, "EspLogWriter");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Put an entry into the buffer
+     *
+     * @return false if the buffer is full or the writer is closed, the entry is dropped
+     */
+    boolean offer(EspLog.Level level, String format, int argCount, Object arg1, Object arg2, Object arg3) {
+        synchronized (this) {
+            if (mClosed || mSize == mEntries.length) {
+                mDroppedCount++;
+                return false;
+            }
+
+            Entry entry = mEntries[(mHead + mSize) % mEntries.length];
+            entry.level = level;
+            entry.time = System.currentTimeMillis();
+            entry.format = format;
+            entry.argCount = argCount;
+            entry.args[0] = arg1;
+            entry.args[1] = arg2;
+            entry.args[2] = arg3;
+            mSize++;
+
+            if (mWaiting) {
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                while (mSize == 0) {
+                    if (mClosed) {
+                        closeFile();
+                        return;
+                    }
+                    flushFile();
+                    notifyAll();
+                    mWaiting = true;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        mClosed = true;
+                    } finally {
+                        mWaiting = false;
+                    }
+                }
+                entry = mEntries[mHead];
+            }
+
+            // The slot stays owned by the writer until the head moves
+            write(entry);
+
+            synchronized (this) {
+                entry.format = null;
+                entry.args[0] = null;
+                entry.args[1] = null;
+                entry.args[2] = null;
+                mHead = (mHead + 1) % mEntries.length;
+                mSize--;
+                mWritten++;
+            }
+        }
+    }
+
+    private void write(Entry entry) {
+        String msg;
+        if (entry.argCount == 0) {
+            msg = entry.format;
+        } else {
+            Object[] args = mFormatArgs[entry.argCount];
+            System.arraycopy(entry.args, 0, args, 0, entry.argCount);
+            try {
+                msg = String.format(Locale.ENGLISH, entry.format, args);
+            } catch (RuntimeException e) {
+                msg = entry.format;
+            }
+        }
+
+        Log.println(getPriority(entry.level), mTag, msg);
+
+        if (mFileWriter != null) {
+            mLineBuilder.setLength(0);
+            mLineBuilder.append(mDateFormat.format(new Date(entry.time)))
+                    .append(' ').append(entry.level.name())
+                    .append(' ').append(mTag)
+                    .append(": ").append(msg)
+                    .append('\n');
+            try {
+                mFileWriter.append(mLineBuilder);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static int getPriority(EspLog.Level level) {
+        switch (level) {
+            case V:
+                return Log.VERBOSE;
+            case D:
+                return Log.DEBUG;
+            case I:
+                return Log.INFO;
+            case W:
+                return Log.WARN;
+            default:
+                return Log.ERROR;
+        }
+    }
+
+    private void flushFile() {
+        if (mFileWriter != null) {
+            try {
+                mFileWriter.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (mFileWriter != null) {
+            try {
+                mFileWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Wait until the entries in the buffer are written
+     *
+     * @param timeout max time to wait in milliseconds
+     * @return true if the buffer is drained
+     */
+    public boolean flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (mSize > 0 || !mWaiting) {
+                if (!mThread.isAlive()) {
+                    return mSize == 0;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting entries, the writer thread exits after the buffered entries are written
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getWrittenCount() {
+        return mWritten;
+    }
+
+    public int getCapacity() {
+        return mEntries.length;
+    }
+}
@@ -8,6 +8,7 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -17,9 +18,21 @@ public class EspAES {
     private final byte[] mKey;
     private final byte[] mIV;
     private final String mTransformation;
+    private final SecretKeySpec mKeySpec;
     private Cipher mEncryptCipher;
     private Cipher mDecryptCipher;
 
+    /**
+     * Create the ciphers without IV, the IV is set by each
+     * {@link #encrypt(byte[], byte[], int, int, byte[], int)} and {@link #decrypt(byte[], byte[], int, int, byte[], int)}.
+     * The ciphers are created only once and can be reused for a whole session.
+     *
+     * @param key secret key
+     */
+    public EspAES(byte[] key) {
+        this(key, null, TRANSFORMATION_DEFAULT);
+    }
+
     public EspAES(byte[] key, byte[] iv) {
         this(key, iv, TRANSFORMATION_DEFAULT);
     }
@@ -28,19 +41,20 @@ public class EspAES {
         mKey = key;
         mIV = iv;
         mTransformation = transformation;
+        mKeySpec = new SecretKeySpec(mKey, "AES");
 
-        mEncryptCipher = createEncryptCipher();
-        mDecryptCipher = createDecryptCipher();
-
+        mEncryptCipher = createCipher(Cipher.ENCRYPT_MODE);
+        mDecryptCipher = createCipher(Cipher.DECRYPT_MODE);
     }
 
-    private Cipher createEncryptCipher() {
+    private Cipher createCipher(int mode) {
         try {
             Cipher cipher = Cipher.getInstance(mTransformation);
 
-            SecretKeySpec secretKeySpec = new SecretKeySpec(mKey, "AES");
-            IvParameterSpec parameterSpec = new IvParameterSpec(mIV);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, parameterSpec);
+            if (mIV != null) {
+                IvParameterSpec parameterSpec = new IvParameterSpec(mIV);
+                cipher.init(mode, mKeySpec, parameterSpec);
+            }
 
             return cipher;
         } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException
@@ -51,30 +65,31 @@ public class EspAES {
         return null;
     }
 
-    private Cipher createDecryptCipher() {
+    public byte[] encrypt(byte[] content) {
         try {
-            Cipher cipher = Cipher.getInstance(mTransformation);
-
-            SecretKeySpec secretKeySpec = new SecretKeySpec(mKey, "AES");
-            IvParameterSpec parameterSpec = new IvParameterSpec(mIV);
-            cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, parameterSpec);
-
-            return cipher;
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException
-                e) {
+            return mEncryptCipher.doFinal(content);
+        } catch (BadPaddingException | IllegalBlockSizeException e) {
             e.printStackTrace();
         }
-
         return null;
     }
 
-    public byte[] encrypt(byte[] content) {
+    /**
+     * Reinitialize the encrypt cipher with the IV, then encrypt a range of the input and store the result
+     * in the output, input and output can be the same array
+     *
+     * @return the number of bytes stored in output, -1 if encrypt failed
+     */
+    public int encrypt(byte[] iv, byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
         try {
-            return mEncryptCipher.doFinal(content);
-        } catch (BadPaddingException | IllegalBlockSizeException e) {
+            mEncryptCipher.init(Cipher.ENCRYPT_MODE, mKeySpec, new IvParameterSpec(iv));
+            // CFB providers may hold a partial block in update(), doFinal() flushes it
+            return mEncryptCipher.doFinal(input, inputOffset, inputLen, output, outputOffset);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | BadPaddingException
+                | IllegalBlockSizeException | ShortBufferException e) {
             e.printStackTrace();
         }
-        return null;
+        return -1;
     }
 
     public byte[] decrypt(byte[] content) {
@@ -86,4 +101,21 @@ public class EspAES {
 
         return null;
     }
+
+    /**
+     * Reinitialize the decrypt cipher with the IV, then decrypt a range of the input and store the result
+     * in the output, input and output can be the same array
+     *
+     * @return the number of bytes stored in output, -1 if decrypt failed
+     */
+    public int decrypt(byte[] iv, byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        try {
+            mDecryptCipher.init(Cipher.DECRYPT_MODE, mKeySpec, new IvParameterSpec(iv));
+            return mDecryptCipher.doFinal(input, inputOffset, inputLen, output, outputOffset);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | BadPaddingException
+                | IllegalBlockSizeException | ShortBufferException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
 }
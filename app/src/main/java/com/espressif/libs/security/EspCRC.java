@@ -1,5 +1,11 @@
 package com.espressif.libs.security;
 
+/**
+ * CRC16-CCITT of the Blufi frames, the initial value and the result are inverted.
+ * <p>
+ * The value of a call is the initial value of the next, so a checksum can be calculated over several
+ * ranges. The ranges longer than 8 bytes are calculated 8 bytes a step by slicing tables.
+ */
 public class EspCRC {
     private static final char[] CRC_TB = {
             0x0000, 0x1021, 0x2042, 0x3063, 0x4084, 0x50a5, 0x60c6, 0x70e7, 0x8108, 0x9129, 0xa14a, 0xb16b, 0xc18c, 0xd1ad, 0xe1ce, 0xf1ef,
@@ -20,11 +26,77 @@ public class EspCRC {
             0xef1f, 0xff3e, 0xcf5d, 0xdf7c, 0xaf9b, 0xbfba, 0x8fd9, 0x9ff8, 0x6e17, 0x7e36, 0x4e55, 0x5e74, 0x2e93, 0x3eb2, 0x0ed1, 0x1ef0
     };
 
+    /**
+     * TB_k[x] is the CRC of the byte x followed by k zero bytes
+     */
+    private static final char[] TB_1 = new char[256];
+    private static final char[] TB_2 = new char[256];
+    private static final char[] TB_3 = new char[256];
+    private static final char[] TB_4 = new char[256];
+    private static final char[] TB_5 = new char[256];
+    private static final char[] TB_6 = new char[256];
+    private static final char[] TB_7 = new char[256];
+
+    static {
+        char[][] tables = {CRC_TB, TB_1, TB_2, TB_3, TB_4, TB_5, TB_6, TB_7};
+        for (int k = 1; k < tables.length; k++) {
+            for (int i = 0; i < 256; i++) {
+                int prev = tables[k - 1][i];
+                tables[k][i] = (char) (CRC_TB[prev >> 8] ^ ((prev << 8) & 0xffff));
+            }
+        }
+    }
+
     public static int caluCRC(int crc, byte[] pByte) {
-        crc = ~(crc & 0xffff);
-        for (byte aPByte : pByte) {
-            crc = CRC_TB[((crc & 0xffff) >> 8) ^ (aPByte & 0xff)] ^ ((crc & 0xffff) << 8);
+        return caluCRC(crc, pByte, 0, pByte.length);
+    }
+
+    /**
+     * Calculate the CRC of a range of the array
+     *
+     * @param crc    initial value, or the value of the previous range
+     * @param pByte  data array
+     * @param offset start position in the array
+     * @param length count of the bytes
+     * @return CRC value
+     */
+    public static int caluCRC(int crc, byte[] pByte, int offset, int length) {
+        int c = ~crc & 0xffff;
+        int i = offset;
+        int end = offset + length;
+        for (; end - i >= 8; i += 8) {
+            c = TB_7[((c >> 8) ^ pByte[i]) & 0xff]
+                    ^ TB_6[(c ^ pByte[i + 1]) & 0xff]
+                    ^ TB_5[pByte[i + 2] & 0xff]
+                    ^ TB_4[pByte[i + 3] & 0xff]
+                    ^ TB_3[pByte[i + 4] & 0xff]
+                    ^ TB_2[pByte[i + 5] & 0xff]
+                    ^ TB_1[pByte[i + 6] & 0xff]
+                    ^ CRC_TB[pByte[i + 7] & 0xff];
+        }
+        if (end - i >= 4) {
+            c = TB_3[((c >> 8) ^ pByte[i]) & 0xff]
+                    ^ TB_2[(c ^ pByte[i + 1]) & 0xff]
+                    ^ TB_1[pByte[i + 2] & 0xff]
+                    ^ CRC_TB[pByte[i + 3] & 0xff];
+            i += 4;
+        }
+        for (; i < end; i++) {
+            c = CRC_TB[((c >> 8) ^ pByte[i]) & 0xff] ^ ((c << 8) & 0xffff);
         }
-        return ~(crc & 0xffff);
+        return ~c;
+    }
+
+    /**
+     * Calculate the CRC of one more byte
+     *
+     * @param crc initial value, or the value of the previous bytes
+     * @param b   the byte
+     * @return CRC value
+     */
+    public static int update(int crc, int b) {
+        int c = ~crc & 0xffff;
+        c = CRC_TB[((c >> 8) ^ b) & 0xff] ^ ((c << 8) & 0xffff);
+        return ~c;
     }
 }
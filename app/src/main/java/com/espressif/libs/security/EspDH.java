@@ -7,25 +7,15 @@
 package com.espressif.libs.security;
 
 import java.math.BigInteger;
-import java.security.AlgorithmParameterGenerator;
-import java.security.AlgorithmParameters;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.InvalidParameterSpecException;
-
-import javax.crypto.KeyAgreement;
-import javax.crypto.interfaces.DHPrivateKey;
-import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
-import javax.crypto.spec.DHPublicKeySpec;
 
+/**
+ * Diffie-Hellman key exchange computed with BigInteger directly.
+ * <p>
+ * The values are encoded as unsigned big-endian bytes, the public value and the secret key have the same
+ * length as P.
+ */
 public class EspDH {
     private static final String FIXP = "cf5cf5c38419a724957ff5dd323b9c45c3cdd261eb740f69aa94b8bb1a5c9640" +
             "9153bd76b24222d03274e4725a5406092e9e82e9135c643cae98132b0d95f7d6" +
@@ -33,64 +23,104 @@ public class EspDH {
             "728e87664532cdf547be20c9a3fa8342be6e34371a27c06f7dc0edddd2f86373";
     private static final String FIXG = "2";
 
+    private static final BigInteger FIX_P = new BigInteger(FIXP, 16);
+    private static final BigInteger FIX_G = new BigInteger(FIXG);
+    private static final byte[] FIX_P_BYTES = toUnsignedBytes(FIX_P, byteLength(FIX_P));
+    private static final byte[] FIX_G_BYTES = toUnsignedBytes(FIX_G, byteLength(FIX_G));
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     private final int mLength;
-    private BigInteger mP;
-    private BigInteger mG;
+    private final BigInteger mP;
+    private final BigInteger mG;
+    private final byte[] mPBytes;
+    private final byte[] mGBytes;
 
-    private DHPrivateKey mPrivateKey;
-    private DHPublicKey mPublicKey;
+    private BigInteger mPrivateKey;
+    private BigInteger mPublicKey;
 
     private byte[] mSecretKey;
 
+    /**
+     * Use the fixed P and G
+     *
+     * @param length the bit length of the private key
+     */
     public EspDH(int length) {
-        this(new BigInteger(FIXP, 16), new BigInteger(FIXG), length);
+        this(FIX_P, FIX_G, FIX_P_BYTES, FIX_G_BYTES, length);
     }
 
+    /**
+     * @param p      prime
+     * @param g      generator
+     * @param length the bit length of the private key
+     */
     public EspDH(BigInteger p, BigInteger g, int length) {
+        this(p, g, toUnsignedBytes(p, byteLength(p)), toUnsignedBytes(g, byteLength(g)), length);
+    }
+
+    private EspDH(BigInteger p, BigInteger g, byte[] pBytes, byte[] gBytes, int length) {
         mP = p;
         mG = g;
+        mPBytes = pBytes;
+        mGBytes = gBytes;
         mLength = length;
         generateKeys();
     }
 
-    private BigInteger[] generatePG() {
-        AlgorithmParameterGenerator paramGen = null;
-        try {
-            paramGen = AlgorithmParameterGenerator.getInstance("DH");
-            paramGen.init(mLength, new SecureRandom());
-            AlgorithmParameters params = paramGen.generateParameters();
-            DHParameterSpec dhSpec = params.getParameterSpec(DHParameterSpec.class);
-            BigInteger pv = dhSpec.getP();
-            BigInteger gv = dhSpec.getG();
-
-            return new BigInteger[]{pv, gv};
-        } catch (NoSuchAlgorithmException | InvalidParameterSpecException e) {
-            e.printStackTrace();
-        }
-
-        return null;
+    /**
+     * Share the key pair of another EspDH, the secret key is generated separately
+     *
+     * @param keyPair the EspDH holds the key pair
+     */
+    public EspDH(EspDH keyPair) {
+        mP = keyPair.mP;
+        mG = keyPair.mG;
+        mPBytes = keyPair.mPBytes;
+        mGBytes = keyPair.mGBytes;
+        mLength = keyPair.mLength;
+        mPrivateKey = keyPair.mPrivateKey;
+        mPublicKey = keyPair.mPublicKey;
     }
 
-    private boolean generateKeys() {
-        try {
-            // Use the values to generate a key pair
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
-            DHParameterSpec dhSpec = new DHParameterSpec(mP, mG, mLength);
-            keyGen.initialize(dhSpec);
-            KeyPair keypair = keyGen.generateKeyPair();
-
-            // Get the generated public and private keys
-            mPrivateKey = (DHPrivateKey) keypair.getPrivate();
-            mPublicKey = (DHPublicKey) keypair.getPublic();
+    private static int byteLength(BigInteger value) {
+        return (value.bitLength() + 7) / 8;
+    }
 
-            return true;
-        } catch (NoSuchAlgorithmException
-                | InvalidAlgorithmParameterException
-                | ClassCastException e) {
-            e.printStackTrace();
+    /**
+     * Encode the value as unsigned big-endian bytes, pad zero at the head
+     *
+     * @param value  nonnegative value
+     * @param length the length of the result
+     * @return bytes
+     */
+    static byte[] toUnsignedBytes(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length == length) {
+            return bytes;
+        }
 
-            return false;
+        byte[] result = new byte[length];
+        if (bytes.length > length) {
+            // Drop the sign byte
+            System.arraycopy(bytes, bytes.length - length, result, 0, length);
+        } else {
+            System.arraycopy(bytes, 0, result, length - bytes.length, bytes.length);
         }
+        return result;
+    }
+
+    private void generateKeys() {
+        // Private key x is in [2, p - 2]
+        BigInteger pMinus2 = mP.subtract(BigInteger.valueOf(2));
+        int length = Math.min(mLength, mP.bitLength());
+        BigInteger x;
+        do {
+            x = new BigInteger(length, RANDOM);
+        } while (x.compareTo(BigInteger.ONE) <= 0 || x.compareTo(pMinus2) > 0);
+
+        mPrivateKey = x;
+        mPublicKey = mG.modPow(x, mP);
     }
 
     public BigInteger getP() {
@@ -101,33 +131,52 @@ public class EspDH {
         return mG;
     }
 
-    public DHPrivateKey getPriveteKey() {
-        return mPrivateKey;
+    public byte[] getPBytes() {
+        return mPBytes.clone();
+    }
+
+    public byte[] getGBytes() {
+        return mGBytes.clone();
     }
 
-    public DHPublicKey getPublicKey() {
+    public BigInteger getPublicKey() {
         return mPublicKey;
     }
 
+    /**
+     * Get the public value, it has the same length as P
+     *
+     * @return public value bytes
+     */
+    public byte[] getPublicKeyBytes() {
+        return toUnsignedBytes(mPublicKey, mPBytes.length);
+    }
+
+    /**
+     * Get the secret key, it has the same length as P
+     *
+     * @return secret key bytes
+     */
     public byte[] getSecretKey() {
         return mSecretKey;
     }
 
     public void generateSecretKey(BigInteger y) throws InvalidKeySpecException {
-        try {
-            DHPublicKeySpec ks = new DHPublicKeySpec(y, mP, mG);
-            KeyFactory keyFact = KeyFactory.getInstance("DH");
-            PublicKey publicKey = keyFact.generatePublic(ks);
-
-            // Prepare to generate the secret key with the private key and public key of the other party
-            KeyAgreement ka = KeyAgreement.getInstance("DH");
-            ka.init(mPrivateKey);
-            ka.doPhase(publicKey, true);
-
-            // Generate the secret key
-            mSecretKey = ka.generateSecret();
-        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-            e.printStackTrace();
+        // Reject the public value in the small subgroup, y must be in [2, p - 2]
+        if (y.compareTo(BigInteger.ONE) <= 0 || y.compareTo(mP.subtract(BigInteger.ONE)) >= 0) {
+            throw new InvalidKeySpecException("Invalid public value");
         }
+
+        mSecretKey = toUnsignedBytes(y.modPow(mPrivateKey, mP), mPBytes.length);
+    }
+
+    /**
+     * Generate the secret key with the public value of the other party
+     *
+     * @param y unsigned big-endian public value
+     * @throws InvalidKeySpecException the public value is invalid
+     */
+    public void generateSecretKey(byte[] y) throws InvalidKeySpecException {
+        generateSecretKey(new BigInteger(1, y));
     }
 }
@@ -0,0 +1,153 @@
+package com.espressif.libs.security;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of pre-generated DH key pairs, background threads keep the pool filled.
+ */
+public class EspDHPool {
+    private final int mLength;
+    private final BlockingQueue<EspDH> mPool;
+    private final int mThreadCount;
+
+    private ExecutorService mExecutor;
+    private volatile boolean mClosed = false;
+
+    private volatile boolean mBatchKeyMode = false;
+    private EspDH mBatchKey;
+    private final Object mBatchKeyLock = new Object();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * @param length   the bit length of the private key, same as {@link EspDH#EspDH(int)}
+     * @param capacity max count of the key pairs in the pool
+     */
+    public EspDHPool(int length, int capacity) {
+        mLength = length;
+        mPool = new ArrayBlockingQueue<>(capacity);
+        mThreadCount = Math.max(1, Math.min(capacity, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Start the background threads to fill the pool
+     */
+    public synchronized void start() {
+        if (mExecutor != null || mClosed) {
+            return;
+        }
+
+        mExecutor = Executors.newFixedThreadPool(mThreadCount, new FillThreadFactory());
+        for (int i = 0; i < mThreadCount; i++) {
+            mExecutor.execute(this::fill);
+        }
+    }
+
+    /**
+     * Stop the background threads and clear the pool
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        mPool.clear();
+        synchronized (mBatchKeyLock) {
+            mBatchKey = null;
+        }
+    }
+
+    /**
+     * In batch key mode all the devices share one ephemeral key pair, each one still gets its own secret key.
+     * The key pair is dropped when the mode is disabled.
+     *
+     * @param enable enable batch key mode or not
+     */
+    public void setBatchKeyMode(boolean enable) {
+        synchronized (mBatchKeyLock) {
+            mBatchKeyMode = enable;
+            if (!enable) {
+                mBatchKey = null;
+            }
+        }
+    }
+
+    public boolean isBatchKeyMode() {
+        return mBatchKeyMode;
+    }
+
+    /**
+     * Take a key pair. Generate it in the calling thread if the pool is empty.
+     *
+     * @return DH key pair
+     */
+    public EspDH take() {
+        if (mBatchKeyMode) {
+            synchronized (mBatchKeyLock) {
+                if (mBatchKey == null) {
+                    mBatchKey = poll();
+                }
+                return new EspDH(mBatchKey);
+            }
+        }
+
+        return poll();
+    }
+
+    private EspDH poll() {
+        EspDH dh = mPool.poll();
+        if (dh != null) {
+            mHitCount.incrementAndGet();
+            return dh;
+        } else {
+            mMissCount.incrementAndGet();
+            return generate();
+        }
+    }
+
+    private EspDH generate() {
+        return new EspDH(mLength);
+    }
+
+    private void fill() {
+        while (!mClosed) {
+            try {
+                mPool.put(generate());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        return mPool.size();
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    private static class FillThreadFactory implements ThreadFactory {
+        private final AtomicInteger mIndex = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "EspDHPool-" + mIndex.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
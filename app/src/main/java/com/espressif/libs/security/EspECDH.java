@@ -0,0 +1,119 @@
+package com.espressif.libs.security;
+
+import java.math.BigInteger;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.InvalidKeySpecException;
+
+import javax.crypto.KeyAgreement;
+
+/**
+ * Elliptic curve Diffie-Hellman key exchange on P-256.
+ * <p>
+ * The public key is encoded as an uncompressed point: 0x04, X, Y. The secret key is the X coordinate of the
+ * shared point, both coordinates are 32 bytes unsigned big-endian.
+ */
+public class EspECDH {
+    private static final String CURVE = "secp256r1";
+    private static final int COORDINATE_LENGTH = 32;
+    private static final byte POINT_UNCOMPRESSED = 0x04;
+
+    public static final int PUBLIC_KEY_LENGTH = 1 + COORDINATE_LENGTH * 2;
+
+    private PrivateKey mPrivateKey;
+    private ECPublicKey mPublicKey;
+
+    private byte[] mSecretKey;
+
+    public EspECDH() {
+        generateKeys();
+    }
+
+    private boolean generateKeys() {
+        try {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+            keyGen.initialize(new ECGenParameterSpec(CURVE));
+            KeyPair keypair = keyGen.generateKeyPair();
+
+            mPrivateKey = keypair.getPrivate();
+            mPublicKey = (ECPublicKey) keypair.getPublic();
+
+            return true;
+        } catch (NoSuchAlgorithmException
+                | InvalidAlgorithmParameterException
+                | ClassCastException e) {
+            e.printStackTrace();
+
+            return false;
+        }
+    }
+
+    public ECPublicKey getPublicKey() {
+        return mPublicKey;
+    }
+
+    /**
+     * Get the uncompressed public key point
+     *
+     * @return public key bytes, null if generate key pair failed
+     */
+    public byte[] getPublicKeyBytes() {
+        if (mPublicKey == null) {
+            return null;
+        }
+
+        ECPoint point = mPublicKey.getW();
+        byte[] x = EspDH.toUnsignedBytes(point.getAffineX(), COORDINATE_LENGTH);
+        byte[] y = EspDH.toUnsignedBytes(point.getAffineY(), COORDINATE_LENGTH);
+        byte[] result = new byte[PUBLIC_KEY_LENGTH];
+        result[0] = POINT_UNCOMPRESSED;
+        System.arraycopy(x, 0, result, 1, COORDINATE_LENGTH);
+        System.arraycopy(y, 0, result, 1 + COORDINATE_LENGTH, COORDINATE_LENGTH);
+        return result;
+    }
+
+    public byte[] getSecretKey() {
+        return mSecretKey;
+    }
+
+    /**
+     * Generate the secret key with the public key of the other party
+     *
+     * @param publicKey uncompressed public key point
+     * @throws InvalidKeySpecException the public key is invalid
+     */
+    public void generateSecretKey(byte[] publicKey) throws InvalidKeySpecException {
+        if (publicKey == null || publicKey.length != PUBLIC_KEY_LENGTH || publicKey[0] != POINT_UNCOMPRESSED) {
+            throw new InvalidKeySpecException("Invalid public key");
+        }
+
+        byte[] xBytes = new byte[COORDINATE_LENGTH];
+        byte[] yBytes = new byte[COORDINATE_LENGTH];
+        System.arraycopy(publicKey, 1, xBytes, 0, COORDINATE_LENGTH);
+        System.arraycopy(publicKey, 1 + COORDINATE_LENGTH, yBytes, 0, COORDINATE_LENGTH);
+        ECPoint point = new ECPoint(new BigInteger(1, xBytes), new BigInteger(1, yBytes));
+
+        try {
+            ECPublicKeySpec ks = new ECPublicKeySpec(point, mPublicKey.getParams());
+            PublicKey devicePublicKey = KeyFactory.getInstance("EC").generatePublic(ks);
+
+            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+            ka.init(mPrivateKey);
+            ka.doPhase(devicePublicKey, true);
+
+            mSecretKey = ka.generateSecret();
+        } catch (NoSuchAlgorithmException | InvalidKeyException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+}
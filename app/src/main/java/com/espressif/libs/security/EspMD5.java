@@ -1,5 +1,7 @@
 package com.espressif.libs.security;
 
+import com.espressif.libs.utils.HexUtil;
+
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -18,25 +20,7 @@ public class EspMD5 {
     }
 
     public static String getMD5String(byte[] data) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("md5");
-            digest.update(data);
-            byte[] result = digest.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : result) {
-                int number = b & 0xff;
-                String str = Integer.toHexString(number);
-                if (str.length() == 1) {
-                    sb.append("0");
-                }
-                sb.append(str);
-            }
-
-            return sb.toString();
-        } catch (NoSuchAlgorithmException | NullPointerException e) {
-            e.printStackTrace();
-        }
-
-        return "";
+        byte[] result = getMD5Byte(data);
+        return result == null ? "" : HexUtil.encode(result);
     }
 }
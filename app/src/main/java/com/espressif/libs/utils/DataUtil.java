@@ -1,5 +1,7 @@
 package com.espressif.libs.utils;
 
+import com.espressif.libs.log.EspLog;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -9,7 +11,14 @@ public class DataUtil {
         printBytes(bytes, 20);
     }
 
+    /**
+     * Log the bytes as a table at the debug level, nothing is built if the level is disabled
+     */
     public static void printBytes(byte[] bytes, int colCount) {
+        if (!EspLog.isLoggable(EspLog.Level.D)) {
+            return;
+        }
+
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < colCount; i++) {
             if (i < 10) {
@@ -25,38 +34,13 @@ public class DataUtil {
         sb.append('\n');
 
         for (int i = 0; i < bytes.length; i++) {
-            sb.append(Integer.toHexString(bytes[i] & 0xff)).append('\t');
+            HexUtil.appendByte(sb, bytes[i]).append('\t');
             if (i % colCount == (colCount - 1)) {
                 sb.append("| ").append(i / colCount).append('\n');
             }
         }
 
-        System.out.println(sb.toString());
-    }
-
-    public static byte[] hexIntStringToBytes(String string) {
-        if (string.length() < 2) {
-            string = "0" + string;
-        }
-        byte[] result = new byte[string.length() / 2];
-        for (int i = 0; i < string.length(); i += 2) {
-            result[i / 2] = (byte) Integer.parseInt(string.substring(i, i + 2), 16);
-        }
-        return result;
-    }
-
-    public static String bytesToString(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            int i = b & 0xff;
-            String bstr = Integer.toHexString(i);
-            if (bstr.length() < 2) {
-                bstr = "0" + bstr;
-            }
-
-            sb.append(bstr);
-        }
-        return sb.toString();
+        EspLog.d(sb.toString());
     }
 
     public static byte[] byteListToArray(List<Byte> list) {
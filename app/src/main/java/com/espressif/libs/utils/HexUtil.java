@@ -0,0 +1,128 @@
+package com.espressif.libs.utils;
+
+/**
+ * Convert between bytes and lower case hex digits by table lookup, the range methods allocate nothing
+ */
+public class HexUtil {
+    private static final char[] DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    /**
+     * The value of the ASCII chars, -1 for the chars are not hex digits
+     */
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            VALUES['a' + i] = (byte) (10 + i);
+            VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    /**
+     * Encode the bytes into the chars, two digits a byte
+     *
+     * @param src    bytes
+     * @param offset the offset of the bytes
+     * @param length the count of the bytes
+     * @param dst    the chars, it must hold 2 * length chars from dstOffset
+     * @return the offset in dst after the last digit
+     */
+    public static int encode(byte[] src, int offset, int length, char[] dst, int dstOffset) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int b = src[i] & 0xff;
+            dst[dstOffset++] = DIGITS[b >>> 4];
+            dst[dstOffset++] = DIGITS[b & 0x0f];
+        }
+        return dstOffset;
+    }
+
+    /**
+     * Encode the bytes into the string builder, two digits a byte
+     */
+    public static StringBuilder encode(byte[] src, int offset, int length, StringBuilder dst) {
+        dst.ensureCapacity(dst.length() + length * 2);
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int b = src[i] & 0xff;
+            dst.append(DIGITS[b >>> 4]).append(DIGITS[b & 0x0f]);
+        }
+        return dst;
+    }
+
+    public static String encode(byte[] src, int offset, int length) {
+        char[] chars = new char[length * 2];
+        encode(src, offset, length, chars, 0);
+        return new String(chars);
+    }
+
+    public static String encode(byte[] src) {
+        return encode(src, 0, src.length);
+    }
+
+    private static int value(char c) {
+        int v = c < VALUES.length ? VALUES[c] : -1;
+        if (v < 0) {
+            throw new IllegalArgumentException("Invalid hex digit " + c);
+        }
+        return v;
+    }
+
+    /**
+     * Decode the digits into the bytes, an odd count of digits is read as if a '0' is ahead
+     *
+     * @param src    hex digits
+     * @param offset the offset of the digits
+     * @param length the count of the digits
+     * @param dst    the bytes, it must hold (length + 1) / 2 bytes from dstOffset
+     * @return the offset in dst after the last byte
+     * @throws IllegalArgumentException if a char is not a hex digit
+     */
+    public static int decode(char[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int end = offset + length;
+        int i = offset;
+        if ((length & 1) != 0) {
+            dst[dstOffset++] = (byte) value(src[i++]);
+        }
+        for (; i < end; i += 2) {
+            dst[dstOffset++] = (byte) ((value(src[i]) << 4) | value(src[i + 1]));
+        }
+        return dstOffset;
+    }
+
+    /**
+     * Decode the digits of the string into the bytes, see {@link #decode(char[], int, int, byte[], int)}
+     */
+    public static int decode(CharSequence src, int offset, int length, byte[] dst, int dstOffset) {
+        int end = offset + length;
+        int i = offset;
+        if ((length & 1) != 0) {
+            dst[dstOffset++] = (byte) value(src.charAt(i++));
+        }
+        for (; i < end; i += 2) {
+            dst[dstOffset++] = (byte) ((value(src.charAt(i)) << 4) | value(src.charAt(i + 1)));
+        }
+        return dstOffset;
+    }
+
+    public static byte[] decode(CharSequence src) {
+        byte[] result = new byte[(src.length() + 1) / 2];
+        decode(src, 0, src.length(), result, 0);
+        return result;
+    }
+
+    /**
+     * Append the hex digits of a byte
+     */
+    public static StringBuilder appendByte(StringBuilder dst, byte b) {
+        return dst.append(DIGITS[(b >>> 4) & 0x0f]).append(DIGITS[b & 0x0f]);
+    }
+}
@@ -0,0 +1,180 @@
+package com.esp.iot.blufi.communiation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import rx.Single;
+import rx.Subscription;
+import rx.schedulers.Schedulers;
+
+import static org.junit.Assert.*;
+
+/**
+ * Matching, retransmission and failure of {@link BlufiAckWindow}.
+ */
+public class BlufiAckWindowTest {
+    private static byte[] frame(int sequence) {
+        return new byte[]{0, 0, (byte) sequence, 0};
+    }
+
+    @Test
+    public void matchAcksOutOfOrder() {
+        BlufiAckWindow window = new BlufiAckWindow(4, 1000L, 2);
+        for (int sequence = 254; sequence < 258; sequence++) {
+            window.add(sequence, frame(sequence));
+        }
+        assertEquals(4, window.getOutstandingCount());
+
+        assertTrue(window.onAck(0));
+        assertTrue(window.onAck(255));
+        assertTrue(window.onAck(1));
+        assertFalse(window.onAck(1));
+        assertEquals(1, window.getOutstandingCount());
+        assertTrue(window.onAck(254));
+
+        assertTrue(window.isEmpty());
+        assertEquals(1, window.getUnmatchedAckCount());
+        assertEquals(0, window.getRetransmitCount());
+    }
+
+    @Test
+    public void awaitRoomReturnsOnceAFrameIsAcked() throws InterruptedException {
+        BlufiAckWindow window = new BlufiAckWindow(2, 5000L, 0);
+        window.add(1, frame(1));
+        window.add(2, frame(2));
+
+        Thread acker = new Thread(() -> window.onAck(2));
+        acker.start();
+        assertTrue(window.awaitRoom(f -> true));
+        acker.join();
+        assertEquals(1, window.getOutstandingCount());
+    }
+
+    @Test
+    public void retransmitOnlyExpiredFrames() throws InterruptedException {
+        BlufiAckWindow window = new BlufiAckWindow(4, 200L, 2);
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        BlufiAckWindow.FrameWriter writer = f -> {
+            int sequence = f[2] & 0xff;
+            written.add(sequence);
+            // The retransmitted frame is acknowledged at once
+            window.onAck(sequence);
+            return true;
+        };
+
+        window.add(1, frame(1));
+        Thread.sleep(100L);
+        window.add(2, frame(2));
+        // Frame 2 is acknowledged before its timeout, after frame 1 timed out
+        Thread acker = new Thread(() -> {
+            try {
+                Thread.sleep(150L);
+            } catch (InterruptedException e) {
+                return;
+            }
+            window.onAck(2);
+        });
+        acker.start();
+
+        assertTrue(window.awaitAll(writer));
+        acker.join();
+        assertEquals(Collections.singletonList(1), written);
+        assertEquals(1, window.getRetransmitCount());
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    public void failAfterMaxRetransmit() {
+        BlufiAckWindow window = new BlufiAckWindow(1, 50L, 2);
+        List<Integer> written = new ArrayList<>();
+        window.add(7, frame(7));
+
+        assertFalse(window.awaitAll(f -> written.add(f[2] & 0xff)));
+        assertEquals(2, written.size());
+        assertEquals(2, window.getRetransmitCount());
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    public void stopAndWaitNeverRetransmits() {
+        BlufiAckWindow window = new BlufiAckWindow(1, 50L, 0);
+        List<Integer> written = new ArrayList<>();
+        window.add(7, frame(7));
+
+        assertFalse(window.awaitAll(f -> written.add(f[2] & 0xff)));
+        assertTrue(written.isEmpty());
+        assertEquals(0, window.getRetransmitCount());
+    }
+
+    @Test
+    public void failedRetransmissionFails() {
+        BlufiAckWindow window = new BlufiAckWindow(2, 50L, 2);
+        window.add(1, frame(1));
+
+        assertFalse(window.awaitAll(f -> false));
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    public void interruptKeepsTheFlag() {
+        BlufiAckWindow window = new BlufiAckWindow(1, 5000L, 0);
+        window.add(1, frame(1));
+
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(window.awaitAll(f -> true));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    public void awaitRoomAsyncCompletesInTheAck() {
+        BlufiAckWindow window = new BlufiAckWindow(2, 5000L, 0);
+        window.add(1, frame(1));
+        window.add(2, frame(2));
+
+        Boolean[] result = new Boolean[1];
+        Subscription subscription = window.awaitRoomAsync(f -> Single.just(true), Schedulers.computation())
+                .subscribe(room -> result[0] = room);
+        assertNull(result[0]);
+        window.onAck(2);
+        assertEquals(Boolean.TRUE, result[0]);
+        subscription.unsubscribe();
+    }
+
+    @Test
+    public void awaitAllAsyncRetransmits() {
+        BlufiAckWindow window = new BlufiAckWindow(1, 50L, 2);
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        window.add(7, frame(7));
+
+        assertTrue(window.awaitAllAsync(f -> {
+            int sequence = f[2] & 0xff;
+            written.add(sequence);
+            window.onAck(sequence);
+            return Single.just(true);
+        }, Schedulers.computation()).toBlocking().value());
+        assertEquals(Collections.singletonList(7), written);
+        assertEquals(1, window.getRetransmitCount());
+    }
+
+    @Test
+    public void awaitAllAsyncFailsAfterMaxRetransmit() {
+        BlufiAckWindow window = new BlufiAckWindow(1, 50L, 2);
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        window.add(7, frame(7));
+
+        assertFalse(window.awaitAllAsync(f -> {
+            written.add(f[2] & 0xff);
+            return Single.just(true);
+        }, Schedulers.computation()).toBlocking().value());
+        assertEquals(2, written.size());
+        assertTrue(window.isEmpty());
+    }
+}
@@ -0,0 +1,190 @@
+package com.esp.iot.blufi.communiation;
+
+import com.espressif.libs.security.EspAES;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of {@link BlufiFrameEncoder} and {@link BlufiFrameDecoder}.
+ */
+public class BlufiFrameCodecTest {
+    private static final int TYPE = (IBlufiCommunicator.Type.Data.SUBTYPE_CA_CERTIFICATION << 2)
+            | IBlufiCommunicator.Type.Data.PACKAGE_VALUE;
+
+    private static byte[] newData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7 + 1);
+        }
+        return data;
+    }
+
+    private static EspAES newAES(int seed) {
+        byte[] key = new byte[16];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) (seed + i);
+        }
+        return new EspAES(key);
+    }
+
+    /**
+     * Split the data as the communicator does, a fragment carries the remaining length
+     */
+    private static List<byte[]> encodeFrames(BlufiFrameEncoder encoder, byte[] data, int frameLength,
+                                             boolean encrypted, boolean checksum, int firstSequence) {
+        List<byte[]> frames = new ArrayList<>();
+        int offset = 0;
+        int sequence = firstSequence;
+        do {
+            int remain = data.length - offset;
+            boolean frag = remain > BlufiFrameSizer.getDataCapacity(frameLength, checksum, false);
+            int length = frag ? BlufiFrameSizer.getDataCapacity(frameLength, checksum, true) : remain;
+            int fc = BlufiFrameEncoder.getFrameCtrlValue(encrypted, checksum, false, false, frag);
+            byte[] frame = encoder.encode(TYPE, fc, sequence++, remain, data, offset, length);
+            assertNotNull(frame);
+            assertTrue(frame.length <= frameLength);
+            frames.add(frame);
+            offset += length;
+        } while (offset < data.length);
+        return frames;
+    }
+
+    private static int decodeFrames(BlufiFrameDecoder decoder, List<byte[]> frames, BlufiNotiData notification) {
+        int result = BlufiFrameDecoder.RESULT_INVALID;
+        for (int i = 0; i < frames.size(); i++) {
+            result = decoder.decode(frames.get(i), notification);
+            if (result == BlufiFrameDecoder.RESULT_INVALID) {
+                return result;
+            }
+            assertEquals(i < frames.size() - 1 ? BlufiFrameDecoder.RESULT_FRAG : BlufiFrameDecoder.RESULT_COMPLETE,
+                    result);
+        }
+        return result;
+    }
+
+    @Test
+    public void encodeHeader() {
+        BlufiFrameEncoder encoder = new BlufiFrameEncoder();
+        int fc = BlufiFrameEncoder.getFrameCtrlValue(false, true, false, true, false);
+        assertEquals(0x0a, fc);
+
+        byte[] frame = encoder.encode(TYPE, fc, 0x85, 3, new byte[]{9, 1, 2, 3}, 1, 3);
+        assertEquals(BlufiFrameEncoder.HEADER_LENGTH + 3 + BlufiFrameEncoder.CHECKSUM_LENGTH, frame.length);
+        assertEquals((byte) TYPE, frame[0]);
+        assertEquals((byte) fc, frame[1]);
+        assertEquals((byte) 0x85, frame[2]);
+        assertEquals(3, frame[3]);
+        assertEquals(1, frame[4]);
+        assertEquals(3, frame[6]);
+
+        byte[] empty = encoder.encode(TYPE, 0, 1);
+        assertArrayEquals(new byte[]{(byte) TYPE, 0, 1, 0}, empty);
+    }
+
+    @Test
+    public void fragmentTotalLength() {
+        BlufiFrameEncoder encoder = new BlufiFrameEncoder();
+        byte[] data = newData(300);
+        List<byte[]> frames = encodeFrames(encoder, data, 20, false, true, 0);
+        // 12 bytes in each fragment, the last frame carries the 12 bytes left
+        assertEquals(25, frames.size());
+
+        byte[] first = frames.get(0);
+        int fragFc = 1 << IBlufiCommunicator.FRAME_CTRL_POSITION_FRAG;
+        assertEquals(fragFc, first[1] & fragFc);
+        assertEquals(12 + BlufiFrameEncoder.FRAG_TOTAL_LENGTH, first[3]);
+        assertEquals(300, (first[4] & 0xff) | ((first[5] & 0xff) << 8));
+        byte[] second = frames.get(1);
+        assertEquals(288, (second[4] & 0xff) | ((second[5] & 0xff) << 8));
+        byte[] last = frames.get(frames.size() - 1);
+        assertEquals(0, last[1] & fragFc);
+        assertEquals(12, last[3]);
+
+        BlufiNotiData notification = new BlufiNotiData();
+        assertEquals(BlufiFrameDecoder.RESULT_COMPLETE, decodeFrames(new BlufiFrameDecoder(), frames, notification));
+        assertEquals(IBlufiCommunicator.Type.Data.PACKAGE_VALUE, notification.getPkgType());
+        assertEquals(IBlufiCommunicator.Type.Data.SUBTYPE_CA_CERTIFICATION, notification.getSubType());
+        assertArrayEquals(data, notification.getDataArray());
+    }
+
+    @Test
+    public void corruptedFrameFailsChecksum() {
+        BlufiFrameEncoder encoder = new BlufiFrameEncoder();
+        int fc = BlufiFrameEncoder.getFrameCtrlValue(false, true, false, false, false);
+        byte[] frame = encoder.encode(TYPE, fc, 5, 8, newData(8), 0, 8);
+
+        BlufiFrameDecoder decoder = new BlufiFrameDecoder();
+        assertEquals(BlufiFrameDecoder.RESULT_COMPLETE, decoder.decode(frame.clone(), new BlufiNotiData()));
+
+        for (int i = 2; i < frame.length; i++) {
+            byte[] corrupted = frame.clone();
+            corrupted[i] ^= 0x10;
+            assertEquals("byte " + i, BlufiFrameDecoder.RESULT_INVALID,
+                    decoder.decode(corrupted, new BlufiNotiData()));
+        }
+    }
+
+    @Test
+    public void truncatedFrameIsInvalid() {
+        BlufiFrameEncoder encoder = new BlufiFrameEncoder();
+        int fc = BlufiFrameEncoder.getFrameCtrlValue(false, true, false, false, false);
+        byte[] frame = encoder.encode(TYPE, fc, 5, 8, newData(8), 0, 8);
+
+        BlufiFrameDecoder decoder = new BlufiFrameDecoder();
+        byte[] truncated = new byte[frame.length - 1];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        assertEquals(BlufiFrameDecoder.RESULT_INVALID, decoder.decode(truncated, new BlufiNotiData()));
+        assertEquals(BlufiFrameDecoder.RESULT_INVALID, decoder.decode(new byte[3], new BlufiNotiData()));
+        assertEquals(BlufiFrameDecoder.RESULT_INVALID, decoder.decode(null, new BlufiNotiData()));
+    }
+
+    @Test
+    public void encryptedRoundTrip() {
+        BlufiFrameEncoder encoder = new BlufiFrameEncoder();
+        encoder.setAES(newAES(1));
+        byte[] data = newData(100);
+        List<byte[]> frames = encodeFrames(encoder, data, 37, true, true, 250);
+
+        // The data part is encrypted, the header is not
+        byte[] first = frames.get(0);
+        assertEquals((byte) 250, first[2]);
+        boolean same = true;
+        for (int i = 0; i < 10; i++) {
+            same &= first[BlufiFrameEncoder.HEADER_LENGTH + BlufiFrameEncoder.FRAG_TOTAL_LENGTH + i] == data[i];
+        }
+        assertFalse(same);
+
+        BlufiFrameDecoder decoder = new BlufiFrameDecoder();
+        decoder.setAES(newAES(1));
+        BlufiNotiData notification = new BlufiNotiData();
+        assertEquals(BlufiFrameDecoder.RESULT_COMPLETE, decodeFrames(decoder, frames, notification));
+        assertArrayEquals(data, notification.getDataArray());
+    }
+
+    @Test
+    public void encryptedFrameNeedsTheKey() {
+        BlufiFrameEncoder encoder = new BlufiFrameEncoder();
+        encoder.setAES(newAES(1));
+        int fc = BlufiFrameEncoder.getFrameCtrlValue(true, true, false, false, false);
+        byte[] frame = encoder.encode(TYPE, fc, 9, 16, newData(16), 0, 16);
+
+        assertEquals(BlufiFrameDecoder.RESULT_INVALID, new BlufiFrameDecoder().decode(frame, new BlufiNotiData()));
+
+        BlufiFrameDecoder wrongKey = new BlufiFrameDecoder();
+        wrongKey.setAES(newAES(2));
+        assertEquals(BlufiFrameDecoder.RESULT_INVALID, wrongKey.decode(frame, new BlufiNotiData()));
+
+        // The IV follows the sequence
+        byte[] moved = frame.clone();
+        moved[2] = 10;
+        BlufiFrameDecoder decoder = new BlufiFrameDecoder();
+        decoder.setAES(newAES(1));
+        assertEquals(BlufiFrameDecoder.RESULT_INVALID, decoder.decode(moved, new BlufiNotiData()));
+        assertEquals(BlufiFrameDecoder.RESULT_COMPLETE, decoder.decode(frame, new BlufiNotiData()));
+    }
+}
@@ -0,0 +1,104 @@
+package com.esp.iot.blufi.communiation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frame length, backoff and probing of {@link BlufiFrameSizer}.
+ */
+public class BlufiFrameSizerTest {
+    private static void writeSuccess(BlufiFrameSizer sizer, int count) {
+        for (int i = 0; i < count; i++) {
+            sizer.onWriteComplete(sizer.getFrameLength(), true);
+        }
+    }
+
+    @Test
+    public void frameLengthOfMtu() {
+        assertEquals(20, BlufiFrameSizer.getFrameLength(23));
+        assertEquals(509, BlufiFrameSizer.getFrameLength(512));
+        assertEquals(20, new BlufiFrameSizer(BlufiFrameSizer.getFrameLength(23)).getFrameLength());
+    }
+
+    @Test
+    public void dataCapacity() {
+        assertEquals(16, BlufiFrameSizer.getDataCapacity(20, false, false));
+        assertEquals(14, BlufiFrameSizer.getDataCapacity(20, true, false));
+        assertEquals(12, BlufiFrameSizer.getDataCapacity(20, true, true));
+        // The data length is one byte
+        assertEquals(255, BlufiFrameSizer.getDataCapacity(509, false, false));
+        assertEquals(253, BlufiFrameSizer.getDataCapacity(509, true, true));
+    }
+
+    @Test
+    public void backoffHalves() {
+        BlufiFrameSizer sizer = new BlufiFrameSizer(20);
+        sizer.onWriteComplete(20, false);
+        assertEquals(10, sizer.getFrameLength());
+        assertEquals(1, sizer.getBackoffCount());
+
+        // A frame not longer than a written one fails for other reasons
+        writeSuccess(sizer, 1);
+        sizer.onWriteComplete(10, false);
+        assertEquals(10, sizer.getFrameLength());
+        assertEquals(1, sizer.getBackoffCount());
+    }
+
+    @Test
+    public void probeAfterSuccesses() {
+        BlufiFrameSizer sizer = new BlufiFrameSizer(20);
+        sizer.onWriteComplete(20, false);
+
+        writeSuccess(sizer, 7);
+        assertEquals(10, sizer.getFrameLength());
+        writeSuccess(sizer, 1);
+        assertEquals(15, sizer.getFrameLength());
+        assertEquals(1, sizer.getProbeCount());
+
+        // The failed length lowers the ceiling, the length falls back to the longest written frame
+        sizer.onWriteComplete(15, false);
+        assertEquals(10, sizer.getFrameLength());
+        writeSuccess(sizer, 8);
+        assertEquals(12, sizer.getFrameLength());
+        writeSuccess(sizer, 8);
+        assertEquals(13, sizer.getFrameLength());
+        writeSuccess(sizer, 8);
+        assertEquals(14, sizer.getFrameLength());
+
+        // Settled below the ceiling
+        writeSuccess(sizer, 32);
+        assertEquals(14, sizer.getFrameLength());
+        assertEquals(4, sizer.getProbeCount());
+        assertEquals(2, sizer.getBackoffCount());
+    }
+
+    @Test
+    public void neverShorterThanMinimum() {
+        BlufiFrameSizer sizer = new BlufiFrameSizer(5);
+        assertEquals(BlufiFrameSizer.MIN_FRAME_LENGTH, sizer.getMaxFrameLength());
+        assertEquals(BlufiFrameSizer.MIN_FRAME_LENGTH, sizer.getFrameLength());
+
+        sizer = new BlufiFrameSizer(12);
+        sizer.onWriteComplete(12, false);
+        assertEquals(BlufiFrameSizer.MIN_FRAME_LENGTH, sizer.getFrameLength());
+        sizer.onWriteComplete(BlufiFrameSizer.MIN_FRAME_LENGTH, false);
+        assertEquals(BlufiFrameSizer.MIN_FRAME_LENGTH, sizer.getFrameLength());
+        assertEquals(1, sizer.getBackoffCount());
+    }
+
+    @Test
+    public void setMaxFrameLengthStartsOver() {
+        BlufiFrameSizer sizer = new BlufiFrameSizer(20);
+        sizer.onWriteComplete(20, false);
+
+        sizer.setMaxFrameLength(20);
+        assertEquals(10, sizer.getFrameLength());
+
+        sizer.setMaxFrameLength(100);
+        assertEquals(100, sizer.getMaxFrameLength());
+        assertEquals(100, sizer.getFrameLength());
+        writeSuccess(sizer, 16);
+        assertEquals(100, sizer.getFrameLength());
+    }
+}
@@ -0,0 +1,123 @@
+package com.esp.iot.blufi.communiation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Routing by type, ACK and error handling of {@link BlufiNotiDispatcher}.
+ */
+public class BlufiNotiDispatcherTest {
+    private static final int DATA = IBlufiCommunicator.Type.Data.PACKAGE_VALUE;
+    private static final int CTRL = IBlufiCommunicator.Type.Ctrl.PACKAGE_VALUE;
+
+    private static BlufiNotiData newData(int pkgType, int subType, int value) {
+        BlufiNotiData data = new BlufiNotiData();
+        data.setPkgType(pkgType);
+        data.setSubType(subType);
+        data.setType((subType << 2) | pkgType);
+        data.addData((byte) value);
+        return data;
+    }
+
+    @Test
+    public void routeByType() {
+        BlufiNotiDispatcher dispatcher = new BlufiNotiDispatcher();
+        AtomicReference<BlufiNotiData> version = new AtomicReference<>();
+        dispatcher.take(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_VERSION).subscribe(version::set);
+
+        BlufiNotiData state = newData(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_WIFI_CONNECTION_STATE, 1);
+        dispatcher.dispatch(state);
+        assertNull(version.get());
+
+        BlufiNotiData versionData = newData(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_VERSION, 2);
+        dispatcher.dispatch(versionData);
+        assertSame(versionData, version.get());
+
+        assertSame(state, dispatcher.take(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_WIFI_CONNECTION_STATE,
+                100L, TimeUnit.MILLISECONDS).toBlocking().value());
+        assertNull(dispatcher.take(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_NEG, 50L, TimeUnit.MILLISECONDS)
+                .toBlocking().value());
+        assertEquals(2, dispatcher.getDeliveredCount());
+        assertEquals(0, dispatcher.getUnmatchedCount());
+    }
+
+    @Test
+    public void acksGoToTheHandler() {
+        BlufiNotiDispatcher dispatcher = new BlufiNotiDispatcher();
+        dispatcher.dispatch(newData(CTRL, IBlufiCommunicator.Type.Ctrl.SUBTYPE_ACK, 3));
+        assertEquals(1, dispatcher.getUnmatchedAckCount());
+
+        List<Integer> acks = new ArrayList<>();
+        dispatcher.setAckHandler(sequence -> {
+            acks.add(sequence);
+            return sequence != 9;
+        });
+        dispatcher.dispatch(newData(CTRL, IBlufiCommunicator.Type.Ctrl.SUBTYPE_ACK, 0xfe));
+        dispatcher.dispatch(newData(CTRL, IBlufiCommunicator.Type.Ctrl.SUBTYPE_ACK, 9));
+
+        assertEquals(2, acks.size());
+        assertEquals(0xfe, (int) acks.get(0));
+        assertEquals(2, dispatcher.getUnmatchedAckCount());
+        // ACKs are not queued as notifications
+        assertEquals(0, dispatcher.getDeliveredCount());
+        assertNull(dispatcher.take(CTRL, IBlufiCommunicator.Type.Ctrl.SUBTYPE_ACK, 50L, TimeUnit.MILLISECONDS)
+                .toBlocking().value());
+    }
+
+    @Test
+    public void errorsGoToTheHandler() {
+        BlufiNotiDispatcher dispatcher = new BlufiNotiDispatcher();
+        List<Integer> errors = new ArrayList<>();
+        dispatcher.setErrorHandler(errors::add);
+        dispatcher.dispatch(newData(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_ERROR, 0));
+        BlufiNotiData noCode = new BlufiNotiData();
+        noCode.setPkgType(DATA);
+        noCode.setSubType(IBlufiCommunicator.Type.Data.SUBTYPE_ERROR);
+        dispatcher.dispatch(noCode);
+
+        assertEquals(2, errors.size());
+        assertEquals(0, (int) errors.get(0));
+        assertEquals(-1, (int) errors.get(1));
+        assertNull(dispatcher.take(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_ERROR, 50L, TimeUnit.MILLISECONDS)
+                .toBlocking().value());
+    }
+
+    @Test
+    public void countDroppedAsUnmatched() {
+        BlufiNotiDispatcher dispatcher = new BlufiNotiDispatcher(2);
+        int subType = IBlufiCommunicator.Type.Data.SUBTYPE_WIFI_CONNECTION_STATE;
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch(newData(DATA, subType, i));
+        }
+        // The oldest one is dropped by the full mailbox
+        assertEquals(1, dispatcher.getUnmatchedCount());
+
+        dispatcher.dispatch(newData(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_VERSION, 0));
+        dispatcher.clear(DATA, subType);
+        assertEquals(3, dispatcher.getUnmatchedCount());
+        assertNull(dispatcher.take(DATA, subType, 50L, TimeUnit.MILLISECONDS).toBlocking().value());
+
+        // Other types are kept
+        assertNotNull(dispatcher.take(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_VERSION).toBlocking().value());
+    }
+
+    @Test
+    public void closeCompletesReceivers() {
+        BlufiNotiDispatcher dispatcher = new BlufiNotiDispatcher();
+        AtomicReference<BlufiNotiData> received = new AtomicReference<>(newData(DATA, 0, 0));
+        dispatcher.take(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_NEG).subscribe(received::set);
+        dispatcher.dispatch(newData(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_VERSION, 0));
+
+        dispatcher.close();
+        assertNull(received.get());
+        assertEquals(1, dispatcher.getUnmatchedCount());
+        // A mailbox created after closing is closed too
+        assertNull(dispatcher.take(DATA, IBlufiCommunicator.Type.Data.SUBTYPE_STA_WIFI_SSID).toBlocking().value());
+    }
+}
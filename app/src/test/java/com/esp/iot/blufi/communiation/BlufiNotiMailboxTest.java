@@ -0,0 +1,95 @@
+package com.esp.iot.blufi.communiation;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rx.Subscription;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queueing, waiting and timeout of {@link BlufiNotiMailbox}.
+ */
+public class BlufiNotiMailboxTest {
+    private static BlufiNotiData newData(int value) {
+        BlufiNotiData data = new BlufiNotiData();
+        data.addData((byte) value);
+        return data;
+    }
+
+    @Test
+    public void takeQueued() {
+        BlufiNotiMailbox mailbox = new BlufiNotiMailbox(4);
+        BlufiNotiData first = newData(1);
+        BlufiNotiData second = newData(2);
+        assertNull(mailbox.offer(first));
+        assertNull(mailbox.offer(second));
+
+        assertSame(first, mailbox.take().toBlocking().value());
+        assertSame(second, mailbox.take(100L, TimeUnit.MILLISECONDS).toBlocking().value());
+    }
+
+    @Test
+    public void offerCompletesWaiter() {
+        BlufiNotiMailbox mailbox = new BlufiNotiMailbox(4);
+        AtomicReference<BlufiNotiData> received = new AtomicReference<>();
+        mailbox.take().subscribe(received::set);
+        assertNull(received.get());
+
+        BlufiNotiData data = newData(1);
+        assertNull(mailbox.offer(data));
+        assertSame(data, received.get());
+        assertEquals(0, mailbox.clear());
+    }
+
+    @Test
+    public void dropOldestWhenFull() {
+        BlufiNotiMailbox mailbox = new BlufiNotiMailbox(2);
+        BlufiNotiData first = newData(1);
+        mailbox.offer(first);
+        mailbox.offer(newData(2));
+
+        assertSame(first, mailbox.offer(newData(3)));
+        assertEquals(2, mailbox.take().toBlocking().value().getDataArray()[0]);
+        assertEquals(3, mailbox.take().toBlocking().value().getDataArray()[0]);
+    }
+
+    @Test
+    public void timeoutKeepsLaterNotification() {
+        BlufiNotiMailbox mailbox = new BlufiNotiMailbox(4);
+        assertNull(mailbox.take(50L, TimeUnit.MILLISECONDS).toBlocking().value());
+
+        // The timed out receiver does not take the notification arrives later
+        BlufiNotiData data = newData(1);
+        mailbox.offer(data);
+        assertSame(data, mailbox.take(50L, TimeUnit.MILLISECONDS).toBlocking().value());
+    }
+
+    @Test
+    public void unsubscribedWaiterIsSkipped() {
+        BlufiNotiMailbox mailbox = new BlufiNotiMailbox(4);
+        AtomicReference<BlufiNotiData> received = new AtomicReference<>();
+        Subscription subscription = mailbox.take().subscribe(received::set);
+        subscription.unsubscribe();
+
+        BlufiNotiData data = newData(1);
+        mailbox.offer(data);
+        assertNull(received.get());
+        assertSame(data, mailbox.take().toBlocking().value());
+    }
+
+    @Test
+    public void closeCompletesWaiters() {
+        BlufiNotiMailbox mailbox = new BlufiNotiMailbox(4);
+        AtomicReference<BlufiNotiData> received = new AtomicReference<>(newData(0));
+        mailbox.take().subscribe(received::set);
+
+        assertEquals(0, mailbox.close());
+        assertNull(received.get());
+
+        assertNull(mailbox.offer(newData(1)));
+        assertNull(mailbox.take().toBlocking().value());
+    }
+}
@@ -0,0 +1,71 @@
+package com.esp.iot.blufi.communiation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Gap learning of {@link BlufiPacer}.
+ */
+public class BlufiPacerTest {
+    private static void writeSuccess(BlufiPacer pacer, int count) {
+        for (int i = 0; i < count; i++) {
+            pacer.onWriteComplete(true);
+        }
+    }
+
+    @Test
+    public void shrinkToZero() {
+        BlufiPacer pacer = new BlufiPacer();
+        assertEquals(0, pacer.getDelayNanos());
+        writeSuccess(pacer, 1);
+        assertEquals(7500000L, pacer.getGapNanos());
+
+        writeSuccess(pacer, 30);
+        assertEquals(0, pacer.getGapNanos());
+        assertEquals(0, pacer.getDelayNanos());
+    }
+
+    @Test
+    public void keepAboveFailedGap() {
+        BlufiPacer pacer = new BlufiPacer(0L);
+        pacer.onWriteComplete(false);
+        assertEquals(2000000L, pacer.getFloorNanos());
+        assertEquals(2000000L, pacer.getGapNanos());
+
+        pacer.onWriteComplete(false);
+        assertEquals(2500000L, pacer.getFloorNanos());
+        assertEquals(4000000L, pacer.getGapNanos());
+
+        // The gap settles at the floor instead of swinging back to the failed gap
+        writeSuccess(pacer, 30);
+        assertEquals(2500000L, pacer.getGapNanos());
+        assertEquals(2, pacer.getFailureCount());
+        assertTrue(pacer.getDelayNanos() > 0);
+    }
+
+    @Test
+    public void busyStackIsCongestion() {
+        BlufiPacer pacer = new BlufiPacer(0L);
+        pacer.onCongestion();
+        assertEquals(2000000L, pacer.getFloorNanos());
+        assertEquals(1, pacer.getCongestionCount());
+        assertEquals(0, pacer.getFailureCount());
+    }
+
+    @Test
+    public void longAckRoundTripIsCongestion() throws InterruptedException {
+        BlufiPacer pacer = new BlufiPacer(0L);
+        pacer.onWriteComplete(true);
+        pacer.onAck();
+        assertEquals(0, pacer.getCongestionCount());
+
+        pacer.onWriteComplete(true);
+        Thread.sleep(30L);
+        pacer.onAck();
+        assertEquals(1, pacer.getCongestionCount());
+        assertEquals(2000000L, pacer.getGapNanos());
+        // A slow link is not a failed gap
+        assertEquals(0, pacer.getFloorNanos());
+    }
+}
@@ -0,0 +1,174 @@
+package com.esp.iot.blufi.communiation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.schedulers.TestScheduler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering, duplicates and gaps of {@link BlufiReorderBuffer}, the gap timer runs on a test scheduler.
+ */
+public class BlufiReorderBufferTest {
+    private final List<Integer> mFrames = new ArrayList<>();
+    private final List<Integer> mGaps = new ArrayList<>();
+    private final List<Integer> mDiscarded = new ArrayList<>();
+
+    private TestScheduler mScheduler;
+    private BlufiReorderBuffer mBuffer;
+
+    @Before
+    public void setUp() {
+        mScheduler = new TestScheduler();
+        mBuffer = new BlufiReorderBuffer(new BlufiReorderBuffer.Receiver() {
+            @Override
+            public void onFrame(byte[] frame) {
+                mFrames.add(frame[2] & 0xff);
+            }
+
+            @Override
+            public void onGap(int lostCount) {
+                mGaps.add(lostCount);
+            }
+
+            @Override
+            public void onDiscard(byte[] frame) {
+                mDiscarded.add(frame[2] & 0xff);
+            }
+        }, 4, 200L, mScheduler);
+    }
+
+    private static byte[] frame(int sequence) {
+        return new byte[]{0, 0, (byte) sequence, 0};
+    }
+
+    private void offer(int... sequences) {
+        for (int sequence : sequences) {
+            mBuffer.offer(frame(sequence));
+        }
+    }
+
+    private void advanceTo(int sequence) {
+        for (int i = 0; i < sequence; i++) {
+            mBuffer.offer(frame(i));
+        }
+        mFrames.clear();
+    }
+
+    @Test
+    public void reorder() {
+        offer(0, 2, 3, 1, 4);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), mFrames);
+        assertEquals(2, mBuffer.getReorderedCount());
+        assertEquals(5, mBuffer.getExpectedSequence());
+        assertTrue(mGaps.isEmpty());
+    }
+
+    @Test
+    public void wrapAt256() {
+        advanceTo(250);
+        offer(251, 250, 253, 252, 254, 0, 255, 1);
+        assertEquals(Arrays.asList(250, 251, 252, 253, 254, 255, 0, 1), mFrames);
+        assertEquals(2, mBuffer.getExpectedSequence());
+
+        // Frames of the previous round are old
+        offer(255, 200);
+        assertEquals(Arrays.asList(255, 200), mDiscarded);
+        assertTrue(mGaps.isEmpty());
+    }
+
+    @Test
+    public void discardDuplicates() {
+        offer(0, 0, 2, 2, 1, 1);
+        assertEquals(Arrays.asList(0, 1, 2), mFrames);
+        assertEquals(Arrays.asList(0, 2, 1), mDiscarded);
+        assertEquals(3, mBuffer.getDuplicateCount());
+    }
+
+    @Test
+    public void skipGapBeyondWindow() {
+        offer(0, 6);
+        // 1 is given up so 6 fits in the window
+        assertEquals(Arrays.asList(0), mFrames);
+        assertEquals(Arrays.asList(1), mGaps);
+        assertEquals(2, mBuffer.getExpectedSequence());
+
+        offer(3, 4, 2, 5);
+        assertEquals(Arrays.asList(0, 2, 3, 4, 5, 6), mFrames);
+
+        // A kept frame is delivered while skipping
+        offer(8, 12);
+        assertEquals(Arrays.asList(0, 2, 3, 4, 5, 6, 8), mFrames);
+        assertEquals(Arrays.asList(1, 1), mGaps);
+        assertEquals(2L, mBuffer.getLostCount());
+        assertEquals(9, mBuffer.getExpectedSequence());
+    }
+
+    @Test
+    public void skipGapAfterTimeout() {
+        offer(0, 2, 3, 5);
+        assertEquals(Arrays.asList(0), mFrames);
+
+        mScheduler.advanceTimeBy(199L, TimeUnit.MILLISECONDS);
+        assertTrue(mGaps.isEmpty());
+        mScheduler.advanceTimeBy(1L, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(0, 2, 3), mFrames);
+        assertEquals(Arrays.asList(1), mGaps);
+
+        // The timer starts over for the next gap
+        mScheduler.advanceTimeBy(200L, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(0, 2, 3, 5), mFrames);
+        assertEquals(Arrays.asList(1, 1), mGaps);
+        assertEquals(6, mBuffer.getExpectedSequence());
+
+        // Nothing is kept, the timer is stopped
+        mScheduler.advanceTimeBy(1L, TimeUnit.SECONDS);
+        assertEquals(2, mGaps.size());
+    }
+
+    @Test
+    public void skipGapAfterTimeoutAcrossWrap() {
+        advanceTo(254);
+        offer(0);
+        mScheduler.advanceTimeBy(200L, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(0), mFrames);
+        assertEquals(Arrays.asList(2), mGaps);
+        assertEquals(1, mBuffer.getExpectedSequence());
+    }
+
+    @Test
+    public void missingFrameInTimeCancelsTimer() {
+        offer(0, 2);
+        mScheduler.advanceTimeBy(100L, TimeUnit.MILLISECONDS);
+        offer(1);
+        mScheduler.advanceTimeBy(1L, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(0, 1, 2), mFrames);
+        assertTrue(mGaps.isEmpty());
+    }
+
+    @Test
+    public void clearDropsKeptFrames() {
+        offer(0, 2);
+        mBuffer.clear();
+        mScheduler.advanceTimeBy(1L, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(0), mFrames);
+        assertTrue(mGaps.isEmpty());
+
+        offer(1, 2);
+        assertEquals(Arrays.asList(0, 1, 2), mFrames);
+    }
+
+    @Test
+    public void countInvalidFrames() {
+        mBuffer.offer(null);
+        mBuffer.offer(new byte[3]);
+        assertEquals(2, mBuffer.getInvalidCount());
+        assertEquals(0, mBuffer.getFrameCount());
+    }
+}
@@ -0,0 +1,319 @@
+package com.esp.iot.blufi.communiation;
+
+import com.esp.iot.blufi.communiation.response.BlufiSecurityResult;
+import com.esp.iot.blufi.communiation.response.BlufiStatusResponse;
+import com.esp.iot.blufi.communiation.response.BlufiVersionResponse;
+import com.esp.iot.blufi.communiation.simulation.BlufiSimulatedDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import rx.Single;
+import rx.schedulers.Schedulers;
+
+import static org.junit.Assert.*;
+
+/**
+ * Whole sessions of the communicator with a simulated device over the loopback transport.
+ */
+public class BlufiSessionTest {
+    private BlufiLoopbackTransport mTransport;
+    private BlufiSimulatedDevice mDevice;
+    private BlufiCommunicator mCommunicator;
+
+    @Before
+    public void setUp() {
+        mTransport = new BlufiLoopbackTransport(Schedulers.computation());
+        mDevice = new BlufiSimulatedDevice(Schedulers.computation());
+        mDevice.attach(mTransport);
+        mCommunicator = new BlufiCommunicator(mTransport);
+    }
+
+    @After
+    public void tearDown() {
+        mCommunicator.close();
+        mTransport.disconnect();
+        mDevice.close();
+    }
+
+    /**
+     * Report a large MTU but fail the frames longer than the limit, the loopback never sees them
+     */
+    private static class LimitedTransport implements BlufiTransport {
+        private final BlufiLoopbackTransport mTransport;
+        private final int mLimit;
+        private final boolean mReportTooLong;
+        private volatile boolean mTooLong = false;
+
+        LimitedTransport(BlufiLoopbackTransport transport, int limit, boolean reportTooLong) {
+            mTransport = transport;
+            mLimit = limit;
+            mReportTooLong = reportTooLong;
+        }
+
+        private boolean accept(byte[] data) {
+            mTooLong = data.length > mLimit;
+            return !mTooLong;
+        }
+
+        @Override
+        public boolean setNotificationListener(NotificationListener listener) {
+            return mTransport.setNotificationListener(listener);
+        }
+
+        @Override
+        public boolean write(byte[] data) {
+            return accept(data) && mTransport.write(data);
+        }
+
+        @Override
+        public Single<Boolean> writeAsync(byte[] data) {
+            return Single.defer(() -> accept(data) ? mTransport.writeAsync(data) : Single.just(false));
+        }
+
+        @Override
+        public boolean isPipelinedWriteAvailable() {
+            return false;
+        }
+
+        @Override
+        public boolean writeNoResponse(byte[] data) {
+            return write(data);
+        }
+
+        @Override
+        public boolean flushWrite(long timeout) {
+            return mTransport.flushWrite(timeout);
+        }
+
+        @Override
+        public Single<Boolean> flushWriteAsync(long timeout) {
+            return mTransport.flushWriteAsync(timeout);
+        }
+
+        @Override
+        public boolean isLastWriteTooLong() {
+            return mReportTooLong && mTooLong;
+        }
+
+        @Override
+        public int getMtu() {
+            return mTransport.getMtu();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mTransport.isConnected();
+        }
+    }
+
+    /**
+     * Lose the next written frame once armed, the write still succeeds
+     */
+    private static class DroppingTransport implements BlufiTransport {
+        private final BlufiLoopbackTransport mTransport;
+        private volatile boolean mDropNext = false;
+
+        DroppingTransport(BlufiLoopbackTransport transport) {
+            mTransport = transport;
+        }
+
+        void dropNext() {
+            mDropNext = true;
+        }
+
+        private boolean drop() {
+            boolean drop = mDropNext;
+            mDropNext = false;
+            return drop;
+        }
+
+        @Override
+        public boolean setNotificationListener(NotificationListener listener) {
+            return mTransport.setNotificationListener(listener);
+        }
+
+        @Override
+        public boolean write(byte[] data) {
+            return drop() || mTransport.write(data);
+        }
+
+        @Override
+        public Single<Boolean> writeAsync(byte[] data) {
+            return Single.defer(() -> drop() ? Single.just(true) : mTransport.writeAsync(data));
+        }
+
+        @Override
+        public boolean isPipelinedWriteAvailable() {
+            return false;
+        }
+
+        @Override
+        public boolean writeNoResponse(byte[] data) {
+            return write(data);
+        }
+
+        @Override
+        public boolean flushWrite(long timeout) {
+            return mTransport.flushWrite(timeout);
+        }
+
+        @Override
+        public Single<Boolean> flushWriteAsync(long timeout) {
+            return mTransport.flushWriteAsync(timeout);
+        }
+
+        @Override
+        public boolean isLastWriteTooLong() {
+            return false;
+        }
+
+        @Override
+        public int getMtu() {
+            return mTransport.getMtu();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mTransport.isConnected();
+        }
+    }
+
+    private static BlufiConfigureParams newStaParams() {
+        BlufiConfigureParams params = new BlufiConfigureParams();
+        params.setOpMode(IBlufiCommunicator.OP_MODE_STA);
+        params.setConfigureSequence(3);
+        params.setStaSSID("test-ap-0123456789");
+        params.setStaPassword("test-password-0123456789");
+        return params;
+    }
+
+    @Test
+    public void negotiateDH() {
+        assertEquals(BlufiSecurityResult.SUCCESS, mCommunicator.negotiateSecurity());
+        assertEquals(1, mDevice.getNegotiateCount());
+    }
+
+    @Test
+    public void negotiateECDH() {
+        mCommunicator.setECDHEnabled(true);
+        assertEquals(BlufiSecurityResult.SUCCESS, mCommunicator.negotiateSecurity());
+        assertEquals(1, mDevice.getNegotiateCount());
+
+        // The frames after the negotiation are encrypted with the agreed key
+        BlufiStatusResponse status = mCommunicator.getStatus();
+        assertEquals(BlufiStatusResponse.RESULT_SUCCESS, status.getResultCode());
+    }
+
+    @Test
+    public void configure() {
+        assertEquals(BlufiSecurityResult.SUCCESS, mCommunicator.negotiateSecurity());
+
+        BlufiStatusResponse response = mCommunicator.configure(newStaParams(), true);
+        assertEquals(BlufiStatusResponse.RESULT_SUCCESS, response.getResultCode());
+        assertEquals(IBlufiCommunicator.OP_MODE_STA, response.getOpMode());
+        assertEquals("test-ap-0123456789", response.getStaSSID());
+
+        assertEquals("test-ap-0123456789", mDevice.getStaSSID());
+        assertEquals("test-password-0123456789", mDevice.getStaPassword());
+        assertEquals(3, mDevice.getConfigureSequence());
+        assertTrue(mDevice.isStaConnected());
+    }
+
+    @Test
+    public void wifiState() {
+        assertEquals(BlufiSecurityResult.SUCCESS, mCommunicator.negotiateSecurity());
+
+        BlufiStatusResponse before = mCommunicator.getStatus();
+        assertEquals(BlufiStatusResponse.RESULT_SUCCESS, before.getResultCode());
+        assertEquals(IBlufiCommunicator.OP_MODE_NULL, before.getOpMode());
+
+        mCommunicator.configure(newStaParams(), true);
+        BlufiStatusResponse after = mCommunicator.getStatus();
+        assertEquals(BlufiStatusResponse.RESULT_SUCCESS, after.getResultCode());
+        assertEquals(IBlufiCommunicator.OP_MODE_STA, after.getOpMode());
+        assertEquals(BlufiSimulatedDevice.STA_CONNECTED, after.getStaConnectionStatus());
+        assertEquals("test-ap-0123456789", after.getStaSSID());
+    }
+
+    @Test
+    public void version() {
+        BlufiVersionResponse response = mCommunicator.getVersion();
+        assertEquals(BlufiVersionResponse.RESULT_VALID, response.getResultCode());
+        assertEquals("V1.0", response.getVersionString());
+
+        // The released firmware reports 1.1 to 1.3
+        mDevice.setVersion(1, 3);
+        response = mCommunicator.getVersion();
+        assertEquals(BlufiVersionResponse.RESULT_VALID, response.getResultCode());
+        assertEquals("V1.3", response.getVersionString());
+    }
+
+    @Test
+    public void deauthenticate() {
+        assertEquals(BlufiSecurityResult.SUCCESS, mCommunicator.negotiateSecurity());
+
+        List<String> macs = Arrays.asList("240ac4000001", "240ac4000002");
+        assertTrue(mCommunicator.deauthenticateAsync(macs).toBlocking().value());
+
+        // The device handles the messages in order, the status reply follows the deauthentication
+        assertEquals(BlufiStatusResponse.RESULT_SUCCESS, mCommunicator.getStatus().getResultCode());
+        List<byte[]> stations = mDevice.getDeauthenticatedStations();
+        assertEquals(2, stations.size());
+        assertArrayEquals(new byte[]{0x24, 0x0a, (byte) 0xc4, 0x00, 0x00, 0x01}, stations.get(0));
+        assertArrayEquals(new byte[]{0x24, 0x0a, (byte) 0xc4, 0x00, 0x00, 0x02}, stations.get(1));
+        assertEquals(0, mDevice.getReceiver().getSequenceErrorCount());
+    }
+
+    @Test
+    public void splitFrameRefusedForLength() {
+        BlufiCommunicator communicator = new BlufiCommunicator(new LimitedTransport(mTransport, 40, true));
+        try {
+            assertEquals(BlufiSecurityResult.SUCCESS, communicator.negotiateSecurity());
+            BlufiStatusResponse response = communicator.configure(newStaParams(), true);
+            assertEquals(BlufiStatusResponse.RESULT_SUCCESS, response.getResultCode());
+            assertTrue(communicator.getFrameSizer().getBackoffCount() > 0);
+            assertEquals(0, mDevice.getReceiver().getSequenceErrorCount());
+        } finally {
+            communicator.close();
+        }
+    }
+
+    @Test
+    public void failOnWriteErrorOfUnknownCause() {
+        BlufiCommunicator communicator = new BlufiCommunicator(new LimitedTransport(mTransport, 40, false));
+        try {
+            // The device may have received the failed frame, its sequence is not written again
+            assertNotEquals(BlufiSecurityResult.SUCCESS, communicator.negotiateSecurity());
+            assertEquals(0, mDevice.getReceiver().getSequenceErrorCount());
+        } finally {
+            communicator.close();
+        }
+    }
+
+    @Test
+    public void sequenceErrorEndsSession() {
+        DroppingTransport transport = new DroppingTransport(mTransport);
+        BlufiCommunicator communicator = new BlufiCommunicator(transport);
+        try {
+            assertEquals(BlufiSecurityResult.SUCCESS, communicator.negotiateSecurity());
+            assertTrue(communicator.isSessionUsable());
+
+            // The device reports the frames after the lost one, the configure fails before the read timeout
+            transport.dropNext();
+            long startTime = System.currentTimeMillis();
+            BlufiStatusResponse response = communicator.configure(newStaParams(), true);
+            assertTrue(System.currentTimeMillis() - startTime < 2000L);
+            assertNotEquals(BlufiStatusResponse.RESULT_SUCCESS, response.getResultCode());
+            assertTrue(mDevice.getReceiver().getSequenceErrorCount() > 0);
+            assertEquals(BlufiSimulatedDevice.ERROR_SEQUENCE, communicator.getDeviceError());
+            assertFalse(communicator.isSessionUsable());
+        } finally {
+            communicator.close();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.esp.iot.blufi.communiation.simulation;
+
+import com.esp.iot.blufi.communiation.BlufiCommunicator;
+import com.esp.iot.blufi.communiation.BlufiConfigureParams;
+import com.esp.iot.blufi.communiation.BlufiLoopbackTransport;
+import com.esp.iot.blufi.communiation.IBlufiCommunicator;
+import com.esp.iot.blufi.communiation.response.BlufiSecurityResult;
+import com.esp.iot.blufi.communiation.response.BlufiStatusResponse;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reproducible impairments of {@link BlufiImpairedTransport}, and a whole session over a lossy link.
+ */
+public class BlufiImpairedTransportTest {
+    private static final int FRAME_COUNT = 200;
+
+    /**
+     * The frames passed through the impaired link in each direction, in arrival order
+     */
+    private static class Run {
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> notified = Collections.synchronizedList(new ArrayList<>());
+        long lostCount;
+        long duplicateCount;
+        long reorderCount;
+    }
+
+    private static Run run(long seed) {
+        BlufiImpairedTransport.Profile profile = new BlufiImpairedTransport.Profile()
+                .setLossRate(0.1)
+                .setDuplicateRate(0.1)
+                .setReorderRate(0.1)
+                .setLatency(2L, 3L);
+        TestScheduler scheduler = new TestScheduler();
+        BlufiLoopbackTransport loopback = new BlufiLoopbackTransport(scheduler);
+        BlufiImpairedTransport impaired = new BlufiImpairedTransport(loopback, profile, seed, scheduler);
+
+        Run run = new Run();
+        loopback.setPeer(data -> run.written.add(data[2] & 0xff));
+        impaired.setNotificationListener(data -> run.notified.add(data[2] & 0xff));
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            byte[] frame = {0, 0, (byte) i, 0};
+            assertTrue(impaired.writeNoResponse(frame));
+            loopback.notifyFromPeer(frame);
+            scheduler.advanceTimeBy(1L, TimeUnit.MILLISECONDS);
+        }
+        scheduler.advanceTimeBy(1L, TimeUnit.SECONDS);
+
+        run.lostCount = impaired.getLostCount();
+        run.duplicateCount = impaired.getDuplicateCount();
+        run.reorderCount = impaired.getReorderCount();
+        impaired.close();
+        loopback.disconnect();
+        return run;
+    }
+
+    private static boolean isSorted(List<Integer> frames) {
+        for (int i = 1; i < frames.size(); i++) {
+            if (frames.get(i) < frames.get(i - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void sameSeedSamePattern() {
+        Run first = run(42L);
+        Run second = run(42L);
+
+        assertEquals(first.written, second.written);
+        assertEquals(first.notified, second.notified);
+        assertEquals(first.lostCount, second.lostCount);
+        assertEquals(first.duplicateCount, second.duplicateCount);
+        assertEquals(first.reorderCount, second.reorderCount);
+
+        // The pattern has all the impairments
+        assertTrue(first.lostCount > 0);
+        assertTrue(first.duplicateCount > 0);
+        assertTrue(first.reorderCount > 0);
+        assertFalse(isSorted(first.written));
+        assertFalse(isSorted(first.notified));
+        assertEquals(2 * FRAME_COUNT - first.lostCount + first.duplicateCount,
+                first.written.size() + first.notified.size());
+
+        Run other = run(43L);
+        assertNotEquals(first.written, other.written);
+        assertNotEquals(first.notified, other.notified);
+    }
+
+    @Test
+    public void rejectLongFrames() {
+        BlufiLoopbackTransport loopback = new BlufiLoopbackTransport(Schedulers.immediate());
+        List<byte[]> written = new ArrayList<>();
+        loopback.setPeer(written::add);
+        BlufiImpairedTransport impaired = new BlufiImpairedTransport(loopback,
+                new BlufiImpairedTransport.Profile().setMtu(23), 1L, Schedulers.immediate());
+
+        assertEquals(23, impaired.getMtu());
+        assertFalse(impaired.write(new byte[21]));
+        assertTrue(impaired.write(new byte[20]));
+        assertEquals(1, impaired.getRejectedCount());
+        assertEquals(1, written.size());
+        impaired.close();
+    }
+
+    @Test
+    public void acknowledgedWritesAreNotReordered() {
+        BlufiLoopbackTransport loopback = new BlufiLoopbackTransport(Schedulers.immediate());
+        List<Integer> written = new ArrayList<>();
+        loopback.setPeer(data -> written.add(data[2] & 0xff));
+        BlufiImpairedTransport impaired = new BlufiImpairedTransport(loopback,
+                new BlufiImpairedTransport.Profile().setReorderRate(1.0), 1L, Schedulers.immediate());
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(impaired.write(new byte[]{0, 0, (byte) i, 0}));
+        }
+        assertTrue(isSorted(written));
+        assertEquals(10, written.size());
+        assertEquals(0, impaired.getReorderCount());
+        impaired.close();
+    }
+
+    /**
+     * Get the arrival times of the notifications all notified at time 0
+     */
+    private static long[] arrivalTimes(int distribution) {
+        TestScheduler scheduler = new TestScheduler();
+        BlufiLoopbackTransport loopback = new BlufiLoopbackTransport(scheduler);
+        BlufiImpairedTransport impaired = new BlufiImpairedTransport(loopback, new BlufiImpairedTransport.Profile()
+                .setLatency(20L, 10L).setJitterDistribution(distribution), 5L, scheduler);
+        long[] times = new long[FRAME_COUNT];
+        int[] count = {0};
+        impaired.setNotificationListener(data -> times[count[0]++] = scheduler.now());
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            loopback.notifyFromPeer(new byte[]{0, 0, (byte) i, 0});
+        }
+        scheduler.advanceTimeBy(1L, TimeUnit.SECONDS);
+        impaired.close();
+        assertEquals(FRAME_COUNT, count[0]);
+        return times;
+    }
+
+    private static double mean(long[] values) {
+        double sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static long min(long[] values) {
+        long min = Long.MAX_VALUE;
+        for (long value : values) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    private static long max(long[] values) {
+        long max = Long.MIN_VALUE;
+        for (long value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    @Test
+    public void jitterDistributions() {
+        long[] uniform = arrivalTimes(BlufiImpairedTransport.JITTER_UNIFORM);
+        assertTrue(min(uniform) >= 20);
+        assertTrue(max(uniform) <= 30);
+        assertEquals(25, mean(uniform), 2);
+
+        // A long tail beyond the uniform bound
+        long[] exponential = arrivalTimes(BlufiImpairedTransport.JITTER_EXPONENTIAL);
+        assertTrue(min(exponential) >= 20);
+        assertTrue(max(exponential) > 40);
+        assertEquals(30, mean(exponential), 3);
+
+        // Around the latency, earlier frames too
+        long[] normal = arrivalTimes(BlufiImpairedTransport.JITTER_NORMAL);
+        assertTrue(min(normal) < 10);
+        assertTrue(max(normal) > 30);
+        assertEquals(20, mean(normal), 3);
+    }
+
+    /**
+     * Provision a device over a link loses some frames in both directions. Like the fleet harness a failed try
+     * starts over with a new link, the ACK window retransmits the lost writes within a try.
+     */
+    @Test
+    public void sessionFinishesUnderModerateLoss() {
+        final int maxTry = 3;
+        long lostCount = 0;
+        boolean success = false;
+        for (int tryCount = 0; tryCount < maxTry && !success; tryCount++) {
+            BlufiLoopbackTransport loopback = new BlufiLoopbackTransport(Schedulers.computation());
+            BlufiSimulatedDevice device = new BlufiSimulatedDevice(Schedulers.computation());
+            device.setSequenceWindow(32);
+            device.attach(loopback);
+            BlufiImpairedTransport impaired = new BlufiImpairedTransport(loopback,
+                    new BlufiImpairedTransport.Profile().setLossRate(0.05).setLatency(1L, 2L),
+                    7L + tryCount, Schedulers.computation());
+            BlufiCommunicator communicator = new BlufiCommunicator(impaired);
+            communicator.setRequireAck(true);
+            communicator.setAckWindowSize(8);
+            communicator.setRetransmitEnabled(true);
+
+            try {
+                if (communicator.negotiateSecurity() != BlufiSecurityResult.SUCCESS) {
+                    continue;
+                }
+                BlufiConfigureParams params = new BlufiConfigureParams();
+                params.setOpMode(IBlufiCommunicator.OP_MODE_STA);
+                params.setStaSSID("lossy-ap");
+                params.setStaPassword("lossy-password");
+                BlufiStatusResponse response = communicator.configure(params, true);
+                success = response.getResultCode() == BlufiStatusResponse.RESULT_SUCCESS
+                        && device.isStaConnected();
+            } finally {
+                communicator.close();
+                impaired.close();
+                loopback.disconnect();
+                device.close();
+                lostCount += impaired.getLostCount();
+            }
+        }
+
+        assertTrue(success);
+        assertTrue(lostCount > 0);
+    }
+}
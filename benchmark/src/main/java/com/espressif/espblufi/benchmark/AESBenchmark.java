@@ -0,0 +1,68 @@
+package com.espressif.espblufi.benchmark;
+
+import com.espressif.libs.security.EspAES;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AES/CFB of one frame, with the session ciphers reused by the per frame IV and with a new AES per frame
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AESBenchmark {
+    @Param({"16", "64", "128", "240"})
+    public int size;
+
+    private byte[] mKey;
+    private byte[] mIV;
+    private byte[] mInput;
+    private byte[] mOutput;
+    private EspAES mAES;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(size);
+        mKey = new byte[16];
+        random.nextBytes(mKey);
+        mIV = new byte[16];
+        mInput = new byte[size];
+        random.nextBytes(mInput);
+        mOutput = new byte[size];
+        mAES = new EspAES(mKey);
+    }
+
+    @Benchmark
+    public int encrypt() {
+        mIV[0]++;
+        return mAES.encrypt(mIV, mInput, 0, size, mOutput, 0);
+    }
+
+    @Benchmark
+    public int decrypt() {
+        mIV[0]++;
+        return mAES.decrypt(mIV, mInput, 0, size, mOutput, 0);
+    }
+
+    @Benchmark
+    public byte[] encryptNewCipher() {
+        mIV[0]++;
+        return new EspAES(mKey, mIV).encrypt(mInput);
+    }
+}
@@ -0,0 +1,59 @@
+package com.espressif.espblufi.benchmark;
+
+import com.espressif.libs.security.EspCRC;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The frame checksum over the frame sizes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CRCBenchmark {
+    @Param({"16", "64", "128", "240", "1024"})
+    public int size;
+
+    private byte[] mData;
+
+    @Setup
+    public void setup() {
+        mData = new byte[size];
+        new Random(size).nextBytes(mData);
+    }
+
+    @Benchmark
+    public int caluCRC() {
+        return EspCRC.caluCRC(0, mData);
+    }
+
+    @Benchmark
+    public int caluCRCRange() {
+        return EspCRC.caluCRC(0, mData, 2, size - 2);
+    }
+
+    /**
+     * The decoder way, the sequence and the length in the frame then the decrypted data
+     */
+    @Benchmark
+    public int caluCRCChained() {
+        int crc = EspCRC.caluCRC(0, mData, 0, 2);
+        return EspCRC.caluCRC(crc, mData, 2, size - 2);
+    }
+}
@@ -0,0 +1,70 @@
+package com.espressif.espblufi.benchmark;
+
+import com.espressif.libs.security.EspDH;
+import com.espressif.libs.security.EspECDH;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key generation and agreement of the negotiation
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DHBenchmark {
+    @Param({"1024"})
+    public int length;
+
+    private EspDH mDH;
+    private byte[] mDevicePublicKey;
+    private EspECDH mECDH;
+    private byte[] mDeviceECPublicKey;
+
+    @Setup
+    public void setup() {
+        mDH = new EspDH(length);
+        // The device takes the same P and G, generates its own key pair
+        mDevicePublicKey = new EspDH(mDH.getP(), mDH.getG(), length).getPublicKeyBytes();
+
+        mECDH = new EspECDH();
+        mDeviceECPublicKey = new EspECDH().getPublicKeyBytes();
+    }
+
+    @Benchmark
+    public EspDH dhKeyGen() {
+        return new EspDH(mDH.getP(), mDH.getG(), length);
+    }
+
+    @Benchmark
+    public byte[] dhAgreement() throws InvalidKeySpecException {
+        mDH.generateSecretKey(mDevicePublicKey);
+        return mDH.getSecretKey();
+    }
+
+    @Benchmark
+    public EspECDH ecdhKeyGen() {
+        return new EspECDH();
+    }
+
+    @Benchmark
+    public byte[] ecdhAgreement() throws InvalidKeySpecException {
+        mECDH.generateSecretKey(mDeviceECPublicKey);
+        return mECDH.getSecretKey();
+    }
+}
@@ -0,0 +1,87 @@
+package com.espressif.espblufi.benchmark;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sweep the fleet runs over the concurrency, the MTU and the loss rate, print each report and write them
+ * all in a JSON file.
+ * <p>
+ * Arguments are key=value pairs, the lists are comma separated:
+ * <pre>
+ * devices=100 concurrency=1,4,8 mtu=128,247 loss=0,0.01 latency=0 jitter=0 connect=0
+ * processing=0 wifi=0 dh=1024 ack=false retry=3 seed=0 out=build/fleet-report.json
+ * </pre>
+ */
+public class FleetBenchmark {
+    public static void main(String[] args) throws InterruptedException, IOException {
+        Map<String, String> options = new HashMap<>();
+        options.put("devices", "100");
+        options.put("concurrency", "1,4,8");
+        options.put("mtu", "128,247");
+        options.put("loss", "0,0.01");
+        options.put("latency", "0");
+        options.put("jitter", "0");
+        options.put("connect", "0");
+        options.put("processing", "0");
+        options.put("wifi", "0");
+        options.put("dh", "1024");
+        options.put("ack", "false");
+        options.put("retry", "3");
+        options.put("seed", "0");
+        options.put("out", "build/fleet-report.json");
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                System.err.println("Invalid argument " + arg);
+                System.exit(1);
+            }
+            options.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+
+        StringBuilder json = new StringBuilder("[\n");
+        boolean first = true;
+        for (String concurrency : options.get("concurrency").split(",")) {
+            for (String mtu : options.get("mtu").split(",")) {
+                for (String loss : options.get("loss").split(",")) {
+                    FleetHarness.Config config = new FleetHarness.Config()
+                            .setDeviceCount(Integer.parseInt(options.get("devices")))
+                            .setConcurrency(Integer.parseInt(concurrency.trim()))
+                            .setMtu(Integer.parseInt(mtu.trim()))
+                            .setLossRate(Double.parseDouble(loss.trim()))
+                            .setLatency(Long.parseLong(options.get("latency")), Long.parseLong(options.get("jitter")))
+                            .setConnectDelay(Long.parseLong(options.get("connect")))
+                            .setDeviceProcessingDelay(Long.parseLong(options.get("processing")))
+                            .setWifiConnectDelay(Long.parseLong(options.get("wifi")))
+                            .setDHLength(Integer.parseInt(options.get("dh")))
+                            .setRequireAck(Boolean.parseBoolean(options.get("ack")))
+                            .setRetryTime(Integer.parseInt(options.get("retry")))
+                            .setSeed(Long.parseLong(options.get("seed")));
+                    FleetHarness.Report report = new FleetHarness(config).run();
+                    System.out.println(report);
+
+                    if (!first) {
+                        json.append(",\n");
+                    }
+                    first = false;
+                    json.append("  ");
+                    report.toJson(json);
+                }
+            }
+        }
+        json.append("\n]\n");
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(options.get("out")), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+        System.out.println("Report written to " + options.get("out"));
+        System.exit(0);
+    }
+}
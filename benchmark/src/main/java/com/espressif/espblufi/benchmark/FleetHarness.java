@@ -0,0 +1,573 @@
+package com.espressif.espblufi.benchmark;
+
+import com.esp.iot.blufi.communiation.BlufiCommunicator;
+import com.esp.iot.blufi.communiation.BlufiConfigureParams;
+import com.esp.iot.blufi.communiation.BlufiLatencyHistogram;
+import com.esp.iot.blufi.communiation.BlufiLoopbackTransport;
+import com.esp.iot.blufi.communiation.BlufiPhaseRecorder;
+import com.esp.iot.blufi.communiation.BlufiSessionStats;
+import com.esp.iot.blufi.communiation.BlufiStepRunner;
+import com.esp.iot.blufi.communiation.BlufiTransport;
+import com.esp.iot.blufi.communiation.IBlufiCommunicator;
+import com.esp.iot.blufi.communiation.response.BlufiSecurityResult;
+import com.esp.iot.blufi.communiation.response.BlufiStatusResponse;
+import com.esp.iot.blufi.communiation.simulation.BlufiImpairedTransport;
+import com.esp.iot.blufi.communiation.simulation.BlufiSimulatedDevice;
+import com.espressif.libs.security.EspDHPool;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Scheduler;
+import rx.Single;
+import rx.schedulers.Schedulers;
+
+/**
+ * Provision a fleet of simulated devices the way BlufiConfigureActivity does: the workers take the devices
+ * from a queue, connect, negotiate, configure and wait for the Wi-Fi state, a failed device is queued again
+ * until it has been tried {@link Config#retryTime} times. Within a try the steps are retried in place by a
+ * {@link BlufiStepRunner} as in the app, the try ends once the session is unusable.
+ */
+public class FleetHarness {
+    /**
+     * The ATT header of each written or notified frame
+     */
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    /**
+     * One fleet run
+     */
+    public static class Config {
+        int deviceCount = 100;
+        int concurrency = 1;
+        int retryTime = 3;
+        int mtu = BlufiLoopbackTransport.DEFAULT_MTU;
+        double lossRate = 0;
+        long latency = 0L;
+        long jitter = 0L;
+        long connectDelay = 0L;
+        long deviceProcessingDelay = 0L;
+        long wifiConnectDelay = 0L;
+        int dhLength = BlufiCommunicator.DH_LENGTH;
+        boolean requireAck = false;
+        long seed = 0L;
+
+        public Config setDeviceCount(int count) {
+            deviceCount = count;
+            return this;
+        }
+
+        /**
+         * @param concurrency the count of the workers, as the multithread count of the app
+         */
+        public Config setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * @param retryTime the max tries of a device
+         */
+        public Config setRetryTime(int retryTime) {
+            this.retryTime = retryTime;
+            return this;
+        }
+
+        public Config setMtu(int mtu) {
+            this.mtu = mtu;
+            return this;
+        }
+
+        /**
+         * @param rate the probability a frame is lost in each direction
+         */
+        public Config setLossRate(double rate) {
+            lossRate = rate;
+            return this;
+        }
+
+        /**
+         * @param latency the delay of each frame in milliseconds
+         * @param jitter  the max extra delay in milliseconds
+         */
+        public Config setLatency(long latency, long jitter) {
+            this.latency = latency;
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * @param delay the time of the GATT connection and the service discovery in milliseconds
+         */
+        public Config setConnectDelay(long delay) {
+            connectDelay = delay;
+            return this;
+        }
+
+        /**
+         * @param delay the time a device takes to handle a message in milliseconds
+         */
+        public Config setDeviceProcessingDelay(long delay) {
+            deviceProcessingDelay = delay;
+            return this;
+        }
+
+        /**
+         * @param delay the time a device takes to connect the AP in milliseconds
+         */
+        public Config setWifiConnectDelay(long delay) {
+            wifiConnectDelay = delay;
+            return this;
+        }
+
+        public Config setDHLength(int length) {
+            dhLength = length;
+            return this;
+        }
+
+        public Config setRequireAck(boolean requireAck) {
+            this.requireAck = requireAck;
+            return this;
+        }
+
+        /**
+         * @param seed seed of the link impairments, each device link takes seed + index
+         */
+        public Config setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+    }
+
+    /**
+     * The result of a fleet run
+     */
+    public static class Report {
+        Config config;
+        int deviceCount;
+        int successCount;
+        long retryCount;
+        long elapsed;
+        long[] latencies;
+        long frameCount;
+        long byteCount;
+        long lostCount;
+        BlufiPhaseRecorder phases;
+        BlufiSessionStats stats;
+
+        public int getSuccessCount() {
+            return successCount;
+        }
+
+        /**
+         * Get the count of the tries after the first try of each device
+         */
+        public long getRetryCount() {
+            return retryCount;
+        }
+
+        /**
+         * Get the time of the whole run in milliseconds
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Get the successfully provisioned devices per minute
+         */
+        public double getDevicesPerMinute() {
+            return elapsed > 0 ? successCount * 60000.0 / elapsed : 0;
+        }
+
+        /**
+         * Get the latency percentile of the devices, from the first try to the end of the last try
+         *
+         * @param percentile 0 to 100
+         * @return latency in milliseconds
+         */
+        public long getLatency(double percentile) {
+            if (latencies.length == 0) {
+                return 0L;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+        }
+
+        /**
+         * Get the bytes on air, the frames written and notified with their ATT header
+         */
+        public long getBytesOnAir() {
+            return byteCount + frameCount * ATT_HEADER_LENGTH;
+        }
+
+        public long getFrameCount() {
+            return frameCount;
+        }
+
+        /**
+         * Get the count of the frames lost by the link impairment
+         */
+        public long getLostCount() {
+            return lostCount;
+        }
+
+        /**
+         * Get the latency histograms of the negotiation and configure phases
+         */
+        public BlufiPhaseRecorder getPhases() {
+            return phases;
+        }
+
+        /**
+         * Get the communicator stats of all the tries merged
+         */
+        public BlufiSessionStats getStats() {
+            return stats;
+        }
+
+        /**
+         * Write the report as a JSON object
+         */
+        public void toJson(StringBuilder sb) {
+            sb.append('{');
+            sb.append("\"devices\":").append(deviceCount);
+            sb.append(",\"concurrency\":").append(config.concurrency);
+            sb.append(",\"mtu\":").append(config.mtu);
+            sb.append(",\"lossRate\":").append(config.lossRate);
+            sb.append(",\"latency\":").append(config.latency);
+            sb.append(",\"jitter\":").append(config.jitter);
+            sb.append(",\"dhLength\":").append(config.dhLength);
+            sb.append(",\"requireAck\":").append(config.requireAck);
+            sb.append(",\"seed\":").append(config.seed);
+            sb.append(",\"success\":").append(successCount);
+            sb.append(",\"retries\":").append(retryCount);
+            sb.append(",\"elapsedMs\":").append(elapsed);
+            sb.append(",\"devicesPerMinute\":").append(String.format(Locale.ENGLISH, "%.2f", getDevicesPerMinute()));
+            sb.append(",\"devicesPerHour\":").append(String.format(Locale.ENGLISH, "%.1f", getDevicesPerMinute() * 60));
+            sb.append(",\"latencyP50Ms\":").append(getLatency(50));
+            sb.append(",\"latencyP95Ms\":").append(getLatency(95));
+            sb.append(",\"latencyP99Ms\":").append(getLatency(99));
+            sb.append(",\"frames\":").append(frameCount);
+            sb.append(",\"bytesOnAir\":").append(getBytesOnAir());
+            sb.append(",\"lostFrames\":").append(lostCount);
+            sb.append(",\"session\":{");
+            sb.append("\"framesSent\":").append(stats.getFramesSent());
+            sb.append(",\"payloadBytesSent\":").append(stats.getPayloadBytesSent());
+            sb.append(",\"overheadBytesSent\":").append(stats.getOverheadBytesSent());
+            sb.append(",\"fragmentsPerMessageSent\":")
+                    .append(String.format(Locale.ENGLISH, "%.2f", stats.getFragmentsPerMessageSent()));
+            sb.append(",\"framesReceived\":").append(stats.getFramesReceived());
+            sb.append(",\"payloadBytesReceived\":").append(stats.getPayloadBytesReceived());
+            sb.append(",\"overheadBytesReceived\":").append(stats.getOverheadBytesReceived());
+            sb.append(",\"writeFailures\":").append(stats.getWriteFailures());
+            sb.append(",\"ackTimeouts\":").append(stats.getAckTimeouts());
+            sb.append(",\"checksumMismatches\":").append(stats.getChecksumMismatches());
+            sb.append(",\"discardedFrames\":").append(stats.getDiscardedFrames());
+            sb.append(",\"aesUs\":").append(stats.getAESTime() / 1000L);
+            sb.append(",\"crcUs\":").append(stats.getCRCTime() / 1000L);
+            sb.append(",\"dhUs\":").append(stats.getDHTime() / 1000L);
+            sb.append('}');
+            sb.append(",\"phases\":{");
+            boolean first = true;
+            for (String phase : phases.getPhases()) {
+                BlufiLatencyHistogram histogram = phases.getHistogram(phase);
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append('"').append(phase).append("\":{");
+                sb.append("\"count\":").append(histogram.getCount());
+                sb.append(",\"meanUs\":").append(histogram.getMean());
+                sb.append(",\"p50Us\":").append(histogram.getPercentile(50));
+                sb.append(",\"p95Us\":").append(histogram.getPercentile(95));
+                sb.append(",\"p99Us\":").append(histogram.getPercentile(99));
+                sb.append(",\"maxUs\":").append(histogram.getMax());
+                sb.append('}');
+            }
+            sb.append("}}");
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH,
+                    "devices %d, concurrency %d, mtu %d, loss %.3f: success %d, retries %d, %.1f devices/min, "
+                            + "p50 %d ms, p95 %d ms, p99 %d ms, %d bytes on air",
+                    deviceCount, config.concurrency, config.mtu, config.lossRate, successCount, retryCount,
+                    getDevicesPerMinute(), getLatency(50), getLatency(95), getLatency(99), getBytesOnAir());
+        }
+    }
+
+    private static class Device {
+        final int index;
+        int tryCount = 0;
+        boolean success = false;
+        long startTime = -1L;
+        long endTime;
+
+        Device(int index) {
+            this.index = index;
+        }
+    }
+
+    private final Config mConfig;
+    private final Scheduler mScheduler = Schedulers.computation();
+    private final AtomicLong mFrameCount = new AtomicLong();
+    private final AtomicLong mByteCount = new AtomicLong();
+    private final AtomicLong mLostCount = new AtomicLong();
+    private final BlufiPhaseRecorder mPhaseRecorder = new BlufiPhaseRecorder();
+    private final BlufiSessionStats mStats = new BlufiSessionStats();
+
+    private EspDHPool mDHPool;
+
+    public FleetHarness(Config config) {
+        mConfig = config;
+    }
+
+    /**
+     * Run the fleet and wait until all the devices are over
+     *
+     * @return the report of the run
+     */
+    public Report run() throws InterruptedException {
+        Queue<Device> queue = new ConcurrentLinkedQueue<>();
+        Device[] devices = new Device[mConfig.deviceCount];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = new Device(i);
+            queue.add(devices[i]);
+        }
+
+        mDHPool = new EspDHPool(mConfig.dhLength, mConfig.concurrency * 2);
+        mDHPool.start();
+
+        long startTime = System.currentTimeMillis();
+        ExecutorService workers = Executors.newFixedThreadPool(mConfig.concurrency);
+        for (int i = 0; i < mConfig.concurrency; i++) {
+            workers.execute(() -> {
+                Device device;
+                while ((device = queue.poll()) != null) {
+                    if (device.startTime < 0) {
+                        device.startTime = System.currentTimeMillis();
+                    }
+                    device.success = provision(device);
+                    device.tryCount++;
+                    device.endTime = System.currentTimeMillis();
+                    if (!device.success && device.tryCount < mConfig.retryTime) {
+                        queue.add(device);
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        long elapsed = System.currentTimeMillis() - startTime;
+        mDHPool.close();
+
+        Report report = new Report();
+        report.config = mConfig;
+        report.deviceCount = devices.length;
+        report.elapsed = elapsed;
+        report.latencies = new long[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            Device device = devices[i];
+            if (device.success) {
+                report.successCount++;
+            }
+            report.retryCount += device.tryCount - 1;
+            report.latencies[i] = device.endTime - device.startTime;
+        }
+        Arrays.sort(report.latencies);
+        report.frameCount = mFrameCount.get();
+        report.byteCount = mByteCount.get();
+        report.lostCount = mLostCount.get();
+        report.phases = mPhaseRecorder;
+        report.stats = mStats;
+        return report;
+    }
+
+    /**
+     * Try to provision a device once
+     *
+     * @return provisioned successfully or not
+     */
+    private boolean provision(Device device) {
+        // Each try starts over with a new link and a device in its initial state
+        Session session = new Session(device);
+        BlufiStepRunner runner = new BlufiStepRunner()
+                .addStep(BlufiPhaseRecorder.PHASE_CONNECT, 0, session::connect)
+                .addStep("negotiate", 1, true, session::negotiate)
+                .addStep("configure", 2, true, session::configure)
+                .setLinkChecker(session::isUsable);
+        try {
+            return runner.run() == null;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * The link, the simulated device and the communicator of one connection
+     */
+    private class Session {
+        final Device device;
+
+        BlufiLoopbackTransport loopback;
+        BlufiSimulatedDevice simDevice;
+        BlufiImpairedTransport impaired;
+        BlufiCommunicator communicator;
+
+        Session(Device device) {
+            this.device = device;
+        }
+
+        String connect() throws InterruptedException {
+            close();
+            if (mConfig.connectDelay > 0) {
+                Thread.sleep(mConfig.connectDelay);
+            }
+
+            loopback = new BlufiLoopbackTransport(mScheduler);
+            loopback.setMtu(mConfig.mtu);
+            simDevice = new BlufiSimulatedDevice(mScheduler, mConfig.dhLength);
+            simDevice.setProcessingDelay(mConfig.deviceProcessingDelay);
+            simDevice.setWifiConnect(mConfig.wifiConnectDelay, true);
+            simDevice.attach(loopback);
+            BlufiImpairedTransport.Profile profile = new BlufiImpairedTransport.Profile()
+                    .setLossRate(mConfig.lossRate)
+                    .setLatency(mConfig.latency, mConfig.jitter);
+            long seed = mConfig.seed + device.index * 31L + device.tryCount;
+            impaired = new BlufiImpairedTransport(loopback, profile, seed, mScheduler);
+            communicator = new BlufiCommunicator(new CountingTransport(impaired));
+            communicator.setDHPrivateKeyLength(mConfig.dhLength);
+            if (mConfig.dhLength == BlufiCommunicator.DH_LENGTH) {
+                communicator.setDHPool(mDHPool);
+            }
+            communicator.setRequireAck(mConfig.requireAck);
+            communicator.setPhaseRecorder(mPhaseRecorder);
+            return null;
+        }
+
+        boolean isUsable() {
+            return communicator != null && communicator.isSessionUsable();
+        }
+
+        String negotiate() {
+            BlufiSecurityResult result = communicator.negotiateSecurity();
+            return result == BlufiSecurityResult.SUCCESS ? null : "negotiate " + result;
+        }
+
+        String configure() {
+            BlufiConfigureParams params = new BlufiConfigureParams();
+            params.setOpMode(IBlufiCommunicator.OP_MODE_STA);
+            params.setConfigureSequence(device.index);
+            params.setStaSSID("fleet-ap");
+            params.setStaPassword("fleet-password-" + device.index);
+            BlufiStatusResponse response = communicator.configure(params, true);
+            if (response.getResultCode() != BlufiStatusResponse.RESULT_SUCCESS) {
+                return "configure " + response.getResultCode();
+            }
+            return simDevice.isStaConnected() ? null : "station not connected";
+        }
+
+        void close() {
+            if (communicator == null) {
+                return;
+            }
+
+            mStats.merge(communicator.getStats());
+            communicator.close();
+            impaired.close();
+            loopback.disconnect();
+            simDevice.close();
+            mLostCount.addAndGet(impaired.getLostCount());
+            communicator = null;
+        }
+    }
+
+    /**
+     * Count the frames written and notified on the phone side
+     */
+    private class CountingTransport implements BlufiTransport {
+        private final BlufiTransport mTransport;
+
+        CountingTransport(BlufiTransport transport) {
+            mTransport = transport;
+        }
+
+        private void count(byte[] data) {
+            mFrameCount.incrementAndGet();
+            mByteCount.addAndGet(data.length);
+        }
+
+        @Override
+        public boolean setNotificationListener(NotificationListener listener) {
+            if (listener == null) {
+                return mTransport.setNotificationListener(null);
+            }
+            return mTransport.setNotificationListener(data -> {
+                count(data);
+                listener.onNotification(data);
+            });
+        }
+
+        @Override
+        public boolean write(byte[] data) {
+            count(data);
+            return mTransport.write(data);
+        }
+
+        @Override
+        public Single<Boolean> writeAsync(byte[] data) {
+            count(data);
+            return mTransport.writeAsync(data);
+        }
+
+        @Override
+        public boolean isPipelinedWriteAvailable() {
+            return mTransport.isPipelinedWriteAvailable();
+        }
+
+        @Override
+        public boolean writeNoResponse(byte[] data) {
+            boolean accepted = mTransport.writeNoResponse(data);
+            if (accepted) {
+                count(data);
+            }
+            return accepted;
+        }
+
+        @Override
+        public boolean flushWrite(long timeout) {
+            return mTransport.flushWrite(timeout);
+        }
+
+        @Override
+        public Single<Boolean> flushWriteAsync(long timeout) {
+            return mTransport.flushWriteAsync(timeout);
+        }
+
+        @Override
+        public boolean isLastWriteTooLong() {
+            return mTransport.isLastWriteTooLong();
+        }
+
+        @Override
+        public int getMtu() {
+            return mTransport.getMtu();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mTransport.isConnected();
+        }
+    }
+}
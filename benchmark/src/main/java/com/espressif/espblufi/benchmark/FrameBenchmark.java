@@ -0,0 +1,97 @@
+package com.espressif.espblufi.benchmark;
+
+import com.esp.iot.blufi.communiation.BlufiFrameDecoder;
+import com.esp.iot.blufi.communiation.BlufiFrameEncoder;
+import com.esp.iot.blufi.communiation.BlufiNotiData;
+import com.esp.iot.blufi.communiation.IBlufiCommunicator;
+import com.espressif.libs.security.EspAES;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode one Blufi frame, plain and with checksum and encryption as a negotiated session posts
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+    private static final int TYPE = (IBlufiCommunicator.Type.Data.SUBTYPE_STA_WIFI_SSID << 2)
+            | IBlufiCommunicator.Type.Data.PACKAGE_VALUE;
+
+    /**
+     * Data length of the frame, 240 is the most a frame carries with the max MTU
+     */
+    @Param({"16", "64", "128", "240"})
+    public int size;
+
+    private byte[] mData;
+    private int mPlainFrameCtrl;
+    private int mSecureFrameCtrl;
+
+    private BlufiFrameEncoder mEncoder;
+    private BlufiFrameDecoder mDecoder;
+    private BlufiNotiData mNotiData;
+
+    private byte[] mPlainFrame;
+    private byte[] mSecureFrame;
+    private int mSequence;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(size);
+        mData = new byte[size];
+        random.nextBytes(mData);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+
+        mPlainFrameCtrl = BlufiFrameEncoder.getFrameCtrlValue(false, false, false, false, false);
+        mSecureFrameCtrl = BlufiFrameEncoder.getFrameCtrlValue(true, true, false, false, false);
+
+        mEncoder = new BlufiFrameEncoder();
+        mEncoder.setAES(new EspAES(key));
+        mDecoder = new BlufiFrameDecoder();
+        mDecoder.setAES(new EspAES(key));
+        mNotiData = new BlufiNotiData(size);
+
+        mPlainFrame = mEncoder.encode(TYPE, mPlainFrameCtrl, 0, 0, mData, 0, size);
+        mSecureFrame = mEncoder.encode(TYPE, mSecureFrameCtrl, 0, 0, mData, 0, size);
+    }
+
+    @Benchmark
+    public byte[] encodePlain() {
+        return mEncoder.encode(TYPE, mPlainFrameCtrl, mSequence++ & 0xff, 0, mData, 0, size);
+    }
+
+    @Benchmark
+    public byte[] encodeSecure() {
+        return mEncoder.encode(TYPE, mSecureFrameCtrl, mSequence++ & 0xff, 0, mData, 0, size);
+    }
+
+    @Benchmark
+    public int decodePlain() {
+        mNotiData.clear();
+        return mDecoder.decode(mPlainFrame, mNotiData);
+    }
+
+    @Benchmark
+    public int decodeSecure() {
+        mNotiData.clear();
+        return mDecoder.decode(mSecureFrame, mNotiData);
+    }
+}
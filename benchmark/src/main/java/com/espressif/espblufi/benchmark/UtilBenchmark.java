@@ -0,0 +1,106 @@
+package com.espressif.espblufi.benchmark;
+
+import com.espressif.libs.security.EspMD5;
+import com.espressif.libs.utils.HexUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MD5 of the negotiated secret and the hex conversions of the BSSID, the MAC addresses and the MD5
+ * string. The legacy methods are the string conversions HexUtil replaced, kept as the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+    /**
+     * 6 is a BSSID, 128 is a DH secret key
+     */
+    @Param({"6", "16", "128"})
+    public int size;
+
+    private byte[] mData;
+    private String mHex;
+    private char[] mHexChars;
+    private byte[] mDecoded;
+
+    @Setup
+    public void setup() {
+        mData = new byte[size];
+        new Random(size).nextBytes(mData);
+        mHex = HexUtil.encode(mData);
+        mHexChars = new char[size * 2];
+        HexUtil.encode(mData, 0, size, mHexChars, 0);
+        mDecoded = new byte[size];
+    }
+
+    @Benchmark
+    public byte[] md5() {
+        return EspMD5.getMD5Byte(mData);
+    }
+
+    @Benchmark
+    public String md5String() {
+        return EspMD5.getMD5String(mData);
+    }
+
+    @Benchmark
+    public String hexEncode() {
+        return HexUtil.encode(mData);
+    }
+
+    @Benchmark
+    public char[] hexEncodeRange() {
+        HexUtil.encode(mData, 0, mData.length, mHexChars, 0);
+        return mHexChars;
+    }
+
+    @Benchmark
+    public byte[] hexDecode() {
+        return HexUtil.decode(mHex);
+    }
+
+    @Benchmark
+    public byte[] hexDecodeRange() {
+        HexUtil.decode(mHexChars, 0, mHexChars.length, mDecoded, 0);
+        return mDecoded;
+    }
+
+    @Benchmark
+    public String legacyBytesToString() {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : mData) {
+            String bstr = Integer.toHexString(b & 0xff);
+            if (bstr.length() < 2) {
+                bstr = "0" + bstr;
+            }
+            sb.append(bstr);
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public byte[] legacyHexIntStringToBytes() {
+        byte[] result = new byte[mHex.length() / 2];
+        for (int i = 0; i < mHex.length(); i += 2) {
+            result[i / 2] = (byte) Integer.parseInt(mHex.substring(i, i + 2), 16);
+        }
+        return result;
+    }
+}